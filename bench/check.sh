@@ -0,0 +1,17 @@
+#!/bin/sh
+#
+# Compiles the identity sources and the harness against ../lib and runs the behaviour
+# checks. Arguments are passed to org.apius.bench.CheckRunner, e.g.
+#
+#   ./check.sh SignedCredentials TokenDeadlines
+#
+# Exits with status 1 if any check failed.
+
+cd "$(dirname "$0")" || exit 1
+
+CLASSES=target/classes
+LIB="../lib/*"
+
+rm -rf "$CLASSES" && mkdir -p "$CLASSES" || exit 1
+javac -nowarn -d "$CLASSES" -cp "$LIB" $(find ../src src -name '*.java') || exit 1
+exec java $JAVA_OPTS -cp "$CLASSES:$LIB" org.apius.bench.CheckRunner "$@"
@@ -0,0 +1,35 @@
+#!/bin/sh
+#
+# Compiles the identity sources and the benchmarks against ../lib, starts the fake
+# OpenAM and the JSE identity component pointed at it, runs the load generator and
+# stops both. Arguments are passed to org.apius.bench.load.LoadGenerator, e.g.
+#
+#   ./load.sh -r 200 -d 60 -m validate=80,authorize=20
+#
+# FAKE_OPTS are passed to org.apius.bench.openam.FakeOpenAm (e.g. FAKE_OPTS="-l 20 -j 30
+# -e 0.01") and SERVER_OPTS to JseComponentBootstrap as name=value connector parameters.
+# JAVA_OPTS are used for the identity component's JVM; on Java 9 and later Spring's cglib
+# proxies need JAVA_OPTS="--add-opens java.base/java.lang=ALL-UNNAMED".
+# Spring reads the identity classes with its own ASM, so on Java 8 and later compile them
+# for an older class file version, e.g. JAVAC_OPTS="--release 7".
+
+cd "$(dirname "$0")" || exit 1
+
+CLASSES=target/classes
+LIB="../lib/*"
+CONTEXTS=../projects/identity/src
+FAKE_PORT=8090
+
+rm -rf "$CLASSES" && mkdir -p "$CLASSES" || exit 1
+javac $JAVAC_OPTS -nowarn -d "$CLASSES" -cp "$LIB" $(find ../src src -name '*.java') || exit 1
+
+java -cp "$CLASSES:$LIB" org.apius.bench.openam.FakeOpenAm -p $FAKE_PORT $FAKE_OPTS > target/fake-openam.log 2>&1 &
+FAKE_PID=$!
+java $JAVA_OPTS -Dapius.openam.baseUri=http://localhost:$FAKE_PORT/openam -cp "$CLASSES:$LIB:$CONTEXTS" \
+    org.apius.server.JseComponentBootstrap jseIdentityContext.xml component controllerSleepTimeMs=1 $SERVER_OPTS \
+    > target/identity.log 2>&1 &
+SERVER_PID=$!
+trap 'kill $FAKE_PID $SERVER_PID 2>/dev/null' EXIT INT TERM
+
+sleep 10
+java -cp "$CLASSES:$LIB" org.apius.bench.load.LoadGenerator "$@"
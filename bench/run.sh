@@ -0,0 +1,17 @@
+#!/bin/sh
+#
+# Compiles the identity sources and the benchmarks against ../lib and runs the
+# benchmarks. Arguments are passed to org.apius.bench.BenchmarkRunner, e.g.
+#
+#   ./run.sh -w 2 -m 3 ResponseHelper FilterChain
+#
+# JAVA_OPTS can be used to pick the heap and collector, e.g. JAVA_OPTS="-Xmx512m".
+
+cd "$(dirname "$0")" || exit 1
+
+CLASSES=target/classes
+LIB="../lib/*"
+
+rm -rf "$CLASSES" && mkdir -p "$CLASSES" || exit 1
+javac -nowarn -d "$CLASSES" -cp "$LIB" $(find ../src src -name '*.java') || exit 1
+exec java $JAVA_OPTS -cp "$CLASSES:$LIB" org.apius.bench.BenchmarkRunner "$@"
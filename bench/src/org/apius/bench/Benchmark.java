@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench;
+
+/**
+ * <p>
+ * One operation to be measured by the <code>BenchmarkRunner</code>. <code>run</code>
+ * performs the operation exactly once and returns its result, which the runner keeps
+ * hold of so that the JIT compiler cannot discard the work.
+ * </p>
+ * <p>
+ * State shared by every call is built in <code>setUp</code>, which is not measured.
+ * Anything <code>run</code> allocates is measured, so inputs that the real code path 
+ * would receive ready-made should be built in <code>setUp</code> as well.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    /**
+     * Constructor
+     * 
+     * @param name dotted, starting with the class or component under test
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return void
+     * @throws Exception
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * @return the result of one operation
+     * @throws Exception
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * @return void
+     */
+    public void tearDown() {
+    }
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apius.server.identity.session.SessionAuthenticatorHelperBenchmarks;
+import org.apius.server.identity.session.embedded.EmbeddedSessionProvisionerBenchmarks;
+import org.apius.server.identity.session.filter.FilterChainBenchmarks;
+import org.apius.server.identity.session.openam.client.ResponseHelperBenchmarks;
+
+/**
+ * <p>
+ * Runs the session hot path benchmarks on the calling thread and prints, for each one:
+ * </p>
+ * <p>
+ * <b>ops/s</b> throughput over the measurement period, after a warm up period of the 
+ * same operation so that it runs JIT compiled.<br>
+ * <b>p50, p99, p99.9, max</b> latency of individually timed operations, in nanoseconds.
+ * Timing each operation adds the cost of two <code>System.nanoTime</code> calls, a few 
+ * tens of nanoseconds, which matters only for the cheapest operations.<br>
+ * <b>B/op</b> bytes allocated per operation and <b>MB/s</b> the allocation rate at full 
+ * throughput, from the thread allocation counter of HotSpot JVMs; "n/a" elsewhere.
+ * </p>
+ * <p>
+ * Usage: <code>BenchmarkRunner [-w warmupSeconds] [-m measureSeconds] [nameFilter...]</code>.
+ * Only benchmarks whose name contains one of the filters are run; all of them without one.
+ * The defaults are 2 and 3 seconds. Compare results from the same machine and JVM only.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class BenchmarkRunner {
+
+    private static final int BATCH = 256;
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private static volatile Object sink;
+
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final Method allocatedBytes;
+    private final Object threadMXBean;
+
+    /**
+     * Constructor
+     * 
+     * @param warmupSeconds
+     * @param measureSeconds
+     */
+    public BenchmarkRunner(double warmupSeconds, double measureSeconds) {
+        this.warmupNanos = (long) (warmupSeconds * 1e9);
+        this.measureNanos = (long) (measureSeconds * 1e9);
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+        this.allocatedBytes = findAllocatedBytesMethod(threadMXBean);
+    }
+
+    /**
+     * @return every benchmark of the suite
+     */
+    public static List<Benchmark> createAll() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.addAll(SessionAuthenticatorHelperBenchmarks.create());
+        benchmarks.addAll(ResponseHelperBenchmarks.create());
+        benchmarks.addAll(EmbeddedSessionProvisionerBenchmarks.create());
+        benchmarks.addAll(FilterChainBenchmarks.create());
+        
+        return benchmarks;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double warmupSeconds = 2;
+        double measureSeconds = 3;
+        List<String> filters = new ArrayList<String>();
+        
+        for (int i = 0; i < args.length; i++) {
+            if ("-w".equals(args[i]) && i + 1 < args.length) {
+                warmupSeconds = Double.parseDouble(args[++i]);
+            } else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                measureSeconds = Double.parseDouble(args[++i]);
+            } else {
+                filters.add(args[i]);
+            }
+        }
+        
+        BenchmarkRunner runner = new BenchmarkRunner(warmupSeconds, measureSeconds);
+        System.out.println(String.format(Locale.ROOT, "%-60s %12s %9s %9s %9s %10s %10s %9s", 
+                                         "benchmark", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "max ns", "B/op", "MB/s"));
+        
+        for (Benchmark benchmark : createAll()) {
+            if (matches(benchmark.getName(), filters)) {
+                System.out.println(runner.run(benchmark));
+            }
+        }
+    }
+
+    /**
+     * @param benchmark
+     * @return one line of results
+     * @throws Exception
+     */
+    public String run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        
+        try {
+            loop(benchmark, warmupNanos);
+            
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            long operations = loop(benchmark, measureNanos);
+            long elapsed = System.nanoTime() - start;
+            long allocated = getAllocatedBytes() - allocatedBefore;
+            
+            double operationsPerSecond = operations * 1e9 / elapsed;
+            long[] samples = sample(benchmark, Math.min(MAX_SAMPLES, Math.max(operations / 4, 1000)));
+            String bytesPerOperation = "n/a";
+            String megabytesPerSecond = "n/a";
+            
+            if (allocated >= 0 && allocatedBefore >= 0) {
+                bytesPerOperation = String.format(Locale.ROOT, "%.0f", (double) allocated / operations);
+                megabytesPerSecond = String.format(Locale.ROOT, "%.1f", allocated * 1e9 / elapsed / (1024 * 1024));
+            }
+            
+            return String.format(Locale.ROOT, "%-60s %12.0f %9d %9d %9d %10d %10s %9s", 
+                                 benchmark.getName(), 
+                                 operationsPerSecond, 
+                                 percentile(samples, 0.50), 
+                                 percentile(samples, 0.99), 
+                                 percentile(samples, 0.999), 
+                                 samples[samples.length - 1], 
+                                 bytesPerOperation, 
+                                 megabytesPerSecond);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private long loop(Benchmark benchmark, long nanos) throws Exception {
+        long operations = 0;
+        long deadline = System.nanoTime() + nanos;
+        
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink = benchmark.run();
+            }
+            operations += BATCH;
+        } while (System.nanoTime() < deadline);
+        
+        return operations;
+    }
+
+    private long[] sample(Benchmark benchmark, long count) throws Exception {
+        long[] samples = new long[(int) count];
+        
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            sink = benchmark.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        
+        return samples;
+    }
+
+    private long percentile(long[] sortedSamples, double percentile) {
+        return sortedSamples[Math.min(sortedSamples.length - 1, (int) (sortedSamples.length * percentile))];
+    }
+
+    private long getAllocatedBytes() {
+        long bytes = -1;
+        
+        if (allocatedBytes != null) {
+            try {
+                bytes = (Long) allocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+            } catch (Exception e) {
+                bytes = -1;
+            }
+        }
+        
+        return bytes;
+    }
+
+    private static Method findAllocatedBytesMethod(Object threadMXBean) {
+        Method method = null;
+        
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            
+            if (type.isInstance(threadMXBean)) {
+                method = type.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            method = null;
+        }
+        
+        return method;
+    }
+
+    private static boolean matches(String name, List<String> filters) {
+        boolean matches = filters.isEmpty();
+        
+        for (int i = 0; i < filters.size() && !matches; i++) {
+            matches = name.contains(filters.get(i));
+        }
+        
+        return matches;
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.bench;
+
+/**
+ * <p>
+ * One behaviour to be checked by the <code>CheckRunner</code>. <code>run</code> exercises
+ * it on fresh state and throws, typically through <code>check</code>, if it does not
+ * behave as documented.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public abstract class Check {
+
+    private final String name;
+
+    /**
+     * Constructor
+     * 
+     * @param name dotted, starting with the class or component under check
+     */
+    protected Check(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return void
+     * @throws Exception if the behaviour is not the documented one
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * @param condition
+     * @param message describing the expected behaviour
+     * @return void
+     * @throws AssertionError if the condition does not hold
+     */
+    protected static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}
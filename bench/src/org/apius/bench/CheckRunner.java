@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apius.server.identity.session.cache.PeerInvalidationBroadcasterChecks;
+import org.apius.server.identity.session.credential.SignedCredentialsChecks;
+
+/**
+ * <p>
+ * Runs the behaviour checks on the calling thread and prints PASS or FAIL, with the 
+ * reason, for each one. Exits with status 1 if any check failed.
+ * </p>
+ * <p>
+ * Usage: <code>CheckRunner [nameFilter...]</code>. Only checks whose name contains one 
+ * of the filters are run; all of them without one.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class CheckRunner {
+
+    private CheckRunner() {
+    }
+
+    /**
+     * @return every check of the suite
+     */
+    public static List<Check> createAll() {
+        List<Check> checks = new ArrayList<Check>();
+        
+        checks.addAll(SignedCredentialsChecks.create());
+        checks.addAll(PeerInvalidationBroadcasterChecks.create());
+        
+        return checks;
+    }
+
+    public static void main(String[] args) {
+        List<String> filters = Arrays.asList(args);
+        int passed = 0;
+        int failed = 0;
+        
+        for (Check check : createAll()) {
+            if (matches(check.getName(), filters)) {
+                try {
+                    check.run();
+                    passed++;
+                    System.out.println("PASS " + check.getName());
+                } catch (Throwable e) {
+                    failed++;
+                    System.out.println("FAIL " + check.getName() + ": " + e);
+                }
+            }
+        }
+        System.out.println(passed + " passed, " + failed + " failed");
+        
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean matches(String name, List<String> filters) {
+        boolean matches = filters.isEmpty();
+        
+        for (int i = 0; i < filters.size() && !matches; i++) {
+            matches = name.contains(filters.get(i));
+        }
+        
+        return matches;
+    }
+
+}
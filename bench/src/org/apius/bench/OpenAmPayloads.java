@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench;
+
+/**
+ * <p>
+ * Realistic <a href="forgerock.com/openam.html">OpenAM</a> attributes responses, shaped
+ * like the one documented on <code>ResponseHelper.parseSessionAttributes</code>, from a
+ * typical user up to users with hundreds of roles.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class OpenAmPayloads {
+
+    public static final String TOKEN = "AQIC5wM2LY4SfczIKuNd_hAtjrJgLaZmKCszk_Dsqh1QVT0.*AAJTSQACMDE.*";
+
+    /**
+     * The response documented on <code>ResponseHelper</code>: 2 roles and 9 attributes.
+     */
+    public static final String SMALL = attributes(2, 0, 1);
+
+    /**
+     * 20 roles and 29 attributes of 2 values each.
+     */
+    public static final String MEDIUM = attributes(20, 20, 2);
+
+    /**
+     * 500 roles and 89 attributes of 3 values each.
+     */
+    public static final String LARGE = attributes(500, 80, 3);
+
+    private OpenAmPayloads() {
+    }
+
+    /**
+     * @param roles number of roles
+     * @param extraAttributes number of attributes on top of the 9 every user has
+     * @param valuesPerAttribute number of values of each extra attribute
+     * @return an OpenAM attributes response
+     */
+    public static String attributes(int roles, int extraAttributes, int valuesPerAttribute) {
+        StringBuilder sb = new StringBuilder(256 + roles * 64 + extraAttributes * valuesPerAttribute * 64);
+        
+        sb.append("userdetails.token.id=").append(TOKEN).append('\n');
+        for (int i = 0; i < roles; i++) {
+            sb.append("userdetails.role=id=Group ").append(i).append(",ou=group,dc=apius,dc=org\n");
+        }
+        appendAttribute(sb, "uid", "pmorris");
+        appendAttribute(sb, "mail", "pmorris@nmh.org");
+        appendAttribute(sb, "userpassword", "{SSHA}spRdGLaBTRTOJCUVNbUOmNWhQUj/qmE2uUHecA==");
+        appendAttribute(sb, "sn", "Morris");
+        appendAttribute(sb, "cn", "Paul Morris");
+        appendAttribute(sb, "givenname", "Paul");
+        appendAttribute(sb, "dn", "uid=pmorris,ou=people,dc=apius,dc=org");
+        appendAttribute(sb, "objectclass", "organizationalPerson", "person", "inetOrgPerson", "top");
+        appendAttribute(sb, "inetuserstatus", "Active");
+        
+        for (int i = 0; i < extraAttributes; i++) {
+            String[] values = new String[valuesPerAttribute];
+            for (int j = 0; j < valuesPerAttribute; j++) {
+                values[j] = "value " + j + " of attribute " + i;
+            }
+            appendAttribute(sb, "attribute" + i, values);
+        }
+        
+        return sb.toString();
+    }
+
+    private static void appendAttribute(StringBuilder sb, String name, String... values) {
+        sb.append("userdetails.attribute.name=").append(name).append('\n');
+        
+        for (String value : values) {
+            sb.append("userdetails.attribute.value=").append(value).append('\n');
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apius.server.identity.session.SessionProvisioner;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.ResourceException;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * A session provisioner that answers immediately and knows a single token, so that 
+ * benchmarks of the filters measure the filters and not the network. Counts the calls 
+ * it receives so that a benchmark can report how many reached the provisioner.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class StubSessionProvisioner implements SessionProvisioner {
+
+    private final String token;
+    private final AtomicLong calls;
+
+    /**
+     * Constructor
+     * 
+     * @param token the only token that is valid and authorized for everything
+     */
+    public StubSessionProvisioner(String token) {
+        this.token = token;
+        this.calls = new AtomicLong();
+    }
+
+    public String createSession(Form form) {
+        calls.incrementAndGet();
+        
+        return token;
+    }
+
+    public Representation getAttributes(String token) {
+        return getAttributes(token, MediaType.TEXT_PLAIN);
+    }
+
+    public Representation getAttributes(String token, MediaType mediaType) {
+        check(token);
+        
+        return new StringRepresentation(OpenAmPayloads.SMALL, mediaType);
+    }
+
+    public User authenticateToken(String token) {
+        check(token);
+        
+        return new User("pmorris");
+    }
+
+    public User refreshToken(String token) {
+        return authenticateToken(token);
+    }
+
+    public void logout(String token) {
+        calls.incrementAndGet();
+    }
+
+    public boolean isAuthorized(String token, String uri, String method) {
+        check(token);
+        
+        return true;
+    }
+
+    /**
+     * @return number of calls received
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    private void check(String token) {
+        calls.incrementAndGet();
+        
+        if (!this.token.equals(token)) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
+    }
+
+}
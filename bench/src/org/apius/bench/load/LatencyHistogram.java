@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A concurrent latency histogram in microseconds. Values below 2048 get a bucket of 
+ * their own; above that, every power of two is split into 1024 buckets, so percentiles
+ * are exact to within 0.1% from 1 microsecond to an hour. Recording is one atomic 
+ * increment and never allocates.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 1024;
+    private static final long MAX_VALUE = 3600L * 1000 * 1000;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+        this.count = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * @param micros latency, capped at an hour
+     * @return void
+     */
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        long current = max.get();
+        
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return largest value recorded in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value in microseconds that <code>percentile</code> percent of the 
+     *         recorded values are at or below
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        long value = 0;
+        
+        for (int i = 0; i < counts.length() && total > 0; i++) {
+            seen += counts.get(i);
+            
+            if (seen >= target) {
+                value = Math.min(highestValueOf(i), max.get());
+                break;
+            }
+        }
+        
+        return value;
+    }
+
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - 11);
+        
+        return (shift == 0) ? (int) value : 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValueOf(int index) {
+        long value = index;
+        
+        if (index >= 2 * SUB_BUCKETS) {
+            int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long subBucket = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            value = ((subBucket + 1) << shift) - 1;
+        }
+        
+        return value;
+    }
+
+}
@@ -0,0 +1,473 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Open loop load generator for the session API. Requests are started at a fixed rate
+ * whether or not earlier ones have completed, the way independent clients arrive, and 
+ * each request's response time is measured from the moment it was due to start rather
+ * than from the moment a worker thread got round to sending it. A server that stalls 
+ * therefore shows up in the percentiles with every request that queued up behind the 
+ * stall, instead of with the single slow request a closed loop client would have 
+ * measured while it waited ("coordinated omission"). Service time, measured from the 
+ * actual send, is reported alongside to tell the two apart.
+ * </p>
+ * <p>
+ * Operations are picked at random according to a mix of:
+ * </p>
+ * <p>
+ * <code>login</code> POST /session with a username/password form<br/>
+ * <code>validate</code> PUT /session<br/>
+ * <code>attributes</code> GET /session<br/>
+ * <code>authorize</code> POST /session/authorizations with one GET=uri pair<br/>
+ * <code>logout</code> DELETE /session
+ * </p>
+ * <p>
+ * against a fixed number of session slots filled by logins before the run starts. 
+ * Logins replace the token of a random slot and logouts empty it; an operation that 
+ * needs a token and lands on an empty slot logs in instead. 
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class LoadGenerator {
+
+    private static final String[] OPERATIONS = { "login", "validate", "attributes", "authorize", "logout" };
+    private static final int LOGIN = 0;
+    private static final int VALIDATE = 1;
+    private static final int ATTRIBUTES = 2;
+    private static final int AUTHORIZE = 3;
+    private static final int LOGOUT = 4;
+
+    private final String sessionUri;
+    private final String authorizationsUri;
+    private final String authorizeForm;
+    private final int timeout;
+    private final int[] mix;
+    private final AtomicReferenceArray<String> sessions;
+    private final LatencyHistogram[] responseTimes;
+    private final LatencyHistogram[] serviceTimes;
+    private final AtomicLong[] errors;
+    private final ConcurrentHashMap<String, AtomicLong> errorStatuses;
+    private final ThreadLocal<Random> random;
+
+    /**
+     * Constructor
+     * 
+     * @param baseUri e.g. <code>http://localhost:8182/identity</code>
+     * @param mix relative weight of each operation, in the order login, validate, 
+     *        attributes, authorize, logout
+     * @param sessions number of session slots
+     * @param authorizeUri URI the authorize operation asks about
+     * @param timeout milliseconds a request may take before it fails
+     * @throws IOException
+     */
+    public LoadGenerator(String baseUri, int[] mix, int sessions, String authorizeUri, int timeout) throws IOException {
+        this.sessionUri = baseUri + "/session";
+        this.authorizationsUri = baseUri + "/session/authorizations";
+        this.authorizeForm = "GET=" + URLEncoder.encode(authorizeUri, "UTF-8");
+        this.timeout = timeout;
+        this.mix = new int[OPERATIONS.length];
+        this.sessions = new AtomicReferenceArray<String>(sessions);
+        this.responseTimes = new LatencyHistogram[OPERATIONS.length];
+        this.serviceTimes = new LatencyHistogram[OPERATIONS.length];
+        this.errors = new AtomicLong[OPERATIONS.length];
+        this.errorStatuses = new ConcurrentHashMap<String, AtomicLong>();
+        this.random = new ThreadLocal<Random>() {
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+        
+        for (int i = 0, total = 0; i < OPERATIONS.length; i++) {
+            total += mix[i];
+            this.mix[i] = total;
+            this.responseTimes[i] = new LatencyHistogram();
+            this.serviceTimes[i] = new LatencyHistogram();
+            this.errors[i] = new AtomicLong();
+        }
+        if (this.mix[OPERATIONS.length - 1] <= 0) {
+            throw new IllegalArgumentException("The mix must have at least one operation");
+        }
+    }
+
+    /**
+     * Fills the session slots, then starts <code>rate</code> operations per second for 
+     * <code>warmup</code> plus <code>duration</code> seconds and waits for them to 
+     * complete. Only operations due after the warm up are recorded.
+     * 
+     * @param rate operations per second
+     * @param warmup seconds
+     * @param duration seconds
+     * @param threads number of concurrent requests at most; requests due while all are 
+     *        busy wait for one, and the wait counts towards their response time
+     * @return number of operations that were still waiting for a thread when the last 
+     *         one was due
+     * @throws InterruptedException
+     */
+    public int run(double rate, int warmup, int duration, int threads) throws InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+                                                             new LinkedBlockingQueue<Runnable>());
+        
+        for (int slot = 0; slot < sessions.length(); slot++) {
+            final int session = slot;
+            executor.execute(new Runnable() {
+                public void run() {
+                    sessions.set(session, login(session));
+                }
+            });
+        }
+        awaitIdle(executor);
+        
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+        double period = TimeUnit.SECONDS.toNanos(1) / rate;
+        int backlog;
+        
+        for (long i = 0; ; i++) {
+            final long intendedStart = start + (long) (i * period);
+            
+            if (intendedStart >= end) {
+                break;
+            }
+            
+            long delay = intendedStart - System.nanoTime();
+            
+            while (delay > 0) {
+                LockSupport.parkNanos(delay);
+                delay = intendedStart - System.nanoTime();
+            }
+            
+            final boolean measured = intendedStart >= measureStart;
+            executor.execute(new Runnable() {
+                public void run() {
+                    execute(intendedStart, measured);
+                }
+            });
+        }
+        backlog = executor.getQueue().size();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.MINUTES);
+        
+        return backlog;
+    }
+
+    /**
+     * @param duration seconds measured
+     * @return the report, one line per operation
+     */
+    public String report(int duration) {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        long totalErrors = 0;
+        
+        sb.append("Response time (from intended start), milliseconds\n");
+        appendTable(sb, responseTimes, duration);
+        sb.append("\nService time (from actual send), milliseconds\n");
+        appendTable(sb, serviceTimes, duration);
+        
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            total += responseTimes[i].getCount();
+            totalErrors += errors[i].get();
+        }
+        sb.append(String.format("\nTotal %d operations, %.1f/s, %d errors%n", total, (double) total / duration, totalErrors));
+        
+        for (Map.Entry<String, AtomicLong> error : new TreeMap<String, AtomicLong>(errorStatuses).entrySet()) {
+            sb.append(String.format("  %-24s %d%n", error.getKey(), error.getValue().get()));
+        }
+        
+        return sb.toString();
+    }
+
+    /**
+     * Usage: <code>LoadGenerator [-u baseUri] [-r opsPerSecond] [-d seconds] [-w warmupSeconds] 
+     * [-t threads] [-s sessions] [-m login=5,validate=60,attributes=10,authorize=20,logout=5] 
+     * [-a authorizeUri] [-o timeoutMs]</code>. Defaults: <code>http://localhost:8182/identity
+     * </code>, 500 operations per second for 30 seconds after 5 seconds of warm up, 256 
+     * threads, 1000 sessions, the mix shown, <code>http://api.apius.org/orders/1</code> and 
+     * 5000 milliseconds.
+     * 
+     * @param args
+     * @return void
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String baseUri = "http://localhost:8182/identity";
+        double rate = 500;
+        int duration = 30;
+        int warmup = 5;
+        int threads = 256;
+        int sessions = 1000;
+        String mix = "login=5,validate=60,attributes=10,authorize=20,logout=5";
+        String authorizeUri = "http://api.apius.org/orders/1";
+        int timeout = 5000;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            
+            if ("-u".equals(args[i])) {
+                baseUri = value;
+            } else if ("-r".equals(args[i])) {
+                rate = Double.parseDouble(value);
+            } else if ("-d".equals(args[i])) {
+                duration = Integer.parseInt(value);
+            } else if ("-w".equals(args[i])) {
+                warmup = Integer.parseInt(value);
+            } else if ("-t".equals(args[i])) {
+                threads = Integer.parseInt(value);
+            } else if ("-s".equals(args[i])) {
+                sessions = Integer.parseInt(value);
+            } else if ("-m".equals(args[i])) {
+                mix = value;
+            } else if ("-a".equals(args[i])) {
+                authorizeUri = value;
+            } else if ("-o".equals(args[i])) {
+                timeout = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        
+        // HttpURLConnection keeps at most http.maxConnections idle connections per host. Keep 
+        // alive must stay on: the Restlet internal server never answers "Connection: close". 
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(threads));
+        }
+        
+        LoadGenerator loadGenerator = new LoadGenerator(baseUri, parseMix(mix), sessions, authorizeUri, timeout);
+        System.out.printf("%s: %.0f ops/s for %d s (+%d s warm up), %d threads, %d sessions, mix %s%n", 
+                          baseUri, rate, duration, warmup, threads, sessions, mix);
+        
+        int backlog = loadGenerator.run(rate, warmup, duration, threads);
+        System.out.println();
+        System.out.print(loadGenerator.report(duration));
+        
+        if (backlog > threads) {
+            System.out.println("\n" + backlog + " operations were queued behind busy threads at the end of the run: " 
+                               + "the service did not keep up with the rate");
+        }
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        
+        for (String weight : mix.split(",")) {
+            String[] pair = weight.trim().split("=");
+            int operation = -1;
+            
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (OPERATIONS[i].equals(pair[0])) {
+                    operation = i;
+                }
+            }
+            if (operation < 0 || pair.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + weight);
+            }
+            weights[operation] = Integer.parseInt(pair[1]);
+        }
+        
+        return weights;
+    }
+
+    private void execute(long intendedStart, boolean measured) {
+        Random random = this.random.get();
+        int slot = random.nextInt(sessions.length());
+        int pick = random.nextInt(mix[OPERATIONS.length - 1]);
+        int operation = 0;
+        
+        while (pick >= mix[operation]) {
+            operation++;
+        }
+        
+        String token = (operation == LOGOUT) ? sessions.getAndSet(slot, null) : sessions.get(slot);
+        long sendStart = System.nanoTime();
+        int status;
+        
+        if (token == null || operation == LOGIN) {
+            operation = LOGIN;
+            String[] loggedIn = new String[1];
+            status = call("POST", sessionUri, null, "username=user" + slot + "&password=secret", loggedIn);
+            
+            if (loggedIn[0] != null) {
+                sessions.set(slot, loggedIn[0]);
+            }
+        } else if (operation == VALIDATE) {
+            status = call("PUT", sessionUri, token, "", null);
+        } else if (operation == ATTRIBUTES) {
+            status = call("GET", sessionUri, token, null, null);
+        } else if (operation == AUTHORIZE) {
+            status = call("POST", authorizationsUri, token, authorizeForm, null);
+        } else {
+            status = call("DELETE", sessionUri, token, null, null);
+        }
+        
+        long now = System.nanoTime();
+        
+        if (measured) {
+            responseTimes[operation].record((now - intendedStart) / 1000);
+            serviceTimes[operation].record((now - sendStart) / 1000);
+            
+            if (status < 200 || status >= 300) {
+                errors[operation].incrementAndGet();
+                countError(OPERATIONS[operation] + " " + ((status < 0) ? "I/O error" : String.valueOf(status)));
+            }
+        }
+    }
+
+    private String login(int slot) {
+        String[] loggedIn = new String[1];
+        call("POST", sessionUri, null, "username=user" + slot + "&password=secret", loggedIn);
+        
+        return loggedIn[0];
+    }
+
+    /**
+     * @return the status code, or -1 if the request failed; the token of the session 
+     *         cookie, if any, is stored in <code>cookieToken[0]</code>
+     */
+    private int call(String method, String uri, String token, String form, String[] cookieToken) {
+        int status = -1;
+        HttpURLConnection connection = null;
+        
+        try {
+            connection = (HttpURLConnection) new URL(uri).openConnection();
+            connection.setRequestMethod(method);
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            
+            if (token != null) {
+                connection.setRequestProperty("Authorization", "APIUS token=" + token);
+            }
+            if (form != null) {
+                byte[] entity = form.getBytes("UTF-8");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(entity.length);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = connection.getOutputStream();
+                out.write(entity);
+                out.close();
+            }
+            
+            status = connection.getResponseCode();
+            
+            if (cookieToken != null) {
+                cookieToken[0] = parseCookieToken(connection.getHeaderField("Set-Cookie"));
+            }
+            
+            // The body must be read to the end for the connection to be reused 
+            drain((status >= 400) ? connection.getErrorStream() : connection.getInputStream());
+        } catch (IOException e) {
+            status = -1;
+            
+            if (connection != null) {
+                try {
+                    drain(connection.getErrorStream());
+                } catch (IOException ignored) {
+                    connection.disconnect();
+                }
+            }
+        }
+        
+        return status;
+    }
+
+    private static String parseCookieToken(String cookie) {
+        String token = null;
+        int start = (cookie != null) ? cookie.indexOf("token=") : -1;
+        
+        if (start >= 0) {
+            int end = start + "token=".length();
+            
+            while (end < cookie.length() && cookie.charAt(end) != ';' && cookie.charAt(end) != '"') {
+                end++;
+            }
+            token = cookie.substring(start + "token=".length(), end);
+        }
+        
+        return token;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in != null) {
+            byte[] buffer = new byte[8192];
+            
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+            in.close();
+        }
+    }
+
+    private static void awaitIdle(ThreadPoolExecutor executor) throws InterruptedException {
+        while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void countError(String key) {
+        AtomicLong count = errorStatuses.get(key);
+        
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = errorStatuses.putIfAbsent(key, newCount);
+            count = (count != null) ? count : newCount;
+        }
+        count.incrementAndGet();
+    }
+
+    private void appendTable(StringBuilder sb, LatencyHistogram[] histograms, int duration) {
+        sb.append(String.format("%-11s %9s %7s %9s %9s %9s %9s %9s %9s%n", 
+                                "operation", "count", "errors", "ops/s", "p50", "p90", "p99", "p99.9", "max"));
+        
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            sb.append(String.format("%-11s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", 
+                                    OPERATIONS[i], histogram.getCount(), errors[i].get(), 
+                                    (double) histogram.getCount() / duration,
+                                    histogram.getValueAtPercentile(50) / 1000.0, 
+                                    histogram.getValueAtPercentile(90) / 1000.0,
+                                    histogram.getValueAtPercentile(99) / 1000.0, 
+                                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                                    histogram.getMax() / 1000.0));
+        }
+    }
+
+}
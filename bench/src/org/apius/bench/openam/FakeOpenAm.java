@@ -0,0 +1,304 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.bench.openam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apius.bench.OpenAmPayloads;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * A stand-in for the <a href="forgerock.com/openam.html">OpenAM</a> identity REST services
+ * the <code>SessionProvisionerProxy</code> calls, for load testing the identity component 
+ * without a real OpenAM. It answers <code>/openam/identity/authenticate</code>, <code>
+ * isTokenValid</code>, <code>attributes</code>, <code>authorize</code> and <code>logout</code>
+ * in the text formats <code>ResponseHelper</code> parses, with tokens shaped like OpenAM's.
+ * </p>
+ * <p>
+ * Every password but "wrong" is accepted. Sessions last until they are logged out. Every
+ * valid session is authorized for every URI except those containing "/denied/". Unknown 
+ * tokens get "boolean=false" from <code>isTokenValid</code> and 401 from the others.
+ * </p>
+ * <p>
+ * Configurable, see <code>main</code>: the latency of every answer, a fixed part plus a
+ * uniformly distributed random part; the fraction of calls that fail with 500; and the 
+ * number of roles, extra attributes and values per attribute of the attributes response.
+ * Each answer holds one of the server's worker threads for its latency, as a slow OpenAM 
+ * would hold a connection.
+ * </p>
+ * <p>
+ * It runs on the JDK's own HTTP server rather than a Restlet connector, so that the 
+ * connector under test is only ever the identity component's.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class FakeOpenAm implements HttpHandler {
+
+    private static final String PATH = "/openam/identity/";
+
+    private final ConcurrentHashMap<String, String> sessions;
+    private final SecureRandom tokenGenerator;
+    private final String attributesTemplate;
+    private final long latency;
+    private final long jitter;
+    private final double errorRate;
+    private final AtomicLong requests;
+    private final AtomicLong errors;
+
+    /**
+     * Constructor
+     * 
+     * @param latency fixed part of the response time in milliseconds
+     * @param jitter random part of the response time in milliseconds
+     * @param errorRate fraction of calls that fail with 500, between 0 and 1
+     * @param roles number of roles in the attributes response
+     * @param attributes number of attributes on top of the 9 every user has
+     * @param values number of values of each extra attribute
+     */
+    public FakeOpenAm(long latency, long jitter, double errorRate, int roles, int attributes, int values) {
+        this.sessions = new ConcurrentHashMap<String, String>();
+        this.tokenGenerator = new SecureRandom();
+        this.attributesTemplate = OpenAmPayloads.attributes(roles, attributes, values);
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+        this.requests = new AtomicLong();
+        this.errors = new AtomicLong();
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        
+        Random random = new Random();
+        sleep(latency + ((jitter > 0) ? (long) (random.nextDouble() * jitter) : 0));
+        
+        String path = exchange.getRequestURI().getPath();
+        String operation = path.startsWith(PATH) ? path.substring(PATH.length()) : "";
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        Map<String, String> form = parseForm(readEntity(exchange.getRequestBody()));
+        String token = query.get("subjectid");
+        
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            respond(exchange, 500, "Internal error");
+        } else if ("authenticate".equals(operation) && "POST".equals(exchange.getRequestMethod())) {
+            authenticate(exchange, form);
+        } else if ("isTokenValid".equals(operation)) {
+            respond(exchange, 200, "boolean=" + sessions.containsKey(String.valueOf(query.get("tokenid"))));
+        } else if ("attributes".equals(operation)) {
+            String username = (token != null) ? sessions.get(token) : null;
+            
+            if (username != null) {
+                respond(exchange, 200, attributesTemplate.replace(OpenAmPayloads.TOKEN, token).replace("pmorris", username));
+            } else {
+                respond(exchange, 401, "Invalid session ID");
+            }
+        } else if ("authorize".equals(operation)) {
+            String uri = query.containsKey("uri") ? query.get("uri") : "";
+            
+            if (token != null && sessions.containsKey(token)) {
+                respond(exchange, 200, "boolean=" + !uri.contains("/denied/"));
+            } else {
+                respond(exchange, 401, "Invalid session ID");
+            }
+        } else if ("logout".equals(operation)) {
+            if (token != null && sessions.remove(token) != null) {
+                respond(exchange, 200, "");
+            } else {
+                respond(exchange, 401, "Invalid session ID");
+            }
+        } else {
+            respond(exchange, 404, "Not found");
+        }
+    }
+
+    /**
+     * @return number of calls received
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of calls failed on purpose
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return number of sessions not logged out
+     */
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Usage: <code>FakeOpenAm [-p port] [-l latencyMs] [-j jitterMs] [-e errorRate] 
+     * [-r roles] [-a attributes] [-v values] [-t threads]</code>. Defaults: port 8090,
+     * 5 ms latency, no jitter, no errors, 20 roles, 20 attributes of 2 values, 512 threads.
+     * The OpenAM base URI is then <code>http://host:port/openam</code>.
+     * 
+     * @param args
+     * @return void
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int port = 8090;
+        long latency = 5;
+        long jitter = 0;
+        double errorRate = 0;
+        int roles = 20;
+        int attributes = 20;
+        int values = 2;
+        int threads = 512;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            
+            if ("-p".equals(args[i])) {
+                port = Integer.parseInt(value);
+            } else if ("-l".equals(args[i])) {
+                latency = Long.parseLong(value);
+            } else if ("-j".equals(args[i])) {
+                jitter = Long.parseLong(value);
+            } else if ("-e".equals(args[i])) {
+                errorRate = Double.parseDouble(value);
+            } else if ("-r".equals(args[i])) {
+                roles = Integer.parseInt(value);
+            } else if ("-a".equals(args[i])) {
+                attributes = Integer.parseInt(value);
+            } else if ("-v".equals(args[i])) {
+                values = Integer.parseInt(value);
+            } else if ("-t".equals(args[i])) {
+                threads = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        
+        final FakeOpenAm fakeOpenAm = new FakeOpenAm(latency, jitter, errorRate, roles, attributes, values);
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext(PATH, fakeOpenAm);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        System.out.println("Fake OpenAM listening on http://localhost:" + port + "/openam");
+        
+        while (true) {
+            long requests = fakeOpenAm.getRequests();
+            Thread.sleep(10000);
+            System.out.printf("%d calls/s, %d sessions, %d errors%n", 
+                              (fakeOpenAm.getRequests() - requests) / 10, fakeOpenAm.getSessions(), fakeOpenAm.getErrors());
+        }
+    }
+
+    private void authenticate(HttpExchange exchange, Map<String, String> form) throws IOException {
+        String username = form.get("username");
+        String password = form.get("password");
+        
+        if (username == null || password == null || "wrong".equals(password)) {
+            respond(exchange, 401, "Authentication Failed");
+        } else {
+            String token = generateToken();
+            sessions.put(token, username);
+            respond(exchange, 200, "token.id=" + token);
+        }
+    }
+
+    private String generateToken() {
+        StringBuilder sb = new StringBuilder("AQIC5wM2LY4Sfc");
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        
+        for (int i = 0; i < 40; i++) {
+            sb.append(alphabet.charAt(tokenGenerator.nextInt(alphabet.length())));
+        }
+        
+        return sb.append(".*AAJTSQACMDE.*").toString();
+    }
+
+    private static Map<String, String> parseForm(String encoded) throws UnsupportedEncodingException {
+        Map<String, String> form = new HashMap<String, String>();
+        
+        if (encoded != null && encoded.length() > 0) {
+            for (String pair : encoded.split("&")) {
+                int equals = pair.indexOf('=');
+                
+                if (equals > 0) {
+                    form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), 
+                             URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        
+        return form;
+    }
+
+    private static String readEntity(InputStream in) throws IOException {
+        ByteArrayOutputStream entity = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            entity.write(buffer, 0, read);
+        }
+        in.close();
+        
+        return entity.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] entity = (text + "\n").getBytes("UTF-8");
+        
+        exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=UTF-8");
+        exchange.sendResponseHeaders(status, entity.length);
+        
+        OutputStream out = exchange.getResponseBody();
+        out.write(entity);
+        out.close();
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.bench.startup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.restlet.engine.util.Base64;
+
+/**
+ * <p>
+ * Measures how long an identity node takes to come up: the command is started as a new 
+ * process and the probe URI is requested every 10 milliseconds until it answers 200, 
+ * which is what a load balancer health check would wait for. The time includes starting 
+ * the JVM, so it is the cold start an autoscaled node pays. The process is then killed 
+ * and the next run started.
+ * </p>
+ * <p>
+ * The probe must not depend on OpenAM; <code>/identity/metrics</code> does not. It is 
+ * behind HTTP Basic, so the node must be given a metrics password and the timer the same
+ * credentials.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class StartupTimer {
+
+    private static final long PROBE_INTERVAL = 10;
+
+    private final String probeUri;
+    private final String authorization;
+    private final long timeout;
+
+    private StartupTimer(String probeUri, String credentials, long timeout) throws IOException {
+        this.probeUri = probeUri;
+        this.authorization = (credentials != null) ? "Basic " + Base64.encode(credentials.getBytes("UTF-8"), false) : null;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param command
+     * @return milliseconds from starting the process to the first 200, -1 if it never came
+     * @throws Exception
+     */
+    private long time(List<String> command) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + timeout * 1000000L;
+        long elapsed = -1;
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        
+        drain(process.getInputStream());
+        try {
+            while (elapsed < 0 && System.nanoTime() < deadline && isRunning(process)) {
+                if (isUp()) {
+                    elapsed = (System.nanoTime() - start) / 1000000L;
+                } else {
+                    Thread.sleep(PROBE_INTERVAL);
+                }
+            }
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+        
+        return elapsed;
+    }
+
+    private boolean isUp() {
+        boolean isUp = false;
+        
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(probeUri).openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(5000);
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            isUp = connection.getResponseCode() == 200;
+            connection.disconnect();
+        } catch (IOException e) {
+            // Not listening yet
+        }
+        
+        return isUp;
+    }
+
+    private static boolean isRunning(Process process) {
+        boolean isRunning;
+        
+        try {
+            process.exitValue();
+            isRunning = false;
+        } catch (IllegalThreadStateException e) {
+            isRunning = true;
+        }
+        
+        return isRunning;
+    }
+
+    private static void drain(final InputStream in) {
+        Thread drainer = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[8192];
+                
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // The node's log is not needed
+                    }
+                } catch (IOException e) {
+                    // Process gone
+                }
+            }
+        }, "apius-startup-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Usage: <code>StartupTimer [-u probeUri] [-a username:password] [-n runs] [-o timeoutMs] 
+     * -- command [args]</code>. Defaults: <code>http://localhost:8182/identity/metrics</code>, 
+     * no credentials, 5 runs and 60000 milliseconds. Prints every run, then the minimum and 
+     * median.
+     * 
+     * @param args
+     * @return void
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String probeUri = "http://localhost:8182/identity/metrics";
+        String credentials = null;
+        int runs = 5;
+        long timeout = 60000;
+        int i = 0;
+        
+        for (; i + 1 < args.length && !"--".equals(args[i]); i += 2) {
+            String value = args[i + 1];
+            
+            if ("-u".equals(args[i])) {
+                probeUri = value;
+            } else if ("-a".equals(args[i])) {
+                credentials = value;
+            } else if ("-n".equals(args[i])) {
+                runs = Integer.parseInt(value);
+            } else if ("-o".equals(args[i])) {
+                timeout = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (i >= args.length || !"--".equals(args[i]) || i + 1 == args.length) {
+            throw new IllegalArgumentException("The command to time must follow --");
+        }
+        
+        StartupTimer timer = new StartupTimer(probeUri, credentials, timeout);
+        List<String> command = Arrays.asList(args).subList(i + 1, args.length);
+        long[] times = new long[runs];
+        
+        for (int run = 0; run < runs; run++) {
+            times[run] = timer.time(command);
+            System.out.println("run " + (run + 1) + ": " + ((times[run] < 0) ? "did not start" : times[run] + " ms"));
+            if (times[run] < 0) {
+                System.exit(1);
+            }
+        }
+        Arrays.sort(times);
+        System.out.println("min " + times[0] + " ms, median " + times[runs / 2] + " ms");
+    }
+
+}
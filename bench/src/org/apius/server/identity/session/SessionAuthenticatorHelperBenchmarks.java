@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apius.bench.Benchmark;
+import org.apius.bench.OpenAmPayloads;
+import org.restlet.data.ChallengeResponse;
+
+/**
+ * <p>
+ * Cost of extracting the token from an <code>Authorization: APIUS token=...</code> header,
+ * which every authenticated request pays.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SessionAuthenticatorHelperBenchmarks {
+
+    private SessionAuthenticatorHelperBenchmarks() {
+    }
+
+    /**
+     * @return the benchmarks
+     */
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.add(new Benchmark("SessionAuthenticatorHelper.parseResponse") {
+            private final SessionAuthenticatorHelper helper = new SessionAuthenticatorHelper();
+            private final ChallengeResponse challengeResponse = new ChallengeResponse(SessionAuthenticatorHelper.APIUS);
+            private final String rawValue = "token=" + OpenAmPayloads.TOKEN;
+            
+            @Override
+            public Object run() {
+                challengeResponse.setRawValue(rawValue);
+                helper.parseResponse(challengeResponse, null, null);
+                
+                return challengeResponse.getRawValue();
+            }
+        });
+        
+        return benchmarks;
+    }
+
+}
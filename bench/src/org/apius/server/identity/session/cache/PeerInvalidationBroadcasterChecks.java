@@ -0,0 +1,215 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.cache;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apius.bench.Check;
+
+/**
+ * <p>
+ * Behaviour of <code>PeerInvalidationBroadcaster</code> over the loopback interface:
+ * delivery to the local listeners, surviving a listener that throws, and dropping badly 
+ * signed and stale datagrams. The datagrams of the latter are built here, following the 
+ * layout documented by the broadcaster.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class PeerInvalidationBroadcasterChecks {
+
+    private static final String SECRET = "secret-of-the-peer-checks";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long WAIT = 2000;
+
+    private PeerInvalidationBroadcasterChecks() {
+    }
+
+    /**
+     * @return the checks
+     */
+    public static List<Check> create() {
+        List<Check> checks = new ArrayList<Check>();
+        
+        checks.add(new Check("PeerInvalidationBroadcaster.deliver") {
+            @Override
+            public void run() throws Exception {
+                RecordingListener listener = new RecordingListener();
+                PeerInvalidationBroadcaster receiver = createReceiver(listener);
+                PeerInvalidationBroadcaster sender = createSender(receiver);
+                
+                try {
+                    sender.invalidate("token-a");
+                    check(listener.await("token-a"), "a token sent by a peer is invalidated locally");
+                    check(sender.getSent() == 1, "one datagram is sent per peer");
+                    check(receiver.getReceived() == 1, "the received invalidation is counted");
+                } finally {
+                    sender.shutdown();
+                    receiver.shutdown();
+                }
+            }
+        });
+        checks.add(new Check("PeerInvalidationBroadcaster.ownDatagrams") {
+            @Override
+            public void run() throws Exception {
+                RecordingListener listener = new RecordingListener();
+                List<TokenInvalidationListener> listeners = Collections.<TokenInvalidationListener>singletonList(listener);
+                int port = findFreePort();
+                PeerInvalidationBroadcaster self = 
+                    new PeerInvalidationBroadcaster(listeners, port, Arrays.asList("127.0.0.1:" + port), SECRET);
+                
+                try {
+                    sendTo(self, datagram(SECRET, System.currentTimeMillis(), "token-a"));
+                    check(listener.await("token-a"), "a datagram of another node is applied");
+                    self.invalidate("token-b");
+                    Thread.sleep(200);
+                    check(self.getSent() == 1, "a node in its own peer list sends to itself");
+                    check(!listener.tokens.contains("token-b"), "a node ignores its own datagrams");
+                } finally {
+                    self.shutdown();
+                }
+            }
+        });
+        checks.add(new Check("PeerInvalidationBroadcaster.failingListener") {
+            @Override
+            public void run() throws Exception {
+                RecordingListener listener = new RecordingListener();
+                TokenInvalidationListener failing = new TokenInvalidationListener() {
+                    public void invalidate(String token) {
+                        throw new IllegalStateException("failing listener");
+                    }
+                };
+                List<TokenInvalidationListener> listeners = Arrays.asList(failing, listener);
+                PeerInvalidationBroadcaster receiver = new PeerInvalidationBroadcaster(listeners, 0, Collections.<String>emptyList(), SECRET);
+                PeerInvalidationBroadcaster sender = createSender(receiver);
+                
+                try {
+                    sender.invalidate("token-a");
+                    check(listener.await("token-a"), "the listeners after one that throws still invalidate the token");
+                    sender.invalidate("token-b");
+                    check(listener.await("token-b"), "the receiving thread survives a listener that throws");
+                    check(receiver.getListenerFailures() == 2, "every listener failure is counted");
+                } finally {
+                    sender.shutdown();
+                    receiver.shutdown();
+                }
+            }
+        });
+        checks.add(new Check("PeerInvalidationBroadcaster.rejected") {
+            @Override
+            public void run() throws Exception {
+                RecordingListener listener = new RecordingListener();
+                PeerInvalidationBroadcaster receiver = createReceiver(listener);
+                long now = System.currentTimeMillis();
+                
+                try {
+                    sendTo(receiver, datagram("another-secret-of-the-checks", now, "token-a"));
+                    sendTo(receiver, datagram(SECRET, now - 60000, "token-b"));
+                    sendTo(receiver, datagram(SECRET, now + 60000, "token-c"));
+                    sendTo(receiver, new byte[] { 2, 0, 0 });
+                    sendTo(receiver, datagram(SECRET, now, "token-d"));
+                    check(listener.await("token-d"), "a fresh datagram signed with the secret is applied");
+                    check(listener.tokens.size() == 1, "badly signed, stale, future and malformed datagrams are dropped");
+                    check(receiver.getRejected() == 4, "every dropped datagram is counted");
+                } finally {
+                    receiver.shutdown();
+                }
+            }
+        });
+        
+        return checks;
+    }
+
+    private static PeerInvalidationBroadcaster createReceiver(TokenInvalidationListener listener) throws Exception {
+        List<TokenInvalidationListener> listeners = Collections.singletonList(listener);
+        
+        return new PeerInvalidationBroadcaster(listeners, 0, Collections.<String>emptyList(), SECRET);
+    }
+
+    private static PeerInvalidationBroadcaster createSender(PeerInvalidationBroadcaster receiver) throws Exception {
+        List<TokenInvalidationListener> listeners = Collections.emptyList();
+        
+        return new PeerInvalidationBroadcaster(listeners, 0, Arrays.asList("127.0.0.1:" + receiver.getPort()), SECRET);
+    }
+
+    private static int findFreePort() throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        int port = socket.getLocalPort();
+        
+        socket.close();
+        
+        return port;
+    }
+
+    private static byte[] datagram(String secret, long sentAt, String token) throws Exception {
+        byte[] tokenBytes = token.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(19 + tokenBytes.length + 32);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        
+        buffer.put((byte) 2).putLong(-1L).putLong(sentAt).putShort((short) tokenBytes.length).put(tokenBytes);
+        mac.init(new SecretKeySpec(secret.getBytes(UTF_8), "HmacSHA256"));
+        mac.update(buffer.array(), 0, buffer.position());
+        buffer.put(mac.doFinal());
+        
+        return buffer.array();
+    }
+
+    private static void sendTo(PeerInvalidationBroadcaster receiver, byte[] bytes) throws Exception {
+        DatagramSocket socket = new DatagramSocket();
+        
+        try {
+            socket.send(new DatagramPacket(bytes, bytes.length, new InetSocketAddress("127.0.0.1", receiver.getPort())));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static final class RecordingListener implements TokenInvalidationListener {
+
+        private final List<String> tokens = new CopyOnWriteArrayList<String>();
+
+        public void invalidate(String token) {
+            tokens.add(token);
+        }
+
+        private boolean await(String token) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + WAIT;
+            
+            while (!tokens.contains(token) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            
+            return tokens.contains(token);
+        }
+
+    }
+
+}
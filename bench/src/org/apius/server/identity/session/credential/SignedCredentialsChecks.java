@@ -0,0 +1,340 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.credential;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apius.bench.Check;
+import org.apius.server.identity.session.openam.client.SessionAttributes;
+
+/**
+ * <p>
+ * Behaviour of <code>SignedCredentials</code> and of the <code>TokenDeadlines</code> it
+ * keeps its revocations in: the signature check, key rotation and retirement, revocation
+ * and failing closed once revocations or tracked tokens no longer fit.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SignedCredentialsChecks {
+
+    private static final String SECRET_1 = "first-secret-of-the-checks";
+    private static final String SECRET_2 = "second-secret-of-the-checks";
+    private static final ClaimsResolver CLAIMS_RESOLVER = new ClaimsResolver() {
+        @Override
+        public SessionAttributes getSessionAttributes(String token) {
+            Map<String, List<String>> attributes = new HashMap<String, List<String>>();
+
+            attributes.put("uid", Collections.singletonList("user-" + token));
+
+            return new SessionAttributes(token, Arrays.asList("reader", "writer"), attributes);
+        }
+    };
+
+    private SignedCredentialsChecks() {
+    }
+
+    /**
+     * @return the checks
+     */
+    public static List<Check> create() {
+        List<Check> checks = new ArrayList<Check>();
+
+        checks.add(new Check("SignedCredentials.verify.signed") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                String value = credentials.issue("token-a");
+                SignedCredential credential = credentials.verify(value);
+
+                check(SignedCredentials.isCredential(value), "an issued credential has the credential layout");
+                check(value.startsWith("apius1.k1."), "an issued credential names the current key");
+                check(credential != null, "an issued credential verifies");
+                check("token-a".equals(credential.getToken()), "the credential carries the token");
+                check("user-token-a".equals(credential.getIdentifier()), "the credential carries the identifier");
+                check(Arrays.asList("reader", "writer").equals(credential.getRoles()), "the credential carries the roles");
+                check(!credential.isExpired(System.currentTimeMillis()), "a new credential is not expired");
+            }
+        });
+        checks.add(new Check("SignedCredentials.verify.tampered") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                String value = credentials.issue("token-a");
+                int keyEnd = value.indexOf('.', "apius1.".length());
+                int payloadEnd = value.indexOf('.', keyEnd + 1);
+
+                check(credentials.verify(flip(value, keyEnd + 1)) == null, "a changed payload is refused");
+                check(credentials.verify(flip(value, payloadEnd + 1)) == null, "a changed hmac is refused");
+                check(credentials.verify(value.substring(0, payloadEnd)) == null, "a credential without hmac is refused");
+                check(credentials.verify(value.replace("apius1.k1.", "apius1.k9.")) == null, "an unknown key id is refused");
+                check(credentials.verify("apius1.") == null, "a bare prefix is refused");
+                check(credentials.verify("token-a") == null, "a token is not a credential");
+                check(credentials.verify(null) == null, "null is refused");
+            }
+        });
+        checks.add(new Check("SignedCredentials.verify.otherSecret") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                Map<String, String> keys = new HashMap<String, String>();
+
+                keys.put("k1", SECRET_2);
+
+                SignedCredentials forger = new SignedCredentials(CLAIMS_RESOLVER, keys, "k1", 60, 10, 10);
+
+                check(credentials.verify(forger.issue("token-a")) == null, "a credential signed with another secret under the same key id is refused");
+            }
+        });
+        checks.add(new Check("SignedCredentials.renew") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                SignedCredential credential = credentials.verify(credentials.issue("token-a"));
+                SignedCredential renewed = credentials.verify(credentials.renew(credential));
+
+                check(renewed != null, "a renewed credential verifies");
+                check("token-a".equals(renewed.getToken()), "a renewed credential carries the same token");
+                check("user-token-a".equals(renewed.getIdentifier()), "a renewed credential carries the same identifier");
+                check(credential.getRoles().equals(renewed.getRoles()), "a renewed credential carries the same roles");
+                check(renewed.getExpiresAt() >= credential.getExpiresAt(), "a renewed credential does not expire earlier");
+            }
+        });
+        checks.add(new Check("SignedCredentials.rotate") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                String old = credentials.issue("token-a");
+
+                credentials.rotate("k2", SECRET_2);
+
+                String current = credentials.issue("token-b");
+
+                check(current.startsWith("apius1.k2."), "new credentials are signed with the rotated key");
+                check(credentials.verify(current) != null, "credentials of the rotated key verify");
+                check(credentials.verify(old) != null, "credentials of the previous key still verify after a rotation");
+            }
+        });
+        checks.add(new Check("SignedCredentials.rotate.shortSecret") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                boolean refused = false;
+
+                try {
+                    credentials.rotate("k2", "short");
+                } catch (IllegalArgumentException e) {
+                    refused = true;
+                }
+                check(refused, "rotating to a short secret throws IllegalArgumentException");
+                check(credentials.issue("token-a").startsWith("apius1.k1."), "a refused rotation keeps the current key");
+            }
+        });
+        checks.add(new Check("SignedCredentials.retire") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                String old = credentials.issue("token-a");
+
+                credentials.rotate("k2", SECRET_2);
+
+                String current = credentials.issue("token-b");
+                boolean refused = false;
+
+                credentials.retire("k1");
+                check(credentials.verify(old) == null, "credentials of a retired key are refused");
+                check(credentials.verify(current) != null, "credentials of the current key still verify after a retirement");
+                try {
+                    credentials.retire("k2");
+                } catch (IllegalArgumentException e) {
+                    refused = true;
+                }
+                check(refused, "retiring the current key throws IllegalArgumentException");
+                check(credentials.verify(current) != null, "a refused retirement keeps the current key");
+            }
+        });
+        checks.add(new Check("SignedCredentials.constructor") {
+            @Override
+            public void run() {
+                Map<String, String> keys = new HashMap<String, String>();
+
+                keys.put("k1", SECRET_1);
+                check(refuses(keys, "k2"), "a current key id that is not one of the keys is refused");
+                keys.put("k2", "short");
+                check(refuses(keys, "k1"), "a secret shorter than 16 characters is refused");
+                keys.remove("k2");
+                keys.put("k.2", SECRET_2);
+                check(refuses(keys, "k1"), "a key id containing '.' is refused");
+                keys.remove("k.2");
+                keys.put("k2", null);
+                check(refuses(keys, "k1"), "a missing secret is refused");
+            }
+        });
+        checks.add(new Check("SignedCredentials.invalidate.seen") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                String value = credentials.issue("token-a");
+                String other = credentials.issue("token-b");
+
+                credentials.invalidate("token-a");
+                check(credentials.verify(value) == null, "the credentials of an invalidated token are refused");
+                check(credentials.verify(other) != null, "the credentials of other tokens still verify");
+            }
+        });
+        checks.add(new Check("SignedCredentials.invalidate.unseen") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(1, 10);
+                String value = createPeer().issue("token-x");
+
+                credentials.invalidate("made-up-1");
+                credentials.invalidate("made-up-2");
+                credentials.invalidate("token-x");
+
+                SignedCredential credential = credentials.verify(value);
+
+                check(credential != null, "invalidating a token this node never saw does not revoke it");
+                check(!credential.isExpired(System.currentTimeMillis()), "invalidating tokens this node never saw takes no revocation room");
+            }
+        });
+        checks.add(new Check("SignedCredentials.revoke") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 10);
+                String value = createPeer().issue("token-x");
+
+                credentials.revoke("token-x");
+                check(credentials.verify(value) == null, "a revoked token is refused even if this node never saw it");
+            }
+        });
+        checks.add(new Check("SignedCredentials.revoke.overflow") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(1, 10);
+                String revoked = credentials.issue("token-a");
+                String unremembered = credentials.issue("token-b");
+                String unrelated = credentials.issue("token-c");
+                long now = System.currentTimeMillis();
+
+                check(!credentials.verify(unrelated).isExpired(now), "credentials are trusted while revocations fit");
+                credentials.revoke("token-a");
+                credentials.revoke("token-b");
+                now = System.currentTimeMillis();
+                check(credentials.verify(revoked) == null, "a remembered revocation is still refused once revocations overflow");
+                check(credentials.verify(unremembered).isExpired(now), "a revocation that did not fit fails closed: its credentials are expired");
+                check(credentials.verify(unrelated).isExpired(now), "while revocations overflow, no credential is trusted");
+            }
+        });
+        checks.add(new Check("SignedCredentials.invalidate.overflow") {
+            @Override
+            public void run() {
+                SignedCredentials credentials = createCredentials(10, 1);
+                String value = createPeer().issue("token-x");
+
+                credentials.issue("token-a");
+                credentials.issue("token-b");
+                credentials.invalidate("token-x");
+                check(credentials.verify(value) == null, "while tracked tokens overflow, every invalidated token is revoked");
+            }
+        });
+        checks.add(new Check("TokenDeadlines.contains") {
+            @Override
+            public void run() {
+                TokenDeadlines deadlines = new TokenDeadlines(2);
+
+                check(deadlines.add("a", 5000, 1000), "a token is added while there is room");
+                check(deadlines.contains("a", 4999), "a token is held before its deadline");
+                check(!deadlines.contains("a", 5000), "a token is not held from its deadline on");
+                check(!deadlines.contains("b", 1000), "a token never added is not held");
+                check(deadlines.add("a", 3000, 1000), "adding a held token again succeeds");
+                check(deadlines.contains("a", 4000), "an earlier deadline does not shorten a held token");
+                check(deadlines.add("a", 8000, 1000), "extending a held token succeeds");
+                check(deadlines.contains("a", 7000), "a later deadline extends a held token");
+                check(deadlines.size() == 1, "a token is held once");
+            }
+        });
+        checks.add(new Check("TokenDeadlines.overflow") {
+            @Override
+            public void run() {
+                TokenDeadlines deadlines = new TokenDeadlines(1);
+
+                check(deadlines.add("a", 5000, 1000), "a token is added while there is room");
+                check(!deadlines.isOverflowed(1000), "the set is not overflowed while tokens fit");
+                check(!deadlines.add("b", 9000, 2000), "a token is not added when there is no room");
+                check(deadlines.contains("a", 2000), "no token is dropped before its deadline to make room");
+                check(!deadlines.contains("b", 2000), "a token that found no room is not held");
+                check(deadlines.isOverflowed(2000), "the set is overflowed once a token found no room");
+                check(deadlines.isOverflowed(8999), "the set is overflowed until the deadline of the token that found no room");
+                check(!deadlines.isOverflowed(9000), "the set is no longer overflowed after that deadline");
+            }
+        });
+        checks.add(new Check("TokenDeadlines.purge") {
+            @Override
+            public void run() {
+                TokenDeadlines deadlines = new TokenDeadlines(1);
+
+                check(deadlines.add("a", 2500, 1000), "a token is added while there is room");
+                check(!deadlines.add("b", 9000, 2000), "a token is not added while the held one has not expired");
+                check(!deadlines.add("b", 9000, 2600), "expired tokens are purged at most once a second");
+                check(deadlines.add("b", 9000, 3000), "expired tokens are purged to make room");
+                check(!deadlines.contains("a", 1000), "a purged token is no longer held");
+                check(deadlines.size() == 1, "purged tokens are removed");
+            }
+        });
+
+        return checks;
+    }
+
+    private static SignedCredentials createCredentials(int maxRevoked, int maxCredentialTokens) {
+        Map<String, String> keys = new HashMap<String, String>();
+
+        keys.put("k1", SECRET_1);
+
+        return new SignedCredentials(CLAIMS_RESOLVER, keys, "k1", 60, maxRevoked, maxCredentialTokens);
+    }
+
+    private static SignedCredentials createPeer() {
+        return createCredentials(10, 10);
+    }
+
+    private static boolean refuses(Map<String, String> keys, String currentKeyId) {
+        boolean refused = false;
+
+        try {
+            new SignedCredentials(CLAIMS_RESOLVER, keys, currentKeyId, 60, 10, 10);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+
+        return refused;
+    }
+
+    private static String flip(String value, int index) {
+        char c = value.charAt(index);
+
+        return value.substring(0, index) + ((c == 'A') ? 'B' : 'A') + value.substring(index + 1);
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.embedded;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apius.bench.Benchmark;
+import org.restlet.data.Form;
+
+/**
+ * <p>
+ * Cost of the <code>EmbeddedSessionProvisioner</code> operations the filters call on
+ * every request, over a table of 10,000 sessions, and of creating and logging out a 
+ * session.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class EmbeddedSessionProvisionerBenchmarks {
+
+    private static final int SESSIONS = 10000;
+
+    private EmbeddedSessionProvisionerBenchmarks() {
+    }
+
+    /**
+     * @return the benchmarks
+     */
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.add(new EmbeddedBenchmark("EmbeddedSessionProvisioner.authenticateToken") {
+            @Override
+            public Object run() {
+                return getProvisioner().authenticateToken(nextToken());
+            }
+        });
+        benchmarks.add(new EmbeddedBenchmark("EmbeddedSessionProvisioner.isAuthorized") {
+            @Override
+            public Object run() {
+                return getProvisioner().isAuthorized(nextToken(), "http://api.apius.org/orders/1", "GET");
+            }
+        });
+        benchmarks.add(new EmbeddedBenchmark("EmbeddedSessionProvisioner.createSession+logout") {
+            @Override
+            public Object run() {
+                String token = getProvisioner().createSession(getForm());
+                getProvisioner().logout(token);
+                
+                return token;
+            }
+        });
+        
+        return benchmarks;
+    }
+
+    private abstract static class EmbeddedBenchmark extends Benchmark {
+
+        private EmbeddedSessionProvisioner provisioner;
+        private Form form;
+        private String[] tokens;
+        private int next;
+
+        private EmbeddedBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() {
+            Map<String, List<String>> rules = 
+                Collections.singletonMap("Test Group", Arrays.asList("GET http://api.apius.org/"));
+            provisioner = new EmbeddedSessionProvisioner(
+                    Arrays.asList(new EmbeddedAccount("pmorris", "changeit", Arrays.asList("Test Group"))), 
+                    new EmbeddedPolicy(rules), 
+                    1800, 
+                    7200, 
+                    SESSIONS * 2);
+            form = new Form();
+            form.add("username", "pmorris");
+            form.add("password", "changeit");
+            tokens = new String[SESSIONS];
+            
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = provisioner.createSession(form);
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            provisioner.shutdown();
+        }
+
+        EmbeddedSessionProvisioner getProvisioner() {
+            return provisioner;
+        }
+
+        Form getForm() {
+            return form;
+        }
+
+        String nextToken() {
+            next = (next + 1 == tokens.length) ? 0 : next + 1;
+            
+            return tokens[next];
+        }
+    }
+
+}
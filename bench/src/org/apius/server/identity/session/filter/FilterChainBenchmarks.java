@@ -0,0 +1,174 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apius.bench.Benchmark;
+import org.apius.bench.OpenAmPayloads;
+import org.apius.bench.StubSessionProvisioner;
+import org.apius.server.identity.session.SessionAuthenticatorHelper;
+import org.apius.server.identity.session.SessionVerifier;
+import org.apius.server.identity.session.cache.AuthorizationCache;
+import org.apius.server.identity.session.cache.TokenCache;
+import org.apius.server.identity.session.embedded.EmbeddedAccount;
+import org.apius.server.identity.session.embedded.EmbeddedPolicy;
+import org.apius.server.identity.session.embedded.EmbeddedSessionProvisioner;
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.ChallengeResponse;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+
+/**
+ * <p>
+ * Cost of a request going through the <code>SessionAuthenticator</code> and the <code>
+ * SessionAuthorizer</code> to a protected resource that does nothing, as configured in
+ * <code>identityContext.xml</code>:
+ * </p>
+ * <p>
+ * <b>uncached</b> the <code>StubSessionProvisioner</code> is called to validate the token 
+ * and to authorize every request, so this is the cost of the filters themselves.<br>
+ * <b>cached</b> with the <code>TokenCache</code> and <code>AuthorizationCache</code>, as 
+ * in production once a token has been seen.<br>
+ * <b>embedded</b> against the <code>EmbeddedSessionProvisioner</code> without caches.
+ * </p>
+ * <p>
+ * Each operation builds its own <code>Request</code> and <code>Response</code>, as the 
+ * server connector would, and their allocation is included.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class FilterChainBenchmarks {
+
+    private static final String URI = "http://api.apius.org/orders/1";
+
+    private FilterChainBenchmarks() {
+    }
+
+    /**
+     * @return the benchmarks
+     */
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.add(new FilterChainBenchmark("FilterChain.uncached") {
+            @Override
+            public void setUp() {
+                StubSessionProvisioner provisioner = new StubSessionProvisioner(OpenAmPayloads.TOKEN);
+                
+                setUp(OpenAmPayloads.TOKEN, 
+                      new SessionVerifier(provisioner, null, null, null, null, null), 
+                      new SessionAuthorizer(provisioner, null, null, null, null));
+            }
+        });
+        benchmarks.add(new FilterChainBenchmark("FilterChain.cached") {
+            @Override
+            public void setUp() {
+                StubSessionProvisioner provisioner = new StubSessionProvisioner(OpenAmPayloads.TOKEN);
+                
+                setUp(OpenAmPayloads.TOKEN, 
+                      new SessionVerifier(provisioner, new TokenCache(10000, 60, 1800), null, null, null, null), 
+                      new SessionAuthorizer(provisioner, new AuthorizationCache(50000, 60, 10), null, null, null));
+            }
+        });
+        benchmarks.add(new FilterChainBenchmark("FilterChain.embedded") {
+            private EmbeddedSessionProvisioner provisioner;
+            
+            @Override
+            public void setUp() {
+                Map<String, List<String>> rules = 
+                    Collections.singletonMap("Test Group", Arrays.asList("GET http://api.apius.org/"));
+                provisioner = new EmbeddedSessionProvisioner(
+                        Arrays.asList(new EmbeddedAccount("pmorris", "changeit", Arrays.asList("Test Group"))), 
+                        new EmbeddedPolicy(rules), 
+                        1800, 
+                        7200, 
+                        1000);
+                
+                Form form = new Form();
+                form.add("username", "pmorris");
+                form.add("password", "changeit");
+                
+                setUp(provisioner.createSession(form), 
+                      new SessionVerifier(provisioner, null, null, null, null, null), 
+                      new SessionAuthorizer(provisioner, null, null, null, null));
+            }
+            
+            @Override
+            public void tearDown() {
+                provisioner.shutdown();
+            }
+        });
+        
+        return benchmarks;
+    }
+
+    private abstract static class FilterChainBenchmark extends Benchmark {
+
+        private SessionAuthenticator authenticator;
+        private String token;
+
+        private FilterChainBenchmark(String name) {
+            super(name);
+        }
+
+        void setUp(String token, SessionVerifier verifier, SessionAuthorizer authorizer) {
+            this.token = token;
+            this.authenticator = new SessionAuthenticator(new Context(), "nmpg", verifier, null, null);
+            
+            authorizer.setNext(new Restlet() {
+                @Override
+                public void handle(Request request, Response response) {
+                    response.setStatus(Status.SUCCESS_OK);
+                }
+            });
+            authenticator.setNext(authorizer);
+        }
+
+        @Override
+        public Object run() {
+            Request request = new Request(Method.GET, URI);
+            ChallengeResponse challengeResponse = new ChallengeResponse(SessionAuthenticatorHelper.APIUS);
+            Response response = new Response(request);
+            
+            challengeResponse.setRawValue(token);
+            request.setChallengeResponse(challengeResponse);
+            request.setOriginalRef(new Reference(URI));
+            authenticator.handle(request, response);
+            
+            if (!Status.SUCCESS_OK.equals(response.getStatus())) {
+                throw new IllegalStateException(getName() + " answered " + response.getStatus());
+            }
+            
+            return response;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.openam.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apius.bench.Benchmark;
+import org.apius.bench.OpenAmPayloads;
+import org.apius.server.identity.session.SessionMediaTypes;
+import org.restlet.data.MediaType;
+
+/**
+ * <p>
+ * Cost of turning an <a href="forgerock.com/openam.html">OpenAM</a> attributes response 
+ * into the model and of serializing the model in each of the <code>SessionMediaTypes
+ * </code>, for small, medium and large responses (see <code>OpenAmPayloads</code>). 
+ * "getAttributes.uncached" is the whole of <code>SessionProvisionerProxy.getAttributes
+ * </code> for a response that is not in the <code>RepresentationCache</code>, less the 
+ * call to OpenAM.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class ResponseHelperBenchmarks {
+
+    private ResponseHelperBenchmarks() {
+    }
+
+    /**
+     * @return the benchmarks
+     */
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        String[] names = { "small", "medium", "large" };
+        String[] payloads = { OpenAmPayloads.SMALL, OpenAmPayloads.MEDIUM, OpenAmPayloads.LARGE };
+        
+        for (int i = 0; i < payloads.length; i++) {
+            final String payload = payloads[i];
+            final ResponseHelper responseHelper = new ResponseHelper();
+            final SessionAttributes sessionAttributes = responseHelper.parseSessionAttributes(payload);
+            
+            benchmarks.add(new Benchmark("ResponseHelper.parseSessionAttributes." + names[i]) {
+                @Override
+                public Object run() {
+                    return responseHelper.parseSessionAttributes(payload);
+                }
+            });
+            benchmarks.add(new Benchmark("SessionAttributes.getUsername." + names[i]) {
+                @Override
+                public Object run() {
+                    return sessionAttributes.getUsername();
+                }
+            });
+            
+            for (final MediaType mediaType : SessionMediaTypes.supported) {
+                benchmarks.add(new Benchmark("ResponseHelper.writeSessionAttributes." + mediaType.getSubType() + "." + names[i]) {
+                    @Override
+                    public Object run() {
+                        return responseHelper.writeSessionAttributes(sessionAttributes, mediaType);
+                    }
+                });
+            }
+            benchmarks.add(new Benchmark("getAttributes.uncached.atom." + names[i]) {
+                @Override
+                public Object run() {
+                    byte[] bytes = responseHelper.writeSessionAttributes(responseHelper.parseSessionAttributes(payload), 
+                                                                         SessionMediaTypes.ATOM);
+                    
+                    return responseHelper.createRepresentation(bytes, SessionMediaTypes.ATOM);
+                }
+            });
+        }
+        
+        return benchmarks;
+    }
+
+}
@@ -0,0 +1,35 @@
+#!/bin/sh
+#
+# Compiles the identity sources and the benchmarks against ../lib and times the startup
+# of the JSE identity component, from launching the JVM to the first 200 from
+# /identity/metrics (with a throwaway metrics password), first wired by Spring from the XML contexts (JseComponentBootstrap)
+# and then wired in plain Java (JseIdentityBootstrap). Arguments are passed to
+# org.apius.bench.startup.StartupTimer before the command, e.g.
+#
+#   ./startup.sh -n 10
+#
+# Port 8182 must be free. JAVA_OPTS are used for both JVMs; on Java 9 and later Spring's
+# cglib proxies need JAVA_OPTS="--add-opens java.base/java.lang=ALL-UNNAMED". Spring reads
+# the identity classes with its own ASM, so on Java 8 and later compile them for an older
+# class file version, e.g. JAVAC_OPTS="--release 7".
+
+cd "$(dirname "$0")" || exit 1
+
+CLASSES=target/classes
+LIB="../lib/*"
+CONTEXTS=../projects/identity/src
+METRICS_PASSWORD=startup
+
+rm -rf "$CLASSES" && mkdir -p "$CLASSES" || exit 1
+javac $JAVAC_OPTS -nowarn -d "$CLASSES" -cp "$LIB" $(find ../src src -name '*.java') || exit 1
+
+echo "Spring XML contexts (JseComponentBootstrap)"
+java -cp "$CLASSES:$LIB" org.apius.bench.startup.StartupTimer -a "apius:$METRICS_PASSWORD" "$@" -- \
+    java $JAVA_OPTS -Dapius.metrics.password=$METRICS_PASSWORD -cp "$CLASSES:$LIB:$CONTEXTS" \
+    org.apius.server.JseComponentBootstrap jseIdentityContext.xml component \
+    || exit 1
+
+echo "Plain Java (JseIdentityBootstrap)"
+java -cp "$CLASSES:$LIB" org.apius.bench.startup.StartupTimer -a "apius:$METRICS_PASSWORD" "$@" -- \
+    java $JAVA_OPTS -Dapius.metrics.password=$METRICS_PASSWORD -cp "$CLASSES:$LIB" \
+    org.apius.server.JseIdentityBootstrap
@@ -18,6 +18,7 @@
 package org.apius.server;
 
 import org.restlet.Component;
+import org.restlet.Server;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.core.io.ClassPathResource;
@@ -28,6 +29,16 @@ import org.springframework.core.io.ClassPathResource;
  * then we need to point the application to our JSE-specific bean factory resource 
  * and we need to start the component manually.
  * </p>
+ * <p>
+ * Requests are handled on the server connector's worker threads and each one holds
+ * its thread while it waits on the session provisioner. The size of that pool is set
+ * by the server's <code>minThreads</code>, <code>maxThreads</code> and <code>
+ * threadMaxIdleTimeMs</code> parameters in the bean factory, and any of them can be 
+ * overridden on the command line without editing the XML, e.g. <code>maxThreads=512
+ * </code>. Setting <code>maxThreads</code> to <code>2147483647</code> gives every 
+ * request its own thread, so a slow provisioner never leaves requests waiting for 
+ * a free worker.
+ * </p>
  * 
  * @author Paul Morris
  * 
@@ -39,6 +50,9 @@ public class JseComponentBootstrap {
      * 1) Classpath to the bean factory.
      * 2) Name (ref) of the Restlet Component as indicated in the bean factory XML file.
      * 
+     * Optionally followed by any number of server connector parameters written as 
+     * name=value, which replace the values from the bean factory.
+     * 
      * @param path
      * @param name
      * @return void
@@ -52,8 +66,26 @@ public class JseComponentBootstrap {
         ApplicationContext context = new ClassPathXmlApplicationContext(resource.getPath());
         
         Component component = (Component) context.getBean(componentBean);
+        
+        for (int i = 2; i < args.length; i++) {
+            setServerParameter(component, args[i]);
+        }
         component.start();
     }
     
+    static void setServerParameter(Component component, String parameter) {
+        int index = parameter.indexOf('=');
+        
+        if (index < 1) {
+            throw new IllegalArgumentException("Server parameters must be written as name=value: " + parameter);
+        }
+        
+        for (Server server : component.getServers()) {
+            server.getContext().getParameters().set(parameter.substring(0, index), 
+                                                    parameter.substring(index + 1), 
+                                                    false);
+        }
+    }
+    
 }
  
@@ -0,0 +1,326 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apius.server.identity.session.BatchAuthorizer;
+import org.apius.server.identity.session.CircuitBreaker;
+import org.apius.server.identity.session.SessionAuthenticatorHelper;
+import org.apius.server.identity.session.SessionCookieTemplate;
+import org.apius.server.identity.session.SessionDefaults;
+import org.apius.server.identity.session.SessionVerifier;
+import org.apius.server.identity.session.UriCanonicalizer;
+import org.apius.server.identity.session.cache.AuthorizationCache;
+import org.apius.server.identity.session.cache.RefreshDebouncer;
+import org.apius.server.identity.session.cache.SessionAttributesPrefetcher;
+import org.apius.server.identity.session.cache.TokenCache;
+import org.apius.server.identity.session.cache.TokenCacheSnapshot;
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+import org.apius.server.identity.session.cache.TokenRevalidator;
+import org.apius.server.identity.session.filter.SessionAuthenticator;
+import org.apius.server.identity.session.metrics.MetricsAuthenticator;
+import org.apius.server.identity.session.metrics.MetricsImpl;
+import org.apius.server.identity.session.metrics.SessionMetrics;
+import org.apius.server.identity.session.openam.client.OpenAmTokenFormat;
+import org.apius.server.identity.session.openam.client.PooledClient;
+import org.apius.server.identity.session.openam.client.RepresentationCache;
+import org.apius.server.identity.session.openam.client.RequestCoalescer;
+import org.apius.server.identity.session.openam.client.ResponseHelper;
+import org.apius.server.identity.session.openam.client.SessionProvisionerProxy;
+import org.apius.server.identity.session.openam.server.SessionAuthorizationsImpl;
+import org.apius.server.identity.session.openam.server.SessionFinder;
+import org.restlet.Application;
+import org.restlet.Component;
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Server;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.engine.http.security.HttpBasicHelper;
+import org.restlet.engine.security.AuthenticatorHelper;
+import org.restlet.resource.Finder;
+import org.restlet.resource.ServerResource;
+import org.restlet.routing.Router;
+import org.restlet.routing.VirtualHost;
+
+/**
+ * <p>
+ * Builds, in plain Java, the component <code>JseComponentBootstrap</code> loads from
+ * <code>jseIdentityContext.xml</code> and <code>identityContext.xml</code>: the same
+ * engine authenticators, OpenAM proxy, caches, filters, resources and router, with the
+ * values both read from <code>SessionDefaults</code>. Nothing is parsed and no class is
+ * generated at startup, and resources are created by <code>Finder</code>s that call their
+ * constructors where Spring would look up a CGLIB proxied prototype bean, which makes
+ * this the faster way to bring up a node (see <code>bench/startup.sh</code>).
+ * </p>
+ * <p>
+ * The XML contexts remain the reference configuration and the way to change anything
+ * other than what this class takes: the OpenAM base URI from the <code>
+ * apius.openam.baseUri</code> system property and server connector parameters from the
+ * command line, written as name=value exactly as for <code>JseComponentBootstrap</code>.
+ * The token cache snapshot is only taken once the <code>apius.snapshot.directory</code> 
+ * and <code>apius.snapshot.secret</code> system properties are set.
+ * A default is changed in <code>SessionDefaults</code> and both paths pick it up. The
+ * beans the contexts leave unwired (asynchronous proxy, peer broadcaster, signed
+ * credentials, embedded provisioner) are left out, and so is <code>openAmAuthorizer
+ * </code>, which only the applications protected by these filters put in front of their
+ * resources.
+ * </p>
+ * <p>
+ * The services Spring would destroy are stopped by a shutdown hook, after the component.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class JseIdentityBootstrap {
+
+    private PooledClient openAmClient;
+    private TokenCacheSnapshot tokenCacheSnapshot;
+    private TokenRevalidator tokenRevalidator;
+    private RefreshDebouncer refreshDebouncer;
+    private SessionAttributesPrefetcher attributesPrefetcher;
+    private BatchAuthorizer batchAuthorizer;
+
+    /**
+     * Takes any number of server connector parameters written as name=value, which
+     * replace the defaults.
+     * 
+     * @param args
+     * @return void
+     */
+    public static void main(String[] args) throws Exception {
+        final JseIdentityBootstrap bootstrap = new JseIdentityBootstrap();
+        final Component component = bootstrap.createComponent();
+
+        for (String parameter : args) {
+            JseComponentBootstrap.setServerParameter(component, parameter);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    component.stop();
+                } catch (Exception e) {
+                    // Stopping anyway
+                }
+                bootstrap.shutdown();
+            }
+        }, "apius-shutdown"));
+        component.start();
+    }
+
+    /**
+     * @return the JSE identity component, not started
+     */
+    public Component createComponent() {
+        Component component = new Component();
+        component.setName("APIUS Identity Component - JSE");
+        component.setDescription("Authentication and authorization. Session management.");
+        component.setOwner("apius.org");
+        component.setAuthor("Paul Morris");
+
+        Server server = component.getServers().add(Protocol.HTTP, SessionDefaults.SERVER_PORT);
+        server.getContext().getParameters().add("minThreads",
+                                                String.valueOf(SessionDefaults.SERVER_MIN_THREADS));
+        server.getContext().getParameters().add("maxThreads",
+                                                String.valueOf(SessionDefaults.SERVER_MAX_THREADS));
+        server.getContext().getParameters().add("threadMaxIdleTimeMs",
+                                                String.valueOf(SessionDefaults.SERVER_THREAD_MAX_IDLE_TIME_MS));
+        component.getClients().add(Protocol.HTTP);
+
+        registerAuthenticators();
+
+        VirtualHost defaultHost = new VirtualHost(component.getContext().createChildContext());
+        defaultHost.attachDefault(createApplication(component.getContext().createChildContext()));
+        component.setDefaultHost(defaultHost);
+
+        return component;
+    }
+
+    /**
+     * Stops the services started by <code>createComponent</code>, in the reverse order
+     * of their creation.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        if (batchAuthorizer != null) {
+            batchAuthorizer.shutdown();
+            attributesPrefetcher.shutdown();
+            refreshDebouncer.shutdown();
+            tokenRevalidator.shutdown();
+            if (tokenCacheSnapshot != null) {
+                tokenCacheSnapshot.shutdown();
+            }
+            try {
+                openAmClient.stop();
+            } catch (Exception e) {
+                // Its connections die with the JVM
+            }
+        }
+    }
+
+    private void registerAuthenticators() {
+        List<AuthenticatorHelper> authenticators = new CopyOnWriteArrayList<AuthenticatorHelper>();
+        authenticators.add(new SessionAuthenticatorHelper());
+        authenticators.add(new HttpBasicHelper());
+
+        Engine.getInstance().setRegisteredAuthenticators(authenticators);
+    }
+
+    private Application createApplication(Context context) {
+        final SessionMetrics sessionMetrics = new SessionMetrics();
+        ResponseHelper responseHelper = new ResponseHelper();
+        RepresentationCache representationCache =
+            new RepresentationCache(SessionDefaults.REPRESENTATION_CACHE_MAX_SIZE,
+                                    SessionDefaults.REPRESENTATION_CACHE_TIME_TO_LIVE);
+        PooledClient client =
+            new PooledClient(SessionDefaults.CLIENT_MAX_CONNECTIONS,
+                             SessionDefaults.CLIENT_ACQUIRE_TIMEOUT,
+                             SessionDefaults.CLIENT_CONNECT_TIMEOUT,
+                             SessionDefaults.CLIENT_READ_TIMEOUT,
+                             SessionDefaults.CLIENT_IDLE_TIMEOUT,
+                             sessionMetrics);
+        final SessionProvisionerProxy proxy =
+            new SessionProvisionerProxy(System.getProperty("apius.openam.baseUri", SessionDefaults.OPENAM_BASE_URI),
+                                        responseHelper,
+                                        new RequestCoalescer(),
+                                        representationCache,
+                                        client,
+                                        new CircuitBreaker(SessionDefaults.CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+                                                           SessionDefaults.CIRCUIT_BREAKER_OPEN_TIMEOUT),
+                                        sessionMetrics);
+
+        TokenCache tokenCache =
+            new TokenCache(SessionDefaults.TOKEN_CACHE_MAX_SIZE,
+                           SessionDefaults.TOKEN_CACHE_TIME_TO_LIVE,
+                           SessionDefaults.TOKEN_CACHE_IDLE_TIMEOUT,
+                           SessionDefaults.TOKEN_CACHE_GRACE_PERIOD);
+        TokenCacheSnapshot snapshot = (System.getProperty("apius.snapshot.directory") != null)
+            ? new TokenCacheSnapshot(tokenCache,
+                                     proxy,
+                                     System.getProperty("apius.snapshot.directory"),
+                                     System.getProperty("apius.snapshot.secret"),
+                                     SessionDefaults.TOKEN_CACHE_SNAPSHOT_INTERVAL)
+            : null;
+        AuthorizationCache authorizationCache =
+            new AuthorizationCache(SessionDefaults.AUTHORIZATION_CACHE_MAX_SIZE,
+                                   SessionDefaults.AUTHORIZATION_CACHE_ALLOW_TIME_TO_LIVE,
+                                   SessionDefaults.AUTHORIZATION_CACHE_DENY_TIME_TO_LIVE);
+        final SessionAttributesPrefetcher prefetcher =
+            new SessionAttributesPrefetcher(proxy,
+                                            SessionDefaults.PREFETCHER_THREADS,
+                                            SessionDefaults.PREFETCHER_MAX_SIZE,
+                                            SessionDefaults.PREFETCHER_TIME_TO_LIVE);
+        final RefreshDebouncer debouncer =
+            new RefreshDebouncer(proxy,
+                                 SessionDefaults.REFRESH_DEBOUNCER_MAX_SIZE,
+                                 SessionDefaults.REFRESH_DEBOUNCER_WINDOW,
+                                 SessionDefaults.REFRESH_DEBOUNCER_IDLE_TIMEOUT,
+                                 SessionDefaults.REFRESH_DEBOUNCER_REFRESH_AHEAD,
+                                 SessionDefaults.REFRESH_DEBOUNCER_INTERVAL,
+                                 SessionDefaults.REFRESH_DEBOUNCER_BATCH_SIZE);
+        TokenRevalidator revalidator =
+            new TokenRevalidator(proxy,
+                                 tokenCache,
+                                 Arrays.<TokenInvalidationListener>asList(authorizationCache,
+                                                                          prefetcher,
+                                                                          representationCache),
+                                 SessionDefaults.TOKEN_REVALIDATOR_INTERVAL);
+
+        final OpenAmTokenFormat tokenFormat = new OpenAmTokenFormat(SessionDefaults.TOKEN_FORMAT_MIN_LENGTH,
+                                                                    SessionDefaults.TOKEN_FORMAT_MAX_LENGTH);
+        SessionVerifier verifier =
+            new SessionVerifier(proxy,
+                                tokenCache,
+                                revalidator,
+                                Arrays.<TokenInvalidationListener>asList(authorizationCache,
+                                                                         prefetcher,
+                                                                         representationCache,
+                                                                         debouncer),
+                                sessionMetrics,
+                                tokenFormat);
+        final SessionAuthenticator authenticator =
+            new SessionAuthenticator(context, SessionDefaults.AUTHENTICATOR_REALM, verifier, null, sessionMetrics);
+        final BatchAuthorizer batch =
+            new BatchAuthorizer(proxy,
+                                authorizationCache,
+                                SessionDefaults.BATCH_AUTHORIZER_THREADS,
+                                SessionDefaults.BATCH_AUTHORIZER_MAX_BATCH_SIZE,
+                                SessionDefaults.BATCH_AUTHORIZER_TIMEOUT,
+                                new UriCanonicalizer());
+
+        SessionFinder sessionFinder =
+            new SessionFinder(proxy,
+                              authenticator,
+                              new SessionCookieTemplate(),
+                              Arrays.<TokenInvalidationListener>asList(tokenCache,
+                                                                       authorizationCache,
+                                                                       prefetcher,
+                                                                       representationCache,
+                                                                       revalidator,
+                                                                       debouncer),
+                              prefetcher,
+                              batch,
+                              debouncer,
+                              null,
+                              tokenFormat);
+        sessionFinder.setContext(context);
+
+        // Listed before /identity/session, which would otherwise match it as a prefix
+        Router router = new Router(context);
+        router.attach("/identity/session/authorizations", new Finder(context) {
+            @Override
+            public ServerResource create(Request request, Response response) {
+                return new SessionAuthorizationsImpl(batch, authenticator, tokenFormat);
+            }
+        });
+        Finder metricsFinder = new Finder(context) {
+            @Override
+            public ServerResource create(Request request, Response response) {
+                return new MetricsImpl(sessionMetrics);
+            }
+        };
+        router.attach("/identity/metrics", new MetricsAuthenticator(context, 
+                                                                    System.getProperty("apius.metrics.username", SessionDefaults.METRICS_USERNAME),
+                                                                    System.getProperty("apius.metrics.password"),
+                                                                    metricsFinder));
+        router.attach("/identity/session", sessionFinder);
+
+        Application application = new Application(context);
+        application.setName("OpenAM Session Application - JSE");
+        application.setDescription("The APIUS session API meets the OpenAM RESTful API.");
+        application.setOwner("apius.org");
+        application.setAuthor("Paul Morris");
+        application.setInboundRoot(router);
+
+        openAmClient = client;
+        tokenCacheSnapshot = snapshot;
+        tokenRevalidator = revalidator;
+        refreshDebouncer = debouncer;
+        attributesPrefetcher = prefetcher;
+        batchAuthorizer = batch;
+
+        return application;
+    }
+
+}
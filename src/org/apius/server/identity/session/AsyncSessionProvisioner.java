@@ -0,0 +1,77 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * Asynchronous counterpart of the <code>SessionProvisioner</code>. Every call returns
+ * immediately with a <code>SessionFuture</code> that is completed once the session 
+ * provisioner has answered, so that requests waiting on the provisioner do not each 
+ * hold on to a thread.
+ * </p>
+ * <p>
+ * Failures are reported through the future as <code>ResourceException</code>s carrying 
+ * the same status codes the synchronous <code>SessionProvisioner</code> would throw.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface AsyncSessionProvisioner {
+
+    /**
+     * @param form with identifier/secret parameters
+     * @return future token representing the newly created session
+     */
+    abstract SessionFuture<String> createSession(Form form);
+
+    /**
+     * @param token
+     * @param mediaType one of the <code>SessionMediaTypes</code>
+     * @return future Representation of the attributes associated with the session
+     */
+    abstract SessionFuture<Representation> getAttributes(String token, MediaType mediaType);
+
+    /**
+     * @param token
+     * @return future <code>User</code> the session belongs to, failing with a 401 if the 
+     *         token is not valid
+     */
+    abstract SessionFuture<User> authenticateToken(String token);
+
+    /**
+     * @param token
+     * @return future completing once the session has been invalidated
+     */
+    abstract SessionFuture<Void> logout(String token);
+
+    /**
+     * @param token
+     * @param uri
+     * @param method
+     * @return future decision
+     */
+    abstract SessionFuture<Boolean> isAuthorized(String token, String uri, String method);
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import org.restlet.data.Status;
+
+/**
+ * <p>
+ * One entry of a batch authorization: whether a session may perform a method on
+ * the resource at a URI. When the session provisioner could not answer for this 
+ * entry the decision carries the error status instead, and the other entries of
+ * the batch are unaffected.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class AuthorizationDecision {
+
+    private final String method;
+    private final String uri;
+    private final boolean authorized;
+    private final Status status;
+
+    /**
+     * Constructor for a decision the session provisioner made.
+     * 
+     * @param method
+     * @param uri
+     * @param authorized
+     */
+    public AuthorizationDecision(String method, String uri, boolean authorized) {
+        this(method, uri, authorized, Status.SUCCESS_OK);
+    }
+
+    /**
+     * Constructor for an entry the session provisioner failed to decide.
+     * 
+     * @param method
+     * @param uri
+     * @param status the error
+     */
+    public AuthorizationDecision(String method, String uri, Status status) {
+        this(method, uri, false, status);
+    }
+
+    private AuthorizationDecision(String method, String uri, boolean authorized, Status status) {
+        this.method = method;
+        this.uri = uri;
+        this.authorized = authorized;
+        this.status = status;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * @return <code>true</code> only if the session provisioner granted the method
+     */
+    public boolean isAuthorized() {
+        return authorized;
+    }
+
+    /**
+     * @return <code>true</code> if the session provisioner made no decision
+     */
+    public boolean isFailed() {
+        return status.isError();
+    }
+
+    /**
+     * @return 200 (OK) for a decision, the error status otherwise
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apius.server.identity.session.cache.AuthorizationCache;
+import org.restlet.data.Form;
+import org.restlet.data.Parameter;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * <p>
+ * Decides many (method, URI) pairs for one session at once, for clients such as
+ * a UI gateway that need to know which of a page's actions a user may perform
+ * before rendering it.
+ * </p>
+ * <p>
+ * Pairs found in the <code>AuthorizationCache</code> are answered straight away. The 
+ * others are sent to the session provisioner in parallel on a fixed pool of <code>
+ * threads</code> shared by all batches, so that a large batch cannot flood the 
+ * provisioner. When the pool and its queue are full the calling thread decides the 
+ * pair itself, which slows the batch down instead of failing it. A pair that fails, 
+ * or that is still undecided after <code>timeout</code> seconds, gets an error status 
+ * in the result without affecting the rest of the batch.
+ * </p>
+ * <p>
+ * With a <code>UriCanonicalizer</code>, the cache and the provisioner are asked about
+ * the canonical form of each URI, the same as for the <code>SessionAuthorizer</code>; 
+ * the decisions still carry the URIs as sent.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class BatchAuthorizer {
+
+    private final SessionProvisioner sessionProvisioner;
+    private final AuthorizationCache authorizationCache;
+    private final ThreadPoolExecutor executor;
+    private final int maxBatchSize;
+    private final long timeout;
+    private final UriCanonicalizer uriCanonicalizer;
+
+    /**
+     * Constructor
+     * 
+     * @param sessionProvisioner
+     * @param authorizationCache may be <code>null</code>
+     * @param threads number of concurrent calls to the session provisioner, across all batches
+     * @param maxBatchSize maximum number of pairs in one batch
+     * @param timeout number of seconds a batch may take
+     * @param uriCanonicalizer reduces the URIs to the form decisions are made on, may be 
+     *        <code>null</code>
+     */
+    public BatchAuthorizer(SessionProvisioner sessionProvisioner, 
+                           AuthorizationCache authorizationCache, 
+                           int threads, 
+                           int maxBatchSize, 
+                           int timeout,
+                           UriCanonicalizer uriCanonicalizer) {
+        this.sessionProvisioner = sessionProvisioner;
+        this.authorizationCache = authorizationCache;
+        this.maxBatchSize = maxBatchSize;
+        this.timeout = timeout * 1000L;
+        this.uriCanonicalizer = uriCanonicalizer;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<Runnable>(maxBatchSize),
+                                               new AuthorizerThreadFactory(),
+                                               new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param token
+     * @param requests one parameter per pair, the name being the method and the value the URI
+     * @return a decision for every pair, in the order of the requests
+     * @throws ResourceException 400 (Bad Request) if the batch is empty, too large or 
+     *         holds a pair without a method or URI
+     */
+    public List<AuthorizationDecision> authorize(String token, Form requests) {
+        validate(requests);
+        
+        AuthorizationDecision[] decisions = new AuthorizationDecision[requests.size()];
+        List<FutureTask<AuthorizationDecision>> tasks = new ArrayList<FutureTask<AuthorizationDecision>>(requests.size());
+        
+        for (int i = 0; i < decisions.length; i++) {
+            Parameter request = requests.get(i);
+            String uri = (uriCanonicalizer != null) ? uriCanonicalizer.canonicalize(request.getValue()) : request.getValue();
+            Boolean cachedDecision = (authorizationCache != null) 
+                ? authorizationCache.get(token, uri, request.getName()) : null;
+            FutureTask<AuthorizationDecision> task = null;
+            
+            if (cachedDecision != null) {
+                decisions[i] = new AuthorizationDecision(request.getName(), request.getValue(), cachedDecision.booleanValue());
+            } else {
+                task = createTask(token, request.getName(), request.getValue(), uri);
+                executor.execute(task);
+            }
+            tasks.add(task);
+        }
+        
+        long deadline = System.currentTimeMillis() + timeout;
+        
+        for (int i = 0; i < decisions.length; i++) {
+            if (tasks.get(i) != null) {
+                Parameter request = requests.get(i);
+                decisions[i] = getDecision(tasks.get(i), request.getName(), request.getValue(), deadline);
+            }
+        }
+        
+        return Arrays.asList(decisions);
+    }
+
+    /**
+     * Stops the authorizer threads. Meant to be used as the bean's destroy method.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    private void validate(Form requests) {
+        if (requests == null || requests.isEmpty()) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "No method=uri pairs to authorize");
+        }
+        if (requests.size() > maxBatchSize) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, 
+                                        "At most " + maxBatchSize + " pairs can be authorized at once");
+        }
+        for (Parameter request : requests) {
+            if (request.getName() == null || request.getName().length() == 0 
+                    || request.getValue() == null || request.getValue().length() == 0) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Pairs must be written as method=uri");
+            }
+        }
+    }
+
+    private FutureTask<AuthorizationDecision> createTask(final String token, 
+                                                         final String method, 
+                                                         final String uri, 
+                                                         final String canonicalUri) {
+        return new FutureTask<AuthorizationDecision>(new Callable<AuthorizationDecision>() {
+            public AuthorizationDecision call() {
+                boolean isAuthorized = sessionProvisioner.isAuthorized(token, canonicalUri, method);
+                
+                if (authorizationCache != null) {
+                    authorizationCache.put(token, canonicalUri, method, isAuthorized);
+                }
+                return new AuthorizationDecision(method, uri, isAuthorized);
+            }
+        });
+    }
+
+    private AuthorizationDecision getDecision(FutureTask<AuthorizationDecision> task, 
+                                              String method, 
+                                              String uri, 
+                                              long deadline) {
+        AuthorizationDecision decision;
+        
+        try {
+            decision = task.get(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(false);
+            decision = new AuthorizationDecision(method, uri, Status.SERVER_ERROR_GATEWAY_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            decision = new AuthorizationDecision(method, uri, Status.SERVER_ERROR_INTERNAL);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Status status = (cause instanceof ResourceException) 
+                ? ((ResourceException) cause).getStatus() : Status.SERVER_ERROR_INTERNAL;
+            decision = new AuthorizationDecision(method, uri, status);
+        }
+        
+        return decision;
+    }
+
+    private static final class AuthorizerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "apius-batch-authorizer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.restlet.data.Status;
+
+/**
+ * <p>
+ * Stops calling the session provisioner while it is failing, so that requests fail
+ * fast instead of each one waiting for a timeout.
+ * </p>
+ * <p>
+ * The breaker opens after <code>failureThreshold</code> consecutive failures. While it
+ * is open calls are refused without being sent. After <code>openTimeout</code> seconds
+ * a single trial call is let through: if it succeeds the breaker closes again, if it 
+ * fails the breaker stays open for another <code>openTimeout</code>.
+ * </p>
+ * <p>
+ * Only server and connector errors count as failures. A 401 or any other client error 
+ * is an answer from a healthy provisioner.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openTimeout;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openedAt = new AtomicLong();
+    private final AtomicLong timesOpened = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Constructor
+     * 
+     * @param failureThreshold number of consecutive failures that opens the breaker
+     * @param openTimeout number of seconds the breaker stays open before a trial call
+     */
+    public CircuitBreaker(int failureThreshold, int openTimeout) {
+        this.failureThreshold = failureThreshold;
+        this.openTimeout = openTimeout * 1000L;
+    }
+
+    /**
+     * @param status of a failed call
+     * @return <code>true</code> if the status means the provisioner is unhealthy
+     */
+    public static boolean isFailure(Status status) {
+        return status.isServerError() || status.isConnectorError();
+    }
+
+    /**
+     * Must be followed by a call to <code>onSuccess</code> or <code>onFailure</code> 
+     * when it returns <code>true</code>.
+     * 
+     * @return <code>true</code> if the call may be sent
+     */
+    public boolean allowRequest() {
+        boolean allowed = true;
+        State current = state.get();
+        
+        if (current == State.OPEN) {
+            allowed = System.currentTimeMillis() - openedAt.get() >= openTimeout 
+                && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        } else if (current == State.HALF_OPEN) {
+            allowed = false;
+        }
+        
+        if (!allowed) {
+            rejections.incrementAndGet();
+        }
+        
+        return allowed;
+    }
+
+    /**
+     * @return void
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+
+    /**
+     * @return void
+     */
+    public void onFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        
+        openedAt.set(System.currentTimeMillis());
+        if (state.compareAndSet(State.HALF_OPEN, State.OPEN) 
+                || (failures >= failureThreshold && state.compareAndSet(State.CLOSED, State.OPEN))) {
+            timesOpened.incrementAndGet();
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return number of times the breaker has opened
+     */
+    public long getTimesOpened() {
+        return timesOpened.get();
+    }
+
+    /**
+     * @return number of calls refused while the breaker was open
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+}
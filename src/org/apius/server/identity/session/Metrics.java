@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+
+/**
+ * <p>
+ * Operational metrics of the identity service: latency of the session provisioner 
+ * calls, token verification results and the challenges and decisions of the session 
+ * filters, as plain text a metrics scraper can poll.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface Metrics {
+
+    /**
+     * @return Representation of every metric in the Prometheus text format
+     */
+    @Get("txt")
+    abstract Representation getMetrics();
+
+}
@@ -17,6 +17,8 @@
 
 package org.apius.server.identity.session;
 
+import java.util.List;
+
 import org.restlet.data.Form;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Delete;
@@ -114,12 +116,15 @@ public interface Session {
     abstract boolean isAuthorized(String token, String uri, String method);
     
     /**
-     * Used by the session provisioner proxy. This method allows the <code>ServerResource
-     * </code> to extract the token value from the <code>Request</code> and cleanly set
-     * the token value of the session provisioner proxy.
+     * To determine, in one call, which of many HTTP methods the authenticated user 
+     * represented by the session token may perform on which resources. A pair the 
+     * session provisioner fails to decide is returned with an error status; it does 
+     * not fail the other pairs.
      * 
      * @param token
+     * @param requests one parameter per pair, the name being the method and the value the URI
+     * @return a decision for every pair, in the order of the requests
      */
-    abstract void setToken(String token);
+    abstract List<AuthorizationDecision> isAuthorized(String token, Form requests);
 
 }
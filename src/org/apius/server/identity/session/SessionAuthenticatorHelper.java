@@ -19,6 +19,8 @@ package org.apius.server.identity.session;
 
 import java.io.IOException;
 
+import org.apius.server.identity.session.credential.SignedCredential;
+import org.apius.server.identity.session.credential.SignedCredentials;
 import org.restlet.Request;
 import org.restlet.Response;
 import org.restlet.data.ChallengeRequest;
@@ -35,6 +37,17 @@ import org.restlet.util.Series;
  * the <a href="www.restlet.org">Restlet</a> framework. We'll depend on
  * its code to write our challenge headers.
  * </p>
+ * <p>
+ * The token is taken out of the <code>token=</code> parameter by scanning the raw value
+ * of the header, which is only copied if there is something to strip. Whether the token
+ * is well formed is left to the <code>SessionVerifier</code>.
+ * </p>
+ * <p>
+ * With <code>SignedCredentials</code>, a credential sent in place of the token is 
+ * checked here, once per request, and replaced by the token it carries. The credential 
+ * itself is left in the request attributes for the <code>SessionVerifier</code>. One 
+ * whose signature does not check is left as it was sent.
+ * </p>
  * 
  * @author Paul Morris
  * 
@@ -47,11 +60,25 @@ public class SessionAuthenticatorHelper extends AuthenticatorHelper {
                 "APIUS", 
             "A custom challenge authentication scheme for when a session token is used as the authenticating credential.");
     
+    private static final String TOKEN_PARAMETER = "token=";
+    
+    private SignedCredentials signedCredentials;
+    
     /**
      * Constructor
      */
     public SessionAuthenticatorHelper() {
+        this(null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param signedCredentials checks the credentials sent in place of tokens
+     */
+    public SessionAuthenticatorHelper(SignedCredentials signedCredentials) {
         super(APIUS, true, true);
+        this.signedCredentials = signedCredentials;
     }
     
     @Override
@@ -68,7 +95,40 @@ public class SessionAuthenticatorHelper extends AuthenticatorHelper {
     public void parseResponse(ChallengeResponse cr, 
                               Request request, 
                               Series<Parameter> httpHeaders) {
-        cr.setRawValue(cr.getRawValue().replaceFirst("token=", ""));
+        if (cr.getRawValue() != null) {
+            cr.setRawValue(extractToken(cr.getRawValue()));
+        }
+        
+        if (signedCredentials != null && SignedCredentials.isCredential(cr.getRawValue())) {
+            SignedCredential credential = signedCredentials.verify(cr.getRawValue());
+            
+            if (credential != null) {
+                request.getAttributes().put(SignedCredentials.ATTRIBUTE, credential);
+                cr.setRawValue(credential.getToken());
+            }
+        }
+    }
+    
+    /**
+     * @param rawValue of the <code>Authorization</code> header, after the scheme
+     * @return the value of the <code>token</code> parameter, or the whole raw value if 
+     *         there is none, without surrounding whitespace
+     */
+    static String extractToken(String rawValue) {
+        int start = 0;
+        int end = rawValue.length();
+        
+        while (start < end && rawValue.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && rawValue.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (rawValue.startsWith(TOKEN_PARAMETER, start)) {
+            start += TOKEN_PARAMETER.length();
+        }
+        
+        return (start == 0 && end == rawValue.length()) ? rawValue : rawValue.substring(start, end);
     }
 
 }
\ No newline at end of file
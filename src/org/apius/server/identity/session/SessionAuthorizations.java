@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import org.restlet.data.Form;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Post;
+
+/**
+ * <p>
+ * Batch authorization for the session represented by the token in the Authorization 
+ * header. Lets a client such as a UI gateway find out which of a page's actions the 
+ * user may perform with one request instead of one <code>isAuthorized</code> call per 
+ * action.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface SessionAuthorizations {
+
+    /**
+     * @param Form with one method=uri parameter per pair to decide
+     * @return Representation of the decision for every pair, in the order of the form
+     */
+    @Post
+    abstract Representation authorize(Form form);
+
+}
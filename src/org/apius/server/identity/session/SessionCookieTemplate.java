@@ -0,0 +1,70 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session;
+
+import org.restlet.data.CookieSetting;
+
+/**
+ * <p>
+ * Immutable template of the session cookie, holding every <code>SessionCookieSettings
+ * </code> value once so that each response only has to supply the token and the path. 
+ * A single instance is shared by all <code>Session</code> resources across all worker 
+ * threads.
+ * </p>
+ * <p>
+ * A new <code>CookieSetting</code> is created per response: <code>CookieSetting</code> 
+ * is mutable and belongs to the response it is added to, so one shared instance would 
+ * let concurrent requests overwrite each other's token.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SessionCookieTemplate {
+
+    private static final String VALUE_PREFIX = "token=";
+
+    private final int version;
+    private final String name;
+    private final String comment;
+    private final int maxAge;
+    private final boolean secure;
+    private final boolean accessRestricted;
+
+    /**
+     * Constructor using the <code>SessionCookieSettings</code>.
+     */
+    public SessionCookieTemplate() {
+        this.version = SessionCookieSettings.version;
+        this.name = SessionCookieSettings.name;
+        this.comment = SessionCookieSettings.comment;
+        this.maxAge = SessionCookieSettings.maxAge;
+        this.secure = SessionCookieSettings.secure;
+        this.accessRestricted = SessionCookieSettings.accessRestricted;
+    }
+
+    /**
+     * @param token or credential to store in the cookie
+     * @param path of the URI the cookie is set from
+     * @return a new <code>CookieSetting</code>, owned by the caller
+     */
+    public CookieSetting createCookieSetting(String token, String path) {
+        return new CookieSetting(version, name, VALUE_PREFIX + token, path, null, comment, maxAge, secure, accessRestricted);
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session;
+
+/**
+ * <p>
+ * The values the identity component is built with, read by both ways of starting it: 
+ * <code>identityContext.xml</code> and <code>jseIdentityContext.xml</code> refer to 
+ * them as <code>#{T(org.apius.server.identity.session.SessionDefaults).NAME}</code> 
+ * and <code>JseIdentityBootstrap</code> passes them to the same constructors. A default 
+ * is changed here, once, and both startup paths pick it up.
+ * </p>
+ * <p>
+ * Each constant is named after the bean it configures and the constructor parameter it 
+ * is passed as, so its meaning is documented on that constructor. Beans the contexts 
+ * leave unwired keep their values in the XML.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class SessionDefaults {
+
+    /**
+     * Used when the <code>apius.openam.baseUri</code> system property is not set.
+     */
+    public static final String  OPENAM_BASE_URI = "http://devbox.apius.org:8080/openam";
+
+    /**
+     * The JSE server connector.
+     */
+    public static final int     SERVER_PORT                    = 8182;
+    public static final int     SERVER_MIN_THREADS             = 1;
+    public static final int     SERVER_MAX_THREADS             = 256;
+    public static final int     SERVER_THREAD_MAX_IDLE_TIME_MS = 60000;
+
+    public static final int     CLIENT_MAX_CONNECTIONS = 64;
+    public static final int     CLIENT_ACQUIRE_TIMEOUT = 2000;
+    public static final int     CLIENT_CONNECT_TIMEOUT = 3000;
+    public static final int     CLIENT_READ_TIMEOUT    = 10000;
+    public static final int     CLIENT_IDLE_TIMEOUT    = 30;
+
+    public static final int     REPRESENTATION_CACHE_MAX_SIZE     = 10000;
+    public static final int     REPRESENTATION_CACHE_TIME_TO_LIVE = 30;
+
+    public static final int     CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final int     CIRCUIT_BREAKER_OPEN_TIMEOUT      = 10;
+
+    public static final int     TOKEN_CACHE_MAX_SIZE     = 10000;
+    public static final int     TOKEN_CACHE_TIME_TO_LIVE = 60;
+    public static final int     TOKEN_CACHE_IDLE_TIMEOUT = 1800;
+    public static final int     TOKEN_CACHE_GRACE_PERIOD = 300;
+
+    public static final int     TOKEN_CACHE_SNAPSHOT_INTERVAL = 30;
+
+    public static final int     TOKEN_REVALIDATOR_INTERVAL = 5;
+
+    public static final int     AUTHORIZATION_CACHE_MAX_SIZE           = 50000;
+    public static final int     AUTHORIZATION_CACHE_ALLOW_TIME_TO_LIVE = 60;
+    public static final int     AUTHORIZATION_CACHE_DENY_TIME_TO_LIVE  = 10;
+
+    public static final int     PREFETCHER_THREADS      = 8;
+    public static final int     PREFETCHER_MAX_SIZE     = 1000;
+    public static final int     PREFETCHER_TIME_TO_LIVE = 30;
+
+    public static final int     REFRESH_DEBOUNCER_MAX_SIZE      = 10000;
+    public static final int     REFRESH_DEBOUNCER_WINDOW        = 300;
+    public static final int     REFRESH_DEBOUNCER_IDLE_TIMEOUT  = 1800;
+    public static final int     REFRESH_DEBOUNCER_REFRESH_AHEAD = 300;
+    public static final int     REFRESH_DEBOUNCER_INTERVAL      = 30;
+    public static final int     REFRESH_DEBOUNCER_BATCH_SIZE    = 100;
+
+    public static final int     BATCH_AUTHORIZER_THREADS        = 16;
+    public static final int     BATCH_AUTHORIZER_MAX_BATCH_SIZE = 200;
+    public static final int     BATCH_AUTHORIZER_TIMEOUT        = 10;
+
+    public static final int     TOKEN_FORMAT_MIN_LENGTH = 32;
+    public static final int     TOKEN_FORMAT_MAX_LENGTH = 512;
+
+    public static final String  AUTHENTICATOR_REALM = "nmpg";
+
+    /**
+     * Used when the <code>apius.metrics.username</code> system property is not set.
+     */
+    public static final String  METRICS_USERNAME = "apius";
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * <p>
+ * The pending result of a call to an <code>AsyncSessionProvisioner</code>. Besides 
+ * the usual blocking <code>Future</code> methods, listeners can be added that are 
+ * notified as soon as the result is in, so that no thread has to wait for it.
+ * </p>
+ * <p>
+ * A future completes exactly once, either with a value or with a <code>RuntimeException
+ * </code> (usually a <code>ResourceException</code>). It cannot be cancelled.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SessionFuture<V> implements Future<V> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<SessionFutureListener<V>> listeners = new ArrayList<SessionFutureListener<V>>(2);
+    private V value;
+    private RuntimeException failure;
+
+    /**
+     * @param value
+     * @return <code>false</code> if the future had already completed
+     */
+    public boolean complete(V value) {
+        List<SessionFutureListener<V>> toNotify = null;
+        
+        synchronized (this) {
+            if (listeners != null) {
+                this.value = value;
+                toNotify = release();
+            }
+        }
+        
+        if (toNotify != null) {
+            for (SessionFutureListener<V> listener : toNotify) {
+                listener.completed(value);
+            }
+        }
+        
+        return toNotify != null;
+    }
+
+    /**
+     * @param e
+     * @return <code>false</code> if the future had already completed
+     */
+    public boolean fail(RuntimeException e) {
+        List<SessionFutureListener<V>> toNotify = null;
+        
+        synchronized (this) {
+            if (listeners != null) {
+                this.failure = e;
+                toNotify = release();
+            }
+        }
+        
+        if (toNotify != null) {
+            for (SessionFutureListener<V> listener : toNotify) {
+                listener.failed(e);
+            }
+        }
+        
+        return toNotify != null;
+    }
+
+    /**
+     * @param listener notified once the future completes, right away if it already has
+     * @return void
+     */
+    public void addListener(SessionFutureListener<V> listener) {
+        boolean completed;
+        
+        synchronized (this) {
+            completed = (listeners == null);
+            
+            if (!completed) {
+                listeners.add(listener);
+            }
+        }
+        
+        if (completed) {
+            if (failure != null) {
+                listener.failed(failure);
+            } else {
+                listener.completed(value);
+            }
+        }
+    }
+
+    /**
+     * Waits for the future to complete.
+     * 
+     * @return the value
+     * @throws RuntimeException the future failed with
+     */
+    public V getResult() {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+        }
+        
+        return report();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        
+        return reportWrapped();
+    }
+
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        
+        return reportWrapped();
+    }
+    
+    private List<SessionFutureListener<V>> release() {
+        List<SessionFutureListener<V>> toNotify = listeners;
+        
+        listeners = null;
+        done.countDown();
+        
+        return toNotify;
+    }
+    
+    private synchronized V report() {
+        if (failure != null) {
+            throw failure;
+        }
+        
+        return value;
+    }
+    
+    private synchronized V reportWrapped() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        
+        return value;
+    }
+
+}
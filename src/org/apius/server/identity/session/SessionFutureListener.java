@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+/**
+ * <p>
+ * Notified once a <code>SessionFuture</code> completes, on the thread that completed
+ * it (or on the thread adding the listener if the future had already completed).
+ * Implementations should hand anything slow off to another thread.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface SessionFutureListener<V> {
+
+    /**
+     * @param value
+     * @return void
+     */
+    abstract void completed(V value);
+
+    /**
+     * @param e usually a <code>ResourceException</code> carrying the status to respond with
+     * @return void
+     */
+    abstract void failed(RuntimeException e);
+
+}
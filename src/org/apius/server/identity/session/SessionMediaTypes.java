@@ -0,0 +1,71 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.restlet.data.MediaType;
+
+/**
+ * <p>
+ * The media types session attributes can be represented in. The <code>Session</code>
+ * resource picks one of these based on the <code>Accept</code> header of the request.
+ * </p>
+ * <p>
+ * <b>application/atom+xml</b> is the default, one entry per attribute.
+ * </p>
+ * <p>
+ * <b>application/json</b> is a compact object for machine clients:
+ * </p>
+ * <p>
+ * <code>{"token":"AQIC5wM2LY4Sfcz[...]","roles":["Test Group,ou=group,dc=apius,dc=org"],
+ * "attributes":{"uid":["pmorris"],"objectclass":["person","top"]}}</code>
+ * </p>
+ * <p>
+ * <b>application/x-apius-session</b> is a length-prefixed binary form. All integers
+ * are 4 byte big-endian and every string is an integer byte count followed by that 
+ * many bytes of UTF-8:
+ * </p>
+ * <p>
+ * <code>version(1 byte) token roleCount role* attributeCount (name valueCount value*)*</code>
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class SessionMediaTypes {
+
+    public static final MediaType ATOM = MediaType.APPLICATION_ATOM;
+    public static final MediaType JSON = MediaType.APPLICATION_JSON;
+    public static final MediaType BINARY = 
+        new MediaType("application/x-apius-session", "Length-prefixed binary APIUS session attributes");
+    
+    /**
+     * Version of the binary form, written as its first byte.
+     */
+    public static final int BINARY_VERSION = 1;
+    
+    /**
+     * In order of preference when the client accepts more than one.
+     */
+    public static final List<MediaType> supported = 
+        Collections.unmodifiableList(Arrays.asList(ATOM, JSON, BINARY));
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session;
+
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * The client side of a stateful session provisioner as seen by the <code>Session
+ * </code> resource and by the authentication and authorization filters.
+ * </p>
+ * <p>
+ * Implementations hold no per-request state: the session token is passed into 
+ * every call. A single instance is meant to be shared by the <code>SessionVerifier
+ * </code>, the <code>SessionAuthorizer</code> and every <code>Session</code> resource,
+ * across all worker threads, so implementations must be thread-safe.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface SessionProvisioner {
+
+    /**
+     * Requests the session provisioner to create a session on behalf of the 
+     * user whose identifier/secret (i.e. username/password) are in the form.
+     * 
+     * @param form with identifier/secret parameters
+     * @return token representing the newly created session
+     */
+    abstract String createSession(Form form);
+
+    /**
+     * @param token
+     * @return Representation of the attributes associated with the session
+     */
+    abstract Representation getAttributes(String token);
+
+    /**
+     * @param token
+     * @param mediaType one of the <code>SessionMediaTypes</code>
+     * @return Representation of the attributes associated with the session
+     */
+    abstract Representation getAttributes(String token, MediaType mediaType);
+
+    /**
+     * Validates the session represented by the token. This is the check made by the 
+     * authentication filter on every uncached token, so it is kept as cheap as the 
+     * provisioner allows and need not refresh the time left before an inactive timeout; 
+     * use <code>refreshToken</code> to keep a session alive.
+     * 
+     * @param token
+     * @return the <code>User</code> the session belongs to
+     */
+    abstract User authenticateToken(String token);
+
+    /**
+     * Validates the session represented by the token, refreshing the time left 
+     * before the provisioner imposes an inactive timeout.
+     * 
+     * @param token
+     * @return the <code>User</code> the session belongs to
+     */
+    abstract User refreshToken(String token);
+
+    /**
+     * Invalidates the session, essentially logging out the user.
+     * 
+     * @param token
+     * @return void
+     */
+    abstract void logout(String token);
+
+    /**
+     * @param token
+     * @param uri
+     * @param method
+     * @return boolean indicating whether the session represented by the token is
+     * 		   authorized to perform the given method on the resource at the uri 
+     */
+    abstract boolean isAuthorized(String token, String uri, String method);
+
+}
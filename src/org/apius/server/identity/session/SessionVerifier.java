@@ -17,10 +17,20 @@
 
 package org.apius.server.identity.session;
 
+import java.util.Collections;
+import java.util.List;
+
+import org.apius.server.identity.session.cache.TokenCache;
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+import org.apius.server.identity.session.cache.TokenRevalidator;
+import org.apius.server.identity.session.credential.SignedCredential;
+import org.apius.server.identity.session.credential.SignedCredentials;
+import org.apius.server.identity.session.metrics.SessionMetrics;
 import org.restlet.Request;
 import org.restlet.Response;
 import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
+import org.restlet.security.User;
 import org.restlet.security.Verifier;
 
 /**
@@ -28,21 +38,81 @@ import org.restlet.security.Verifier;
  * Verifies that the token represents a valid session within the session 
  * provisioner. Part of the authentication engine.
  * </p>
+ * <p>
+ * When constructed with a <code>TokenCache</code>, tokens that were validated
+ * recently are accepted without calling the session provisioner and the cached
+ * <code>User</code> is attached to the request's <code>ClientInfo</code>.
+ * </p>
+ * <p>
+ * If the cache has a grace period, a token whose time to live has passed is still
+ * accepted when the session provisioner cannot be reached (or its circuit breaker is
+ * open), provided it is within the grace period. Such tokens are handed to the <code>
+ * TokenRevalidator</code> to be checked again once the provisioner recovers.
+ * </p>
+ * <p>
+ * Tokens the session provisioner rejects are dropped from the <code>TokenCache</code> and 
+ * passed to the <code>rejectionListeners</code>, so that whatever else is known about them, 
+ * on this node or on its peers, is dropped too. Only tokens this node knew are passed on: 
+ * those still in the <code>TokenCache</code>, past their time to live or not, and those 
+ * that came in a <code>SignedCredential</code>. Nothing can be known about any other token,
+ * and passing them on would let any client make every listener and every peer do work 
+ * for each made-up token it sends.
+ * </p>
+ * <p>
+ * A token sent as a <code>SignedCredential</code> that has not expired is accepted
+ * before anything else is looked at, and the <code>User</code> and roles it carries are 
+ * attached to the request. Once it has expired, the token it carries is verified like 
+ * any other. Something with the layout of a credential that the <code>
+ * SessionAuthenticatorHelper</code> could not check is invalid.
+ * </p>
+ * <p>
+ * With a <code>TokenFormat</code>, a token the session provisioner could not have issued
+ * is invalid without calling the provisioner or looking it up in the cache, so garbage
+ * and truncated tokens cost nothing more than a scan of their characters.
+ * </p>
+ * <p>
+ * With <code>SessionMetrics</code>, every result is counted, and valid ones by whether 
+ * the token came from the cache, the session provisioner or the grace period.
+ * </p>
  * 
  * @author Paul Morris
  * 
  */
 public class SessionVerifier implements Verifier {
 	
-    private Session sessionProvisionerProxy;
+    private SessionProvisioner sessionProvisionerProxy;
+    private TokenCache tokenCache;
+    private TokenRevalidator tokenRevalidator;
+    private List<TokenInvalidationListener> rejectionListeners;
+    private SessionMetrics sessionMetrics;
+    private TokenFormat tokenFormat;
     
     /**
      * Constructor
      * 
      * @param sessionProvisionerProxy
+     * @param tokenCache may be <code>null</code>
+     * @param tokenRevalidator checks the tokens accepted during an outage once it is over, may be 
+     *        <code>null</code>
+     * @param rejectionListeners told about the tokens this node knew that the session provisioner 
+     *        rejects, may be <code>null</code>
+     * @param sessionMetrics counts the results, may be <code>null</code>
+     * @param tokenFormat refuses malformed tokens without calling the session provisioner, may be 
+     *        <code>null</code>
      */
-    public SessionVerifier(Session sessionProvisionerProxy) {
+    public SessionVerifier(SessionProvisioner sessionProvisionerProxy, 
+                           TokenCache tokenCache, 
+                           TokenRevalidator tokenRevalidator, 
+                           List<TokenInvalidationListener> rejectionListeners,
+                           SessionMetrics sessionMetrics,
+                           TokenFormat tokenFormat) {
         this.sessionProvisionerProxy = sessionProvisionerProxy;
+        this.tokenCache = tokenCache;
+        this.tokenRevalidator = tokenRevalidator;
+        this.rejectionListeners = (rejectionListeners != null) 
+            ? rejectionListeners : Collections.<TokenInvalidationListener>emptyList();
+        this.sessionMetrics = sessionMetrics;
+        this.tokenFormat = tokenFormat;
     }
     
     @Override
@@ -53,25 +123,180 @@ public class SessionVerifier implements Verifier {
             result = handleVerify(request);
         } else {
             result = RESULT_MISSING;
+            record(result, null);
         }
     	
         return result;
     }
     
     private int handleVerify(Request request) {
+        int result = verifyLocally(request);
+        
+        if (result == RESULT_VALID) {
+            record(result, SessionMetrics.SOURCE_CREDENTIAL);
+        } else if (result == RESULT_INVALID) {
+            record(result, null);
+        } else if (verifyFromTokenCache(request) == RESULT_VALID) {
+            result = RESULT_VALID;
+            record(result, SessionMetrics.SOURCE_CACHE);
+        } else {
+            result = handleVerifyWithProvisioner(request, request.getChallengeResponse().getRawValue());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Verifies the token without calling the session provisioner. Used directly by
+     * a <code>SessionAuthenticator</code> validating tokens asynchronously.
+     * 
+     * @param request
+     * @return RESULT_VALID if the token came in an unexpired credential or was validated 
+     *         recently, RESULT_INVALID if it is malformed or came in a credential that could 
+     *         not be checked, RESULT_UNKNOWN otherwise
+     */
+    public int verifyFromCache(Request request) {
+        int result = verifyLocally(request);
+        
+        if (result == RESULT_UNKNOWN) {
+            result = verifyFromTokenCache(request);
+        }
+        
+        return result;
+    }
+    
+    private int verifyLocally(Request request) {
+        int result = verifyFromCredential(request);
+        
+        if (result == RESULT_UNKNOWN && tokenFormat != null 
+                && !tokenFormat.isWellFormed(request.getChallengeResponse().getRawValue())) {
+            result = RESULT_INVALID;
+        }
+        
+        return result;
+    }
+    
+    private int verifyFromCredential(Request request) {
+        int result = RESULT_UNKNOWN;
+        SignedCredential credential = SignedCredentials.getCredential(request);
+        
+        if (credential != null && !credential.isExpired(System.currentTimeMillis())) {
+            request.getClientInfo().setUser(credential.createUser());
+            request.getClientInfo().setRoles(credential.createRoles());
+            result = RESULT_VALID;
+        } else if (SignedCredentials.isCredential(request.getChallengeResponse().getRawValue())) {
+            result = RESULT_INVALID;
+        }
+        
+        return result;
+    }
+    
+    private int verifyFromTokenCache(Request request) {
+        int result = RESULT_UNKNOWN;
+        User user = (tokenCache != null) ? tokenCache.get(request.getChallengeResponse().getRawValue()) : null;
+        
+        if (user != null) {
+            request.getClientInfo().setUser(user);
+            result = RESULT_VALID;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Attaches the <code>User</code> the session provisioner validated the token for 
+     * to the request and remembers it for later requests.
+     * 
+     * @param request
+     * @param token
+     * @param user
+     * @return void
+     */
+    public void accept(Request request, String token, User user) {
+        request.getClientInfo().setUser(user);
+        record(RESULT_VALID, SessionMetrics.SOURCE_PROVISIONER);
+        
+        if (tokenCache != null) {
+            tokenCache.put(token, user);
+        }
+    }
+    
+    /**
+     * Accepts a token the session provisioner could not be asked about, if it was 
+     * validated recently enough to be within the cache's grace period.
+     * 
+     * @param request
+     * @param token
+     * @param status of the failed call to the session provisioner
+     * @return <code>true</code> if the token was accepted
+     */
+    public boolean acceptStale(Request request, String token, Status status) {
+        User user = (tokenCache != null && CircuitBreaker.isFailure(status)) ? tokenCache.getStale(token) : null;
+        
+        if (user != null) {
+            request.getClientInfo().setUser(user);
+            record(RESULT_VALID, SessionMetrics.SOURCE_STALE);
+            
+            if (tokenRevalidator != null) {
+                tokenRevalidator.add(token);
+            }
+        } else if (!Status.CLIENT_ERROR_UNAUTHORIZED.equals(status)) {
+            // A rejected token is counted by reject
+            record(RESULT_UNKNOWN, null);
+        }
+        
+        return user != null;
+    }
+    
+    /**
+     * Forgets the token the session provisioner has rejected and, if this node knew
+     * it, tells the <code>rejectionListeners</code>. Used directly by a <code>
+     * SessionAuthenticator</code> validating tokens asynchronously.
+     * 
+     * @param request the token came with
+     * @param token
+     * @return void
+     */
+    public void reject(Request request, String token) {
+        record(RESULT_INVALID, null);
+        
+        if (isKnown(request, token)) {
+            if (tokenCache != null) {
+                tokenCache.invalidate(token);
+            }
+            for (TokenInvalidationListener listener : rejectionListeners) {
+                listener.invalidate(token);
+            }
+        }
+    }
+    
+    private boolean isKnown(Request request, String token) {
+        return SignedCredentials.getCredential(request) != null 
+            || (tokenCache != null && tokenCache.getStale(token) != null);
+    }
+    
+    private int handleVerifyWithProvisioner(Request request, String token) {
         int result = RESULT_UNKNOWN;
 
         try {
-            sessionProvisionerProxy.setToken(request.getChallengeResponse().getRawValue());
-            sessionProvisionerProxy.authenticateToken();
+            accept(request, token, sessionProvisionerProxy.authenticateToken(token));
             result = RESULT_VALID;
         } catch (ResourceException e) {
             if (e.getStatus().equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+                reject(request, token);
                 result = RESULT_INVALID;
+            } else if (acceptStale(request, token, e.getStatus())) {
+                result = RESULT_VALID;
             }
         }
         
         return result;
     }
+    
+    private void record(int result, String source) {
+        if (sessionMetrics != null) {
+            sessionMetrics.recordVerification(result, source);
+        }
+    }
 	
 }
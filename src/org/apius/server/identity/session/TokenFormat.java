@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session;
+
+/**
+ * <p>
+ * Knows what the tokens of a session provisioner look like, so that the <code>SessionVerifier
+ * </code> can refuse garbage and truncated tokens without sending them to the provisioner.
+ * </p>
+ * <p>
+ * Only the structure is checked, never whether the session exists. Implementations are
+ * called on every request and must be thread-safe and cheap.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface TokenFormat {
+
+    /**
+     * @param token
+     * @return <code>false</code> if the session provisioner could not possibly have issued the token
+     */
+    abstract boolean isWellFormed(String token);
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.restlet.data.Reference;
+import org.restlet.routing.Router;
+import org.restlet.routing.Template;
+import org.restlet.routing.TemplateRoute;
+import org.restlet.routing.Variable;
+
+/**
+ * <p>
+ * Reduces the URI of a request to the form authorization decisions are made and 
+ * cached on, so that <code>/orders/123?x=1</code> and <code>/orders/456</code> are one 
+ * OpenAM policy evaluation and one <code>AuthorizationCache</code> entry rather than two.
+ * </p>
+ * <p>
+ * The query and fragment are always dropped. The path is then compared with the route
+ * templates, in the order given, and the first one that matches the whole path replaces
+ * it with every variable (<code>{id}</code>) turned into the <code>wildcard</code>, by 
+ * default <code>*</code> as in OpenAM policy URLs:
+ * </p>
+ * <p>
+ * <code>http://api.apius.org/orders/123?x=1</code> with template <code>/orders/{id}</code>
+ * becomes <code>http://api.apius.org/orders/*</code>
+ * </p>
+ * <p>
+ * A variable matches one path segment. The templates can be given as strings, or read 
+ * from the attachments of the <code>Router</code> of the API being protected. With <code>
+ * wildcardIds</code>, segments of paths that match no template are still replaced when 
+ * they are all digits or shaped like a UUID, which bounds the key space for routes 
+ * nobody listed. The canonical URI only replaces the request's URI in the decision; the 
+ * request itself is not modified.
+ * </p>
+ * <p>
+ * Every URI a template matches, and with <code>wildcardIds</code> every URI differing
+ * only in its IDs, shares one decision. Only use either when the session provisioner's 
+ * policies are written on the wildcard URLs too; otherwise a grant for <code>/users/123
+ * </code> would be reused for <code>/users/456</code>.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class UriCanonicalizer {
+
+    private final List<Template> templates;
+    private final List<String> canonicalPaths;
+    private final boolean wildcardIds;
+    private final String wildcard;
+
+    /**
+     * Constructor for a canonicalizer that only drops the query and fragment.
+     */
+    public UriCanonicalizer() {
+        this(Collections.<String>emptyList(), false, "*");
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param templates path templates such as <code>/orders/{id}/items/{item}</code>, 
+     *        most specific first
+     * @param wildcardIds whether digit and UUID segments of unmatched paths are replaced
+     * @param wildcard what variables and IDs are replaced with
+     */
+    public UriCanonicalizer(List<String> templates, boolean wildcardIds, String wildcard) {
+        this.templates = new ArrayList<Template>(templates.size());
+        this.canonicalPaths = new ArrayList<String>(templates.size());
+        this.wildcardIds = wildcardIds;
+        this.wildcard = wildcard;
+        
+        for (String template : templates) {
+            this.templates.add(new Template(template, Template.MODE_EQUALS, Variable.TYPE_URI_SEGMENT, "", true, false));
+            this.canonicalPaths.add(template.replaceAll("\\{[^}]*\\}", wildcard.replace("\\", "\\\\").replace("$", "\\$")));
+        }
+    }
+
+    /**
+     * Constructor taking the templates from the routes of a <code>Router</code>.
+     * 
+     * @param router of the API being protected
+     * @param basePath path the router is attached under, e.g. the servlet context 
+     *        path, or an empty string
+     * @param wildcardIds whether digit and UUID segments of unmatched paths are replaced
+     * @param wildcard what variables and IDs are replaced with
+     */
+    public UriCanonicalizer(Router router, String basePath, boolean wildcardIds, String wildcard) {
+        this(getTemplates(router, basePath), wildcardIds, wildcard);
+    }
+
+    /**
+     * @param uri
+     * @return the URI without query and fragment, with the path of the first matching 
+     *         template or with its IDs replaced
+     */
+    public String canonicalize(String uri) {
+        return canonicalize(new Reference(uri));
+    }
+
+    /**
+     * @param reference
+     * @return the URI without query and fragment, with the path of the first matching 
+     *         template or with its IDs replaced
+     */
+    public String canonicalize(Reference reference) {
+        String path = (reference.getPath() != null) ? reference.getPath() : "";
+        String canonicalPath = null;
+        
+        for (int i = 0; i < templates.size() && canonicalPath == null; i++) {
+            if (templates.get(i).match(path) == path.length()) {
+                canonicalPath = canonicalPaths.get(i);
+            }
+        }
+        if (canonicalPath == null) {
+            canonicalPath = wildcardIds ? replaceIds(path) : path;
+        }
+        
+        return reference.isAbsolute() ? reference.getHostIdentifier() + canonicalPath : canonicalPath;
+    }
+
+    private String replaceIds(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        int start = 0;
+        
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            end = (end < 0) ? path.length() : end;
+            
+            String segment = path.substring(start, end);
+            sb.append(isId(segment) ? wildcard : segment);
+            
+            if (end < path.length()) {
+                sb.append('/');
+            }
+            start = end + 1;
+        }
+        
+        return sb.toString();
+    }
+
+    private static boolean isId(String segment) {
+        boolean isDigits = segment.length() > 0;
+        
+        for (int i = 0; i < segment.length() && isDigits; i++) {
+            isDigits = Character.isDigit(segment.charAt(i));
+        }
+        
+        return isDigits || isUuid(segment);
+    }
+
+    private static boolean isUuid(String segment) {
+        boolean isUuid = segment.length() == 36;
+        
+        for (int i = 0; i < segment.length() && isUuid; i++) {
+            char c = segment.charAt(i);
+            isUuid = (i == 8 || i == 13 || i == 18 || i == 23) ? c == '-' : Character.digit(c, 16) >= 0;
+        }
+        
+        return isUuid;
+    }
+
+    private static List<String> getTemplates(Router router, String basePath) {
+        List<String> templates = new ArrayList<String>();
+        
+        for (TemplateRoute route : router.getRoutes()) {
+            templates.add(basePath + route.getTemplate().getPattern());
+        }
+        
+        return templates;
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.cache;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Remembers the session provisioner's authorization decisions so that the <code>
+ * SessionAuthorizer</code> only asks once for the same session calling the same 
+ * method on the same resource.
+ * </p>
+ * <p>
+ * Denials are cached as well as grants, each with its own time to live (in seconds).
+ * Denials are usually given the shorter one so that a freshly granted permission is 
+ * picked up quickly. <code>maxSize</code> is a hard bound on the number of decisions 
+ * held across all sessions.
+ * </p>
+ * <p>
+ * The keys of the decisions held are also indexed by token, so invalidating a token 
+ * costs the number of decisions held for it rather than a walk of the whole cache. A 
+ * key leaves the index with its decision, whether it was evicted, expired or invalidated.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class AuthorizationCache implements TokenInvalidationListener {
+
+    private final ConcurrentHashMap<String, Set<AuthorizationKey>> keysByToken = 
+        new ConcurrentHashMap<String, Set<AuthorizationKey>>();
+    private final ExpiringCache<AuthorizationKey, Boolean> cache;
+    private final long allowTimeToLive;
+    private final long denyTimeToLive;
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize maximum number of decisions held
+     * @param allowTimeToLive number of seconds a grant is trusted for
+     * @param denyTimeToLive number of seconds a denial is trusted for
+     */
+    public AuthorizationCache(int maxSize, int allowTimeToLive, int denyTimeToLive) {
+        this.cache = new ExpiringCache<AuthorizationKey, Boolean>(maxSize) {
+            @Override
+            protected void evicted(AuthorizationKey key) {
+                unindex(key);
+            }
+        };
+        this.allowTimeToLive = allowTimeToLive * 1000L;
+        this.denyTimeToLive = denyTimeToLive * 1000L;
+    }
+
+    /**
+     * @param token
+     * @param uri
+     * @param method
+     * @return the cached decision or <code>null</code> if there is none
+     */
+    public Boolean get(String token, String uri, String method) {
+        return cache.get(new AuthorizationKey(token, uri, method));
+    }
+
+    /**
+     * @param token
+     * @param uri
+     * @param method
+     * @param isAuthorized
+     * @return void
+     */
+    public void put(String token, String uri, String method, boolean isAuthorized) {
+        AuthorizationKey key = new AuthorizationKey(token, uri, method);
+        long timeToLive = isAuthorized ? allowTimeToLive : denyTimeToLive;
+        
+        if (timeToLive > 0) {
+            cache.put(key, Boolean.valueOf(isAuthorized), timeToLive);
+            
+            if (token != null) {
+                index(key);
+            }
+        }
+    }
+
+    /**
+     * Drops every decision made for the session represented by the token.
+     * 
+     * @param token
+     * @return void
+     */
+    public void invalidate(String token) {
+        Set<AuthorizationKey> keys = (token != null) ? keysByToken.remove(token) : null;
+        
+        if (keys != null) {
+            synchronized (keys) {
+                for (AuthorizationKey key : keys) {
+                    cache.remove(key);
+                }
+            }
+        }
+    }
+
+    private void index(AuthorizationKey key) {
+        boolean indexed = false;
+        
+        while (!indexed) {
+            Set<AuthorizationKey> keys = keysByToken.get(key.token);
+            
+            if (keys == null) {
+                Set<AuthorizationKey> newKeys = new HashSet<AuthorizationKey>(4);
+                keys = keysByToken.putIfAbsent(key.token, newKeys);
+                keys = (keys != null) ? keys : newKeys;
+            }
+            // Only added to while it is still the token's set, so never to one just dropped
+            synchronized (keys) {
+                if (keysByToken.get(key.token) == keys) {
+                    keys.add(key);
+                    indexed = true;
+                }
+            }
+        }
+    }
+
+    private void unindex(AuthorizationKey key) {
+        Set<AuthorizationKey> keys = (key.token != null) ? keysByToken.get(key.token) : null;
+        
+        if (keys != null) {
+            synchronized (keys) {
+                // Unless the decision was put back since it left the cache
+                if (!cache.keySet().contains(key)) {
+                    keys.remove(key);
+                    
+                    if (keys.isEmpty()) {
+                        keysByToken.remove(key.token, keys);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class AuthorizationKey {
+
+        private final String token;
+        private final String uri;
+        private final String method;
+        private final int hashCode;
+
+        private AuthorizationKey(String token, String uri, String method) {
+            this.token = token;
+            this.uri = uri;
+            this.method = method;
+            this.hashCode = 31 * (31 * hashCode(token) + hashCode(uri)) + hashCode(method);
+        }
+
+        private static int hashCode(String s) {
+            return (s != null) ? s.hashCode() : 0;
+        }
+
+        private static boolean equals(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            boolean equals = false;
+
+            if (o instanceof AuthorizationKey) {
+                AuthorizationKey other = (AuthorizationKey) o;
+                equals = equals(token, other.token) && equals(uri, other.uri) && equals(method, other.method);
+            }
+
+            return equals;
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.cache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A bounded, concurrent cache whose entries expire after a per-entry time to live.
+ * Lookups never block and never touch the network, which is the whole point of
+ * putting one of these in front of the session provisioner.
+ * </p>
+ * <p>
+ * Every <code>put</code> appends its entry to an insertion-ordered queue. Once the
+ * queue holds more than <code>maxSize</code> entries the oldest are dropped from
+ * both the queue and the map, so the number of entries held is never more than
+ * <code>maxSize</code> regardless of how the cache is used. Entries that were
+ * replaced or invalidated in the meantime are only removed from the map if they
+ * are still the current entry for their key.
+ * </p>
+ * <p>
+ * Subclasses that keep something about the keys elsewhere can override <code>evicted
+ * </code> to hear about the entries that leave on their own.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class ExpiringCache<K, V> {
+
+    private final ConcurrentHashMap<K, CacheEntry<K, V>> entries;
+    private final ConcurrentLinkedQueue<CacheEntry<K, V>> insertionOrder;
+    private final AtomicInteger queued;
+    private final int maxSize;
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     */
+    public ExpiringCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be greater than zero");
+        }
+        this.maxSize = maxSize;
+        this.entries = new ConcurrentHashMap<K, CacheEntry<K, V>>();
+        this.insertionOrder = new ConcurrentLinkedQueue<CacheEntry<K, V>>();
+        this.queued = new AtomicInteger();
+    }
+
+    /**
+     * @param key
+     * @return the cached value or <code>null</code> if there is none or it has expired
+     */
+    public V get(K key) {
+        CacheEntry<K, V> entry = entries.get(key);
+        V value = null;
+
+        if (entry != null) {
+            if (entry.isExpired(System.currentTimeMillis())) {
+                if (entries.remove(key, entry)) {
+                    evicted(key);
+                }
+            } else {
+                value = entry.value;
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param timeToLive in milliseconds
+     * @return void
+     */
+    public void put(K key, V value, long timeToLive) {
+        if (timeToLive <= 0) {
+            return;
+        }
+
+        CacheEntry<K, V> entry = new CacheEntry<K, V>(key, value, System.currentTimeMillis() + timeToLive);
+        entries.put(key, entry);
+        insertionOrder.offer(entry);
+
+        if (queued.incrementAndGet() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes the entry in one atomic step, so that of concurrent callers only one
+     * gets its value.
+     * 
+     * @param key
+     * @return the removed value or <code>null</code> if there was none or it had expired
+     */
+    public V remove(K key) {
+        CacheEntry<K, V> entry = entries.remove(key);
+        V value = null;
+
+        if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+            value = entry.value;
+        }
+
+        return value;
+    }
+
+    /**
+     * Removes every entry.
+     * 
+     * @return void
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return a live view of the keys currently held, possibly including expired ones
+     */
+    public Set<K> keySet() {
+        return entries.keySet();
+    }
+
+    /**
+     * @return number of entries currently held, possibly including expired ones
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Called once an entry has left the cache because it expired or was evicted to make 
+     * room, not when it was replaced, removed or cleared. Does nothing by default.
+     * 
+     * @param key
+     * @return void
+     */
+    protected void evicted(K key) {
+    }
+
+    private void evict() {
+        while (queued.get() > maxSize) {
+            CacheEntry<K, V> eldest = insertionOrder.poll();
+
+            if (eldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            
+            if (entries.remove(eldest.key, eldest)) {
+                evicted(eldest.key);
+            }
+        }
+    }
+
+    private static final class CacheEntry<K, V> {
+
+        private final K key;
+        private final V value;
+        private final long expiresAt;
+
+        private CacheEntry(K key, V value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * Tells the other identity nodes behind the load balancer about every token this node
+ * invalidates, and invalidates on this node every token they tell it about. Without it a
+ * token logged out on one node stays in the caches of the others until it expires there.
+ * </p>
+ * <p>
+ * Add it to the invalidation listeners of the <code>Session</code> resource (logouts), of
+ * the <code>SessionVerifier</code> (known tokens the provisioner rejects) and of the <code>
+ * TokenRevalidator</code>. <code>invalidate</code> only sends; invalidations received from
+ * peers are handed to <code>localListeners</code>, which must not include the broadcaster
+ * itself so that a message is never sent on.
+ * </p>
+ * <p>
+ * Each invalidation is a single UDP datagram sent to every peer from the calling thread, 
+ * which costs a few microseconds per peer and never waits for an answer; a daemon thread 
+ * receives. Delivery is best effort: a lost datagram leaves the token cached on that peer
+ * until it expires, exactly as without the broadcaster. Every node can be given the same 
+ * peer list, itself included: each node ignores its own datagrams. A listener that throws
+ * does not keep the token from the others, and a socket that keeps failing is retried with
+ * a growing pause of up to a second rather than in a busy loop.
+ * </p>
+ * <p>
+ * Datagrams are signed with HMAC-SHA256 under the shared <code>secret</code> and unsigned
+ * ones are dropped, so that nobody else on the network can flush the caches. Tokens are 
+ * not encrypted; peers are expected to be on the same private network that already carries 
+ * them to the session provisioner. Each datagram carries the time it was sent, covered by
+ * the signature, and is dropped when it arrives more than <code>MAX_AGE</code> (30 seconds)
+ * away from the clock of the receiver, so that a captured datagram cannot be replayed later 
+ * to flush a token that has since been cached again. Node clocks must therefore be kept in
+ * sync, e.g. with NTP. The layout, with big-endian integers, is:
+ * </p>
+ * <p>
+ * <code>version(1) nodeId(8) sentAt(8) tokenLength(2) token(UTF-8) hmac(32)</code>
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class PeerInvalidationBroadcaster implements TokenInvalidationListener {
+
+    private static final byte VERSION = 2;
+    private static final int HEADER_BYTES = 19;
+    private static final long MAX_AGE = 30000;
+    private static final long MIN_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 1000;
+    private static final int MAC_BYTES = 32;
+    private static final int MAX_DATAGRAM_BYTES = 2048;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<TokenInvalidationListener> localListeners;
+    private final List<InetSocketAddress> peers;
+    private final DatagramSocket socket;
+    private final SecretKeySpec key;
+    private final Mac sendMac;
+    private final long nodeId;
+    private final Thread receiver;
+    private final AtomicLong sent;
+    private final AtomicLong received;
+    private final AtomicLong rejected;
+    private final AtomicLong sendFailures;
+    private final AtomicLong listenerFailures;
+
+    /**
+     * Constructor
+     * 
+     * @param localListeners invalidated for every token a peer sends
+     * @param port UDP port to receive on
+     * @param peers "host:port" of every node, this one may be included
+     * @param secret shared by all nodes, at least 16 characters long
+     * @throws IllegalArgumentException if the secret is missing or too short
+     * @throws SocketException if the port cannot be bound
+     */
+    public PeerInvalidationBroadcaster(List<TokenInvalidationListener> localListeners, 
+                                       int port, 
+                                       List<String> peers, 
+                                       String secret) throws SocketException {
+        if (secret == null || secret.length() < 16) {
+            throw new IllegalArgumentException("secret must be at least 16 characters long");
+        }
+        this.localListeners = localListeners;
+        this.peers = new ArrayList<InetSocketAddress>();
+        for (String peer : peers) {
+            this.peers.add(parsePeer(peer));
+        }
+        this.key = new SecretKeySpec(secret.getBytes(UTF_8), MAC_ALGORITHM);
+        this.sendMac = createMac();
+        this.nodeId = new SecureRandom().nextLong();
+        this.sent = new AtomicLong();
+        this.received = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.sendFailures = new AtomicLong();
+        this.listenerFailures = new AtomicLong();
+        this.socket = new DatagramSocket(port);
+        this.receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "apius-peer-invalidation");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Sends the token to every peer. Does not invalidate anything locally.
+     * 
+     * @param token
+     * @return void
+     */
+    public void invalidate(String token) {
+        if (token == null || socket.isClosed()) {
+            return;
+        }
+        
+        byte[] tokenBytes = token.getBytes(UTF_8);
+        if (HEADER_BYTES + tokenBytes.length + MAC_BYTES > MAX_DATAGRAM_BYTES) {
+            return;
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + tokenBytes.length + MAC_BYTES);
+        buffer.put(VERSION).putLong(nodeId).putLong(System.currentTimeMillis()).putShort((short) tokenBytes.length).put(tokenBytes);
+        
+        synchronized (sendMac) {
+            sendMac.update(buffer.array(), 0, buffer.position());
+            buffer.put(sendMac.doFinal());
+        }
+        
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(buffer.array(), buffer.capacity(), peer));
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                sendFailures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the port datagrams are received on
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * @return number of datagrams sent, one per peer per invalidation
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of invalidations received from peers and applied
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return number of datagrams dropped because they were malformed, badly signed or 
+     *         sent more than <code>MAX_AGE</code> away from now
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of datagrams that could not be sent, one per peer per invalidation;
+     *         the token stays cached on those peers until it expires
+     */
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * @return number of times a local listener threw while invalidating a received token
+     */
+    public long getListenerFailures() {
+        return listenerFailures.get();
+    }
+
+    /**
+     * Closes the socket, which stops the receiving thread.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        socket.close();
+    }
+
+    private void receive() {
+        byte[] bytes = new byte[MAX_DATAGRAM_BYTES];
+        Mac receiveMac = createMac();
+        long backoff = 0;
+        
+        while (!socket.isClosed() && !Thread.currentThread().isInterrupted()) {
+            DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+            
+            try {
+                socket.receive(packet);
+                backoff = 0;
+            } catch (IOException e) {
+                // Closed by shutdown, which ends the loop, or an error that may persist
+                backoff = socket.isClosed() ? 0 : Math.min(Math.max(backoff * 2, MIN_BACKOFF), MAX_BACKOFF);
+                pause(backoff);
+                continue;
+            }
+            
+            String token = readToken(receiveMac, bytes, packet.getLength());
+            if (token != null) {
+                received.incrementAndGet();
+                
+                for (TokenInvalidationListener listener : localListeners) {
+                    invalidate(listener, token);
+                }
+            }
+        }
+    }
+
+    private void invalidate(TokenInvalidationListener listener, String token) {
+        try {
+            listener.invalidate(token);
+        } catch (RuntimeException e) {
+            // This is the only receiving thread, it must survive a failing listener
+            listenerFailures.incrementAndGet();
+        }
+    }
+
+    private void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param mac
+     * @param bytes
+     * @param length
+     * @return the token or <code>null</code> if the datagram is our own or cannot be trusted
+     */
+    private String readToken(Mac mac, byte[] bytes, int length) {
+        String token = null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        int tokenLength = (length >= HEADER_BYTES + MAC_BYTES) ? buffer.getShort(17) : -1;
+        
+        if (bytes[0] != VERSION || tokenLength < 0 || length != HEADER_BYTES + tokenLength + MAC_BYTES) {
+            rejected.incrementAndGet();
+        } else {
+            mac.update(bytes, 0, length - MAC_BYTES);
+            
+            if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(bytes, length - MAC_BYTES, length))) {
+                rejected.incrementAndGet();
+            } else if (Math.abs(System.currentTimeMillis() - buffer.getLong(9)) > MAX_AGE) {
+                rejected.incrementAndGet();
+            } else if (buffer.getLong(1) != nodeId) {
+                token = new String(bytes, HEADER_BYTES, tokenLength, UTF_8);
+            }
+        }
+        
+        return token;
+    }
+
+    private Mac createMac() {
+        Mac mac;
+        
+        try {
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        return mac;
+    }
+
+    private InetSocketAddress parsePeer(String peer) {
+        int colon = peer.lastIndexOf(':');
+        
+        if (colon < 1 || colon == peer.length() - 1) {
+            throw new IllegalArgumentException("Peer must be of the form \"host:port\": " + peer);
+        }
+        
+        InetSocketAddress address = 
+            new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim()));
+        if (address.isUnresolved()) {
+            throw new IllegalArgumentException("Unknown peer host: " + peer);
+        }
+        
+        return address;
+    }
+
+}
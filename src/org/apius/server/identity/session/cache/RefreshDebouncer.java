@@ -0,0 +1,223 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apius.server.identity.session.SessionProvisioner;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * Debounces session refreshes. Clients refreshing their session on a timer only 
+ * need the session provisioner's idle timer touched now and then, so at most one
+ * refresh per token and <code>window</code> seconds is sent to the provisioner and 
+ * the others are answered with the <code>User</code> it last returned.
+ * </p>
+ * <p>
+ * A session whose refreshes were all answered locally would eventually be expired
+ * by the provisioner. Every <code>interval</code> seconds the tokens that have been
+ * refreshed by their client since they were last sent, and whose provisioner idle 
+ * deadline is less than <code>refreshAhead</code> seconds away, are refreshed in the
+ * background, at most <code>batchSize</code> per round. A token the provisioner 
+ * rejects is forgotten so that the client's next refresh is rejected as well.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class RefreshDebouncer implements TokenInvalidationListener {
+
+    private final SessionProvisioner sessionProvisioner;
+    private final ExpiringCache<String, Refresh> refreshes;
+    private final long window;
+    private final long idleTimeout;
+    private final long refreshAhead;
+    private final int batchSize;
+    private final AtomicLong localRefreshes = new AtomicLong();
+    private final AtomicLong provisionerRefreshes = new AtomicLong();
+    private final AtomicLong backgroundRefreshes = new AtomicLong();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Constructor
+     * 
+     * @param sessionProvisioner
+     * @param maxSize maximum number of tokens tracked
+     * @param window number of seconds during which refreshes of a token are answered locally
+     * @param idleTimeout number of seconds the provisioner lets a session sit idle
+     * @param refreshAhead number of seconds before the idle deadline a token is refreshed in 
+     *        the background
+     * @param interval number of seconds between background rounds
+     * @param batchSize maximum number of tokens refreshed per background round
+     */
+    public RefreshDebouncer(SessionProvisioner sessionProvisioner, 
+                            int maxSize, 
+                            int window, 
+                            int idleTimeout, 
+                            int refreshAhead, 
+                            int interval, 
+                            int batchSize) {
+        if (window >= idleTimeout - refreshAhead) {
+            throw new IllegalArgumentException("window must be shorter than idleTimeout - refreshAhead");
+        }
+        this.sessionProvisioner = sessionProvisioner;
+        this.refreshes = new ExpiringCache<String, Refresh>(maxSize);
+        this.window = window * 1000L;
+        this.idleTimeout = idleTimeout * 1000L;
+        this.refreshAhead = refreshAhead * 1000L;
+        this.batchSize = batchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "apius-session-refresh");
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refreshExpiring();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Refreshes the session represented by the token, or only records the refresh if 
+     * the provisioner was refreshed less than <code>window</code> seconds ago.
+     * 
+     * @param token
+     * @return the <code>User</code> the session belongs to
+     * @throws ResourceException as thrown by the session provisioner
+     */
+    public User refresh(String token) {
+        long now = System.currentTimeMillis();
+        Refresh refresh = refreshes.get(token);
+        User user;
+        
+        if (refresh != null && now - refresh.sentAt < window) {
+            refresh.requestedAt = now;
+            user = refresh.user;
+            localRefreshes.incrementAndGet();
+        } else {
+            user = send(token);
+            provisionerRefreshes.incrementAndGet();
+        }
+        
+        return user;
+    }
+
+    public void invalidate(String token) {
+        if (token != null) {
+            refreshes.remove(token);
+        }
+    }
+
+    /**
+     * @return number of refreshes answered without calling the provisioner
+     */
+    public long getLocalRefreshes() {
+        return localRefreshes.get();
+    }
+
+    /**
+     * @return number of client refreshes sent to the provisioner
+     */
+    public long getProvisionerRefreshes() {
+        return provisionerRefreshes.get();
+    }
+
+    /**
+     * @return number of refreshes sent in the background
+     */
+    public long getBackgroundRefreshes() {
+        return backgroundRefreshes.get();
+    }
+
+    /**
+     * Stops the background refreshes. Meant to be used as the bean's destroy method.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        refreshes.clear();
+    }
+
+    private User send(String token) {
+        long now = System.currentTimeMillis();
+        User user = sessionProvisioner.refreshToken(token);
+        
+        refreshes.put(token, new Refresh(user, now), idleTimeout);
+        
+        return user;
+    }
+
+    private void refreshExpiring() {
+        long deadline = System.currentTimeMillis() + refreshAhead - idleTimeout;
+        List<String> batch = new ArrayList<String>(batchSize);
+        
+        for (String token : refreshes.keySet()) {
+            Refresh refresh = refreshes.get(token);
+            
+            if (refresh != null && refresh.requestedAt > refresh.sentAt && refresh.sentAt <= deadline) {
+                batch.add(token);
+                
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+            }
+        }
+        
+        for (String token : batch) {
+            try {
+                send(token);
+                backgroundRefreshes.incrementAndGet();
+            } catch (ResourceException e) {
+                if (e.getStatus().equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+                    refreshes.remove(token);
+                }
+            } catch (RuntimeException e) {
+                // Left for the next round.
+            }
+        }
+    }
+
+    private static final class Refresh {
+
+        private final User user;
+        private final long sentAt;
+        private volatile long requestedAt;
+
+        private Refresh(User user, long sentAt) {
+            this.user = user;
+            this.sentAt = sentAt;
+            this.requestedAt = sentAt;
+        }
+    }
+
+}
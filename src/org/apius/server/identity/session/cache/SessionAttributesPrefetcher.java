@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apius.server.identity.session.SessionProvisioner;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+/**
+ * <p>
+ * Fetches the attributes of a newly created session in the background so that
+ * the login response does not have to wait for a second round trip to the session
+ * provisioner.
+ * </p>
+ * <p>
+ * The prefetched attributes are handed out once, to the first request for the
+ * attributes of that session, and are dropped after <code>timeToLive</code> seconds
+ * if nobody asks for them. Prefetching is best effort: when the pool and its queue
+ * are full the prefetch is skipped and the attributes are simply fetched on demand.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class SessionAttributesPrefetcher implements TokenInvalidationListener {
+
+    private final SessionProvisioner sessionProvisioner;
+    private final ExpiringCache<String, FutureTask<Representation>> prefetched;
+    private final ThreadPoolExecutor executor;
+    private final long timeToLive;
+
+    /**
+     * Constructor
+     * 
+     * @param sessionProvisioner
+     * @param threads number of threads fetching attributes
+     * @param maxSize maximum number of prefetches queued or waiting to be picked up
+     * @param timeToLive number of seconds a prefetched result is kept
+     */
+    public SessionAttributesPrefetcher(SessionProvisioner sessionProvisioner, int threads, int maxSize, int timeToLive) {
+        this.sessionProvisioner = sessionProvisioner;
+        this.prefetched = new ExpiringCache<String, FutureTask<Representation>>(maxSize);
+        this.timeToLive = timeToLive * 1000L;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<Runnable>(maxSize),
+                                               new PrefetchThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts fetching the attributes of the session represented by the token.
+     * 
+     * @param token
+     * @return void
+     */
+    public void prefetch(final String token) {
+        FutureTask<Representation> task = new FutureTask<Representation>(new Callable<Representation>() {
+            public Representation call() {
+                return sessionProvisioner.getAttributes(token);
+            }
+        });
+
+        try {
+            executor.execute(task);
+            prefetched.put(token, task, timeToLive);
+        } catch (RejectedExecutionException e) {
+            // Best effort, the attributes will be fetched when they are asked for.
+        }
+    }
+
+    /**
+     * Hands out the prefetched attributes, waiting for the prefetch to complete if
+     * it is still in flight.
+     * 
+     * @param token
+     * @return the attributes or <code>null</code> if none were prefetched for the token
+     */
+    public Representation take(String token) {
+        Representation representation = null;
+        FutureTask<Representation> task = prefetched.remove(token);
+
+        if (task != null) {
+            representation = getResult(task);
+        }
+
+        return representation;
+    }
+
+    public void invalidate(String token) {
+        if (token != null) {
+            prefetched.remove(token);
+        }
+    }
+
+    /**
+     * Stops the prefetch threads. Meant to be used as the bean's destroy method.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        prefetched.clear();
+    }
+
+    private Representation getResult(FutureTask<Representation> task) {
+        Representation representation = null;
+
+        try {
+            representation = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, cause);
+        }
+
+        return representation;
+    }
+
+    private static final class PrefetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "apius-attributes-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+
+}
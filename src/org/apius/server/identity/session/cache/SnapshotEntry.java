@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.cache;
+
+/**
+ * <p>
+ * What a <code>TokenCacheSnapshot</code> keeps about one validated token. The token 
+ * itself is never written, only its SHA-256 hash, so a snapshot file cannot be used 
+ * to hijack the sessions it describes.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class SnapshotEntry {
+
+    private final String tokenHash;
+    private final String identifier;
+    private final long staleAt;
+    private final long expiresAt;
+
+    /**
+     * Constructor
+     * 
+     * @param tokenHash hex SHA-256 of the token, see <code>TokenCache.hash</code>
+     * @param identifier of the user, <code>null</code> if it was not known
+     * @param staleAt time after which the token is only accepted within the grace period
+     * @param expiresAt time after which the token is not accepted at all
+     */
+    SnapshotEntry(String tokenHash, String identifier, long staleAt, long expiresAt) {
+        this.tokenHash = tokenHash;
+        this.identifier = identifier;
+        this.staleAt = staleAt;
+        this.expiresAt = expiresAt;
+    }
+
+    String getTokenHash() {
+        return tokenHash;
+    }
+
+    String getIdentifier() {
+        return identifier;
+    }
+
+    long getStaleAt() {
+        return staleAt;
+    }
+
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * Remembers which session tokens the session provisioner has recently validated
+ * and the <code>User</code> each one resolved to, so that the <code>SessionVerifier
+ * </code> can skip the round trip to the provisioner for tokens it has already seen.
+ * </p>
+ * <p>
+ * The time to live is capped by the provisioner's idle timeout. A token that has
+ * sat idle long enough for the provisioner to expire it can therefore never be
+ * served from this cache. Both values are in seconds so that they can be copied
+ * straight from the provisioner's session service configuration.
+ * </p>
+ * <p>
+ * With a <code>gracePeriod</code>, tokens are kept that many seconds past their time 
+ * to live. <code>get</code> no longer returns them but <code>getStale</code> does, so 
+ * that a token validated shortly before the provisioner became unhealthy can still be 
+ * accepted during the outage. Since the provisioner cannot be asked, such a token may
+ * have been logged out or have expired in the meantime; the grace period bounds how 
+ * long that can go unnoticed.
+ * </p>
+ * <p>
+ * A <code>TokenCacheSnapshot</code> can write the cache to disk and load it back after a 
+ * restart. Loaded entries are only known by the hash of their token, so they are kept 
+ * aside and moved into the cache the first time a request presents the matching token.
+ * Until then, and only while any are left, a miss costs one SHA-256 of the token.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class TokenCache implements TokenInvalidationListener {
+
+    private final ExpiringCache<String, CachedUser> cache;
+    private final long timeToLive;
+    private final long gracePeriod;
+    private final ConcurrentHashMap<String, SnapshotEntry> restored;
+    private volatile UserRestorer userRestorer;
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize maximum number of tokens held
+     * @param timeToLive number of seconds a validated token is trusted for
+     * @param idleTimeout number of seconds the provisioner lets a session sit idle
+     */
+    public TokenCache(int maxSize, int timeToLive, int idleTimeout) {
+        this(maxSize, timeToLive, idleTimeout, 0);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize maximum number of tokens held
+     * @param timeToLive number of seconds a validated token is trusted for
+     * @param idleTimeout number of seconds the provisioner lets a session sit idle
+     * @param gracePeriod number of seconds past its time to live a token can still be 
+     *        accepted while the provisioner is unhealthy
+     */
+    public TokenCache(int maxSize, int timeToLive, int idleTimeout, int gracePeriod) {
+        this.cache = new ExpiringCache<String, CachedUser>(maxSize);
+        this.timeToLive = Math.min(timeToLive, idleTimeout) * 1000L;
+        this.gracePeriod = gracePeriod * 1000L;
+        this.restored = new ConcurrentHashMap<String, SnapshotEntry>();
+    }
+
+    /**
+     * @param token
+     * @return the <code>User</code> the token was last validated for or <code>null</code>
+     */
+    public User get(String token) {
+        CachedUser cachedUser = getCachedUser(token);
+        
+        return (cachedUser != null && !cachedUser.isStale(System.currentTimeMillis())) ? cachedUser.user : null;
+    }
+
+    /**
+     * @param token
+     * @return the <code>User</code> the token was last validated for, even if its time 
+     *         to live has passed, as long as it is within the grace period; <code>null
+     *         </code> otherwise
+     */
+    public User getStale(String token) {
+        CachedUser cachedUser = getCachedUser(token);
+        
+        return (cachedUser != null) ? cachedUser.user : null;
+    }
+
+    /**
+     * @param token
+     * @param user
+     * @return void
+     */
+    public void put(String token, User user) {
+        if (token != null && user != null && timeToLive > 0) {
+            cache.put(token, new CachedUser(user, System.currentTimeMillis() + timeToLive), timeToLive + gracePeriod);
+        }
+    }
+
+    /**
+     * Forgets the token, for instance because the session it represents was logged out.
+     * 
+     * @param token
+     * @return void
+     */
+    public void invalidate(String token) {
+        if (token != null) {
+            cache.remove(token);
+            
+            if (!restored.isEmpty()) {
+                restored.remove(hash(token));
+            }
+        }
+    }
+
+    /**
+     * @return time to live in milliseconds after the idle timeout cap has been applied
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return grace period in milliseconds
+     */
+    public long getGracePeriod() {
+        return gracePeriod;
+    }
+
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    /**
+     * @return number of entries loaded from a snapshot whose token has not been seen yet
+     */
+    public int getRestoredSize() {
+        return restored.size();
+    }
+
+    /**
+     * @param userRestorer
+     * @return the cached tokens that have not expired, plus the restored entries not seen 
+     *         yet; restored entries that have expired are dropped
+     */
+    List<SnapshotEntry> snapshot(UserRestorer userRestorer) {
+        List<SnapshotEntry> entries = new ArrayList<SnapshotEntry>(cache.size() + restored.size());
+        Set<String> hashes = new HashSet<String>();
+        long now = System.currentTimeMillis();
+        
+        for (String token : cache.keySet()) {
+            CachedUser cachedUser = cache.get(token);
+            
+            if (cachedUser != null) {
+                SnapshotEntry entry = new SnapshotEntry(hash(token), 
+                                                        userRestorer.getKnownIdentifier(cachedUser.user), 
+                                                        cachedUser.staleAt, 
+                                                        cachedUser.staleAt + gracePeriod);
+                entries.add(entry);
+                hashes.add(entry.getTokenHash());
+            }
+        }
+        for (SnapshotEntry entry : restored.values()) {
+            if (entry.getExpiresAt() > now) {
+                if (!hashes.contains(entry.getTokenHash())) {
+                    entries.add(entry);
+                }
+            } else {
+                restored.remove(entry.getTokenHash(), entry);
+            }
+        }
+        
+        return entries;
+    }
+
+    /**
+     * Keeps the entries aside until their token is presented. Entries beyond <code>
+     * maxSize</code> are dropped. No entry is trusted for longer than the time to live past
+     * <code>writtenAt</code>, plus the grace period, whatever times it holds.
+     * 
+     * @param entries
+     * @param writtenAt time the entries were written, capped at now
+     * @param userRestorer rebuilds the <code>User</code> of an entry once its token is known
+     * @return void
+     */
+    void restore(Collection<SnapshotEntry> entries, long writtenAt, UserRestorer userRestorer) {
+        long now = System.currentTimeMillis();
+        long maxStaleAt = Math.min(writtenAt, now) + timeToLive;
+        
+        this.userRestorer = userRestorer;
+        
+        for (SnapshotEntry entry : entries) {
+            long staleAt = Math.min(entry.getStaleAt(), maxStaleAt);
+            long expiresAt = Math.min(entry.getExpiresAt(), staleAt + gracePeriod);
+            
+            if (restored.size() >= cache.getMaxSize()) {
+                break;
+            }
+            if (expiresAt > now) {
+                restored.put(entry.getTokenHash(), 
+                             new SnapshotEntry(entry.getTokenHash(), entry.getIdentifier(), staleAt, expiresAt));
+            }
+        }
+    }
+
+    /**
+     * @param token
+     * @return hex SHA-256 of the token
+     */
+    static String hash(String token) {
+        String hash;
+        
+        try {
+            hash = toHex(MessageDigest.getInstance("SHA-256").digest(token.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        return hash;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        
+        return sb.toString();
+    }
+
+    private CachedUser getCachedUser(String token) {
+        CachedUser cachedUser = (token != null) ? cache.get(token) : null;
+        
+        if (cachedUser == null && token != null && !restored.isEmpty()) {
+            SnapshotEntry entry = restored.remove(hash(token));
+            long now = System.currentTimeMillis();
+            
+            if (entry != null && entry.getExpiresAt() > now) {
+                cachedUser = new CachedUser(userRestorer.restoreUser(token, entry.getIdentifier()), entry.getStaleAt());
+                cache.put(token, cachedUser, entry.getExpiresAt() - now);
+            }
+        }
+        
+        return cachedUser;
+    }
+
+    private static final class CachedUser {
+
+        private final User user;
+        private final long staleAt;
+
+        private CachedUser(User user, long staleAt) {
+            this.user = user;
+            this.staleAt = staleAt;
+        }
+
+        private boolean isStale(long now) {
+            return now >= staleAt;
+        }
+    }
+
+}
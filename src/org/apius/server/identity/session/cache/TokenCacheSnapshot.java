@@ -0,0 +1,354 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * Writes the <code>TokenCache</code> to a file every <code>interval</code> seconds and on
+ * <code>shutdown</code>, and loads it back when constructed. A restarted node therefore 
+ * accepts the tokens it had validated before the restart without asking the session 
+ * provisioner again, instead of sending every live session to it in the first minutes 
+ * after a deploy.
+ * </p>
+ * <p>
+ * The file is written through a memory-mapped buffer into a temporary file next to it,
+ * forced to disk and renamed over the previous snapshot, so a crash never leaves a half 
+ * written snapshot behind. It is loaded through a read-only mapping. Entries that have 
+ * expired in the meantime are skipped. A missing, unreadable or corrupt file is ignored 
+ * and the cache starts cold, as it would without a snapshot.
+ * </p>
+ * <p>
+ * A restored entry lets its token in without asking the session provisioner, so the file
+ * is not trusted blindly. It must be in a directory that exists and that only its owner, 
+ * the user running this node, can read or write: the construction fails otherwise. It is
+ * signed with an HMAC-SHA256 keyed by <code>secret</code>, and a file whose signature does
+ * not match is ignored. And whatever times the file holds, a restored token is trusted no 
+ * longer than the time to live of the <code>TokenCache</code> past the time the snapshot 
+ * was written, plus its grace period.
+ * </p>
+ * <p>
+ * The layout is, with big-endian integers and strings as a 2 byte length (-1 when there 
+ * is no value) followed by that many bytes of UTF-8:
+ * </p>
+ * <p>
+ * <code>magic(4) version(4) writtenAt(8) count(4) (sha256(32) staleAt(8) expiresAt(8) identifier)* hmac(32)</code>
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class TokenCacheSnapshot {
+
+    private static final int MAGIC = 0x41505443;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 20;
+    private static final int HASH_BYTES = 32;
+    private static final int MAC_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String FILE_NAME = "identity-token-cache.snapshot";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final TokenCache tokenCache;
+    private final UserRestorer userRestorer;
+    private final File file;
+    private final SecretKeySpec key;
+    private final ScheduledExecutorService executor;
+    private final int restoredCount;
+    private final AtomicLong writes;
+    private final AtomicLong writeFailures;
+
+    /**
+     * Loads the snapshot, if there is one, into the cache.
+     * 
+     * @param tokenCache
+     * @param userRestorer the session provisioner whose users the cache holds
+     * @param directory the snapshot file is kept in, must exist and be closed to everybody 
+     *        but its owner, the user running this node
+     * @param secret signs the snapshot file, at least 16 characters long
+     * @param interval number of seconds between snapshots
+     */
+    public TokenCacheSnapshot(TokenCache tokenCache, 
+                              UserRestorer userRestorer, 
+                              String directory, 
+                              String secret, 
+                              int interval) {
+        if (secret == null || secret.length() < 16) {
+            throw new IllegalArgumentException("secret must be at least 16 characters long");
+        }
+        checkDirectory(directory);
+        this.tokenCache = tokenCache;
+        this.userRestorer = userRestorer;
+        this.file = new File(directory, FILE_NAME);
+        this.key = new SecretKeySpec(secret.getBytes(UTF_8), MAC_ALGORITHM);
+        this.writes = new AtomicLong();
+        this.writeFailures = new AtomicLong();
+        this.restoredCount = restore();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "apius-token-cache-snapshot");
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return number of entries loaded at construction
+     */
+    public int getRestoredCount() {
+        return restoredCount;
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    /**
+     * Stops the periodic snapshots and writes a last one.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        write();
+    }
+
+    /**
+     * Writes the snapshot now.
+     * 
+     * @return boolean indicating whether the snapshot was written
+     */
+    public boolean write() {
+        List<SnapshotEntry> entries = tokenCache.snapshot(userRestorer);
+        List<byte[]> identifiers = new ArrayList<byte[]>(entries.size());
+        long size = HEADER_BYTES;
+        
+        for (SnapshotEntry entry : entries) {
+            String identifier = entry.getIdentifier();
+            byte[] bytes = (identifier != null) ? identifier.getBytes(UTF_8) : null;
+            
+            if (bytes != null && bytes.length > Short.MAX_VALUE) {
+                bytes = null;
+            }
+            identifiers.add(bytes);
+            size += HASH_BYTES + 8 + 8 + 2 + ((bytes != null) ? bytes.length : 0);
+        }
+        size += MAC_BYTES;
+        
+        boolean written = false;
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+            try {
+                randomAccessFile.setLength(size);
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                
+                buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    SnapshotEntry entry = entries.get(i);
+                    byte[] identifier = identifiers.get(i);
+                    
+                    buffer.put(fromHex(entry.getTokenHash()));
+                    buffer.putLong(entry.getStaleAt()).putLong(entry.getExpiresAt());
+                    buffer.putShort((short) ((identifier != null) ? identifier.length : -1));
+                    if (identifier != null) {
+                        buffer.put(identifier);
+                    }
+                }
+                buffer.put(sign(buffer.duplicate(), buffer.position()));
+                buffer.force();
+            } finally {
+                randomAccessFile.close();
+            }
+            // renameTo does not replace an existing file on every platform.
+            written = temporaryFile.renameTo(file) || (file.delete() && temporaryFile.renameTo(file));
+        } catch (IOException e) {
+            written = false;
+        }
+        
+        if (written) {
+            writes.incrementAndGet();
+        } else {
+            writeFailures.incrementAndGet();
+            temporaryFile.delete();
+        }
+        
+        return written;
+    }
+
+    private int restore() {
+        List<SnapshotEntry> entries = new ArrayList<SnapshotEntry>();
+        long writtenAt = 0;
+        
+        if (file.isFile()) {
+            try {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                try {
+                    MappedByteBuffer buffer = 
+                        randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                    
+                    if (isSigned(buffer) && buffer.getInt() == MAGIC && buffer.getInt() == VERSION) {
+                        long now = System.currentTimeMillis();
+                        byte[] hash = new byte[HASH_BYTES];
+                        
+                        writtenAt = buffer.getLong();
+                        for (int count = buffer.getInt(); count > 0; count--) {
+                            buffer.get(hash);
+                            long staleAt = buffer.getLong();
+                            long expiresAt = buffer.getLong();
+                            short length = buffer.getShort();
+                            String identifier = null;
+                            
+                            if (length < -1) {
+                                throw new BufferUnderflowException();
+                            } else if (length >= 0) {
+                                byte[] bytes = new byte[length];
+                                buffer.get(bytes);
+                                identifier = new String(bytes, UTF_8);
+                            }
+                            if (expiresAt > now) {
+                                entries.add(new SnapshotEntry(TokenCache.toHex(hash), identifier, staleAt, expiresAt));
+                            }
+                        }
+                    }
+                } finally {
+                    randomAccessFile.close();
+                }
+            } catch (IOException e) {
+                entries.clear();
+            } catch (BufferUnderflowException e) {
+                // Truncated or not a snapshot: start cold rather than trust part of it.
+                entries.clear();
+            }
+        }
+        tokenCache.restore(entries, writtenAt, userRestorer);
+        
+        return tokenCache.getRestoredSize();
+    }
+
+    /**
+     * Checks the signature at the end of the buffer and, if it matches, limits the buffer 
+     * to what precedes it.
+     */
+    private boolean isSigned(ByteBuffer buffer) {
+        boolean isSigned = false;
+        int length = buffer.limit() - MAC_BYTES;
+        
+        if (length >= HEADER_BYTES) {
+            byte[] signature = new byte[MAC_BYTES];
+            ((ByteBuffer) buffer.duplicate().position(length)).get(signature);
+            
+            if (MessageDigest.isEqual(sign(buffer.duplicate(), length), signature)) {
+                buffer.limit(length);
+                isSigned = true;
+            }
+        }
+        
+        return isSigned;
+    }
+
+    private byte[] sign(ByteBuffer buffer, int length) {
+        byte[] signature;
+        
+        buffer.position(0).limit(length);
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            mac.update(buffer);
+            signature = mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        return signature;
+    }
+
+    private static void checkDirectory(String directory) {
+        if (directory == null || !new File(directory).isDirectory()) {
+            throw new IllegalArgumentException("directory must exist: " + directory);
+        }
+        
+        PosixFileAttributeView view = Files.getFileAttributeView(new File(directory).toPath(), PosixFileAttributeView.class);
+        
+        // Without POSIX permissions only the signature protects the file
+        if (view != null) {
+            try {
+                PosixFileAttributes attributes = view.readAttributes();
+                EnumSet<PosixFilePermission> ownerOnly = 
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+                
+                if (!attributes.owner().getName().equals(System.getProperty("user.name")) 
+                        || !ownerOnly.containsAll(attributes.permissions())) {
+                    throw new IllegalArgumentException("directory must belong to " + System.getProperty("user.name") 
+                                                       + " and be closed to group and others: " + directory);
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("directory permissions cannot be read: " + directory, e);
+            }
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        
+        return bytes;
+    }
+
+}
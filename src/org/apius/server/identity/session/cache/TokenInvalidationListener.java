@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.cache;
+
+/**
+ * <p>
+ * Implemented by anything that holds on to knowledge about a session token and
+ * must forget it once the session is no longer valid (i.e. after a logout).
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface TokenInvalidationListener {
+
+    /**
+     * Drops everything known about the session represented by the token.
+     * 
+     * @param token
+     * @return void
+     */
+    abstract void invalidate(String token);
+
+}
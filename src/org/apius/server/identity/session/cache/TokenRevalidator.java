@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.cache;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apius.server.identity.session.CircuitBreaker;
+import org.apius.server.identity.session.SessionProvisioner;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * <p>
+ * Checks again, once the session provisioner is reachable, the tokens that were 
+ * accepted from the <code>TokenCache</code> grace period while it was not.
+ * </p>
+ * <p>
+ * Every <code>interval</code> seconds the pending tokens are validated one after the
+ * other. A valid token is put back in the cache as freshly validated, a token the 
+ * provisioner rejects is dropped from the cache (and from the other listeners) so 
+ * the next request with it is challenged. The round stops at the first call that
+ * fails for another reason, since the provisioner is evidently still unhealthy.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class TokenRevalidator implements TokenInvalidationListener {
+
+    private final SessionProvisioner sessionProvisioner;
+    private final TokenCache tokenCache;
+    private final List<TokenInvalidationListener> invalidationListeners;
+    private final Set<String> pending = 
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Constructor
+     * 
+     * @param sessionProvisioner
+     * @param tokenCache
+     * @param invalidationListeners told about every token the provisioner rejects
+     * @param interval number of seconds between rounds
+     */
+    public TokenRevalidator(SessionProvisioner sessionProvisioner, 
+                            TokenCache tokenCache, 
+                            List<TokenInvalidationListener> invalidationListeners,
+                            int interval) {
+        this.sessionProvisioner = sessionProvisioner;
+        this.tokenCache = tokenCache;
+        this.invalidationListeners = invalidationListeners;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "apius-token-revalidator");
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                revalidate();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Marks a token accepted without the session provisioner for revalidation.
+     * 
+     * @param token
+     * @return void
+     */
+    public void add(String token) {
+        pending.add(token);
+    }
+
+    public void invalidate(String token) {
+        if (token != null) {
+            pending.remove(token);
+        }
+    }
+
+    /**
+     * @return number of tokens waiting to be revalidated
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the revalidation thread. Meant to be used as the bean's destroy method.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        pending.clear();
+    }
+
+    private void revalidate() {
+        for (Iterator<String> i = pending.iterator(); i.hasNext();) {
+            String token = i.next();
+            
+            try {
+                tokenCache.put(token, sessionProvisioner.authenticateToken(token));
+                i.remove();
+            } catch (ResourceException e) {
+                if (CircuitBreaker.isFailure(e.getStatus())) {
+                    break;
+                }
+                i.remove();
+                
+                if (e.getStatus().equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+                    tokenCache.invalidate(token);
+                    for (TokenInvalidationListener listener : invalidationListeners) {
+                        listener.invalidate(token);
+                    }
+                }
+            } catch (RuntimeException e) {
+                break;
+            }
+        }
+    }
+
+}
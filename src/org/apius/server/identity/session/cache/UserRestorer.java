@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.cache;
+
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * Lets a <code>TokenCacheSnapshot</code> write the users held by the <code>TokenCache
+ * </code> to disk and rebuild them after a restart. Implemented by the session provisioner
+ * that created the users, since only it knows what they are made of.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface UserRestorer {
+
+    /**
+     * Must not make any remote call: a user whose identifier has not been looked up
+     * yet is written without one.
+     * 
+     * @param user
+     * @return the identifier of the user if it is already known, <code>null</code> otherwise
+     */
+    abstract String getKnownIdentifier(User user);
+
+    /**
+     * @param token the session belongs to
+     * @param identifier as returned by <code>getKnownIdentifier</code>, possibly <code>null</code>
+     * @return a <code>User</code> equivalent to the one that was written
+     */
+    abstract User restoreUser(String token, String identifier);
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.credential;
+
+import org.apius.server.identity.session.openam.client.SessionAttributes;
+
+/**
+ * <p>
+ * Looks up what a <code>SignedCredential</code> says about the user a session belongs
+ * to: the identifier and the roles. Implemented by the session provisioner, which is 
+ * the only one that knows them.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface ClaimsResolver {
+
+    /**
+     * @param token
+     * @return the attributes of the session represented by the token
+     */
+    abstract SessionAttributes getSessionAttributes(String token);
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.credential;
+
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+
+/**
+ * <p>
+ * Revokes, in <code>SignedCredentials</code>, every token a peer invalidated. Meant for 
+ * the <code>localListeners</code> of a <code>PeerInvalidationBroadcaster</code>, in place
+ * of the <code>SignedCredentials</code> themselves: those only revoke the tokens they have
+ * seen a credential for, but a credential issued on the peer may be presented here next.
+ * Peers only send tokens that were logged out there or that the session provisioner 
+ * rejected after having validated them, in datagrams signed with the shared secret.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class PeerCredentialRevoker implements TokenInvalidationListener {
+
+    private final SignedCredentials signedCredentials;
+
+    /**
+     * Constructor
+     * 
+     * @param signedCredentials
+     */
+    public PeerCredentialRevoker(SignedCredentials signedCredentials) {
+        this.signedCredentials = signedCredentials;
+    }
+
+    public void invalidate(String token) {
+        signedCredentials.revoke(token);
+    }
+
+}
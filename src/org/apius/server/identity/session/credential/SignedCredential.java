@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.credential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.restlet.security.Role;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * Immutable content of a credential issued by <code>SignedCredentials</code>: the
+ * session provisioner token it stands for, the identifier and roles of the user and
+ * the time until which it may be trusted without asking the session provisioner.
+ * </p>
+ * <p>
+ * Only ever built from a credential whose signature has been checked, or to be signed.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SignedCredential {
+
+    private final String token;
+    private final String identifier;
+    private final List<String> roles;
+    private final long expiresAt;
+
+    /**
+     * Takes ownership of the roles, which may not be modified by the caller afterwards.
+     * 
+     * @param token
+     * @param identifier of the user, may be <code>null</code>
+     * @param roles
+     * @param expiresAt milliseconds since the epoch
+     */
+    public SignedCredential(String token, String identifier, List<String> roles, long expiresAt) {
+        this.token = token;
+        this.identifier = identifier;
+        this.roles = Collections.unmodifiableList(roles);
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return the session provisioner token
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the identifier (or username) of the user, <code>null</code> if it was not known
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the roles of the user
+     */
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return milliseconds since the epoch
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @param now milliseconds since the epoch
+     * @return <code>true</code> once the session provisioner must be asked again
+     */
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * @return a new <code>User</code> with the identifier of the credential
+     */
+    public User createUser() {
+        return new User(identifier);
+    }
+
+    /**
+     * @return a new <code>Role</code> per role of the credential
+     */
+    public List<Role> createRoles() {
+        List<Role> createdRoles = new ArrayList<Role>(roles.size());
+
+        for (String role : roles) {
+            createdRoles.add(new Role(role, null));
+        }
+
+        return createdRoles;
+    }
+
+}
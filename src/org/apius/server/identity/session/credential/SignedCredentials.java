@@ -0,0 +1,436 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.credential;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+import org.apius.server.identity.session.openam.client.SessionAttributes;
+import org.restlet.Request;
+import org.restlet.engine.util.Base64;
+
+/**
+ * <p>
+ * Issues and checks short-lived credentials that stand in for a session provisioner token
+ * once the provisioner has validated it. A credential carries the token, the identifier
+ * and roles of the user and an expiry, and is signed with HMAC-SHA256, so that until it
+ * expires any node holding the key can trust it without calling the provisioner.
+ * </p>
+ * <p>
+ * The <code>Session</code> resource hands credentials out in place of the token, in the
+ * session cookie, and clients send them back with the <code>APIUS</code> challenge scheme
+ * exactly as they would the token. The <code>SessionAuthenticatorHelper</code> checks the
+ * signature while parsing the <code>Authorization</code> header, replaces the credential
+ * by the token it carries and leaves the credential in the request attributes, where the
+ * <code>SessionVerifier</code> finds it. Everything after the helper therefore only ever
+ * sees provisioner tokens. An expired credential is still unwrapped, and its token is
+ * verified with the provisioner as if the client had sent it.
+ * </p>
+ * <p>
+ * Credentials are signed under the current key and checked under whichever key their
+ * <code>keyId</code> names. To rotate, <code>rotate</code> to (or restart with) a new
+ * current key while keeping the old one, and <code>retire</code> (or drop) the old one
+ * once every credential it signed has expired, i.e. after <code>timeToLive</code>.
+ * </p>
+ * <p>
+ * Add it to the invalidation listeners of the <code>Session</code> resource and of the
+ * <code>SessionVerifier</code>: the credentials of a logged out or rejected token are
+ * refused from then on, rather than trusted until they expire. Only tokens a credential 
+ * was issued for or presented with on this node, at most <code>maxCredentialTokens</code>
+ * of them, are revoked that way, so that made-up tokens take no room; the tokens peers 
+ * invalidated are revoked through a <code>PeerCredentialRevoker</code> instead.
+ * </p>
+ * <p>
+ * At most <code>maxRevoked</code> tokens are revoked at a time, each for <code>timeToLive
+ * </code>, and none is forgotten early. Revoking a token when there is no room fails 
+ * closed: until that revocation would have ended, no credential is trusted and the token 
+ * each one carries is verified with the session provisioner instead, as if it had expired.
+ * Likewise, while there are more tokens with credentials than <code>maxCredentialTokens
+ * </code>, every token invalidated is revoked.
+ * </p>
+ * <p>
+ * The layout, with <code>payload</code> and <code>hmac</code> Base64 URL encoded without
+ * padding and the HMAC taken over everything before it, is:
+ * </p>
+ * <p>
+ * <code>apius1.keyId.payload.hmac</code>
+ * </p>
+ * <p>
+ * and the payload, with big-endian integers and modified UTF-8 strings:
+ * </p>
+ * <p>
+ * <code>expiresAt(8) token identifier roleCount(2) role*</code>
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SignedCredentials implements TokenInvalidationListener {
+
+    /**
+     * Name of the request attribute holding the <code>SignedCredential</code> the client sent.
+     */
+    public static final String ATTRIBUTE = "org.apius.identity.credential";
+
+    private static final String PREFIX = "apius1.";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MIN_SECRET_LENGTH = 16;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ClaimsResolver claimsResolver;
+    private final long timeToLive;
+    private final TokenDeadlines credentialTokens;
+    private final TokenDeadlines revokedTokens;
+    private volatile Map<String, SecretKeySpec> keys;
+    private volatile String currentKeyId;
+
+    /**
+     * Constructor
+     * 
+     * @param claimsResolver looks up the identifier and roles of a token
+     * @param keys secrets, of at least 16 characters, by key id
+     * @throws IllegalArgumentException if a secret is missing or too short
+     * @param currentKeyId of the key new credentials are signed with
+     * @param timeToLive seconds a credential is trusted for
+     * @param maxRevoked revoked tokens remembered before credentials are no longer trusted
+     * @param maxCredentialTokens tokens with credentials tracked before every invalidated 
+     *        token is revoked
+     */
+    public SignedCredentials(ClaimsResolver claimsResolver,
+                             Map<String, String> keys,
+                             String currentKeyId,
+                             int timeToLive,
+                             int maxRevoked,
+                             int maxCredentialTokens) {
+        Map<String, SecretKeySpec> keySpecs = new HashMap<String, SecretKeySpec>();
+
+        for (Map.Entry<String, String> key : keys.entrySet()) {
+            keySpecs.put(checkKeyId(key.getKey()), createKey(key.getValue()));
+        }
+        if (!keySpecs.containsKey(currentKeyId)) {
+            throw new IllegalArgumentException("currentKeyId must be one of the keys");
+        }
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("timeToLive must be greater than zero");
+        }
+        this.claimsResolver = claimsResolver;
+        this.keys = Collections.unmodifiableMap(keySpecs);
+        this.currentKeyId = currentKeyId;
+        this.timeToLive = timeToLive * 1000L;
+        this.credentialTokens = new TokenDeadlines(maxCredentialTokens);
+        this.revokedTokens = new TokenDeadlines(maxRevoked);
+    }
+
+    /**
+     * @param value
+     * @return <code>true</code> if the value has the layout of a credential, whether
+     *         or not it is signed
+     */
+    public static boolean isCredential(String value) {
+        return value != null && value.startsWith(PREFIX);
+    }
+
+    /**
+     * @param request
+     * @return the credential the client sent with the request, <code>null</code> if none
+     *         or if its signature did not check
+     */
+    public static SignedCredential getCredential(Request request) {
+        return (SignedCredential) request.getAttributes().get(ATTRIBUTE);
+    }
+
+    /**
+     * Asks the <code>ClaimsResolver</code> for the identifier and roles of the token and
+     * signs them.
+     * 
+     * @param token validated by the session provisioner
+     * @return the credential
+     */
+    public String issue(String token) {
+        SessionAttributes sessionAttributes = claimsResolver.getSessionAttributes(token);
+
+        return sign(new SignedCredential(token,
+                                         sessionAttributes.getUsername(),
+                                         new ArrayList<String>(sessionAttributes.getRoles()),
+                                         System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Signs the claims of a credential the client sent again, with a new expiry, without
+     * asking the <code>ClaimsResolver</code>.
+     * 
+     * @param credential
+     * @return the renewed credential
+     */
+    public String renew(SignedCredential credential) {
+        return sign(new SignedCredential(credential.getToken(),
+                                         credential.getIdentifier(),
+                                         credential.getRoles(),
+                                         System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Checks the signature of the credential in constant time. Does not check the expiry,
+     * which only decides whether the session provisioner must be asked again.
+     * 
+     * @param value as sent by the client
+     * @return the content of the credential, <code>null</code> if it is malformed, signed
+     *         with an unknown key or not signed with the key it names, or if its token has
+     *         been revoked; already expired if revocations could not all be remembered
+     */
+    public SignedCredential verify(String value) {
+        SignedCredential credential = null;
+        int keyEnd = isCredential(value) ? value.indexOf('.', PREFIX.length()) : -1;
+        int payloadEnd = (keyEnd > 0) ? value.indexOf('.', keyEnd + 1) : -1;
+        SecretKeySpec key = (payloadEnd > 0) ? keys.get(value.substring(PREFIX.length(), keyEnd)) : null;
+
+        if (key != null) {
+            byte[] expected = createMac(key).doFinal(value.substring(0, payloadEnd).getBytes(US_ASCII));
+            byte[] actual = decode(value.substring(payloadEnd + 1));
+
+            if (actual != null && MessageDigest.isEqual(expected, actual)) {
+                credential = read(decode(value.substring(keyEnd + 1, payloadEnd)));
+            }
+        }
+        if (credential != null) {
+            credential = checkRevocation(credential, System.currentTimeMillis());
+        }
+
+        return credential;
+    }
+
+    /**
+     * Refuses the credentials of the token from now on, if a credential was issued for
+     * it or presented with it on this node.
+     * 
+     * @param token
+     * @return void
+     */
+    public void invalidate(String token) {
+        long now = System.currentTimeMillis();
+
+        if (token != null && (credentialTokens.contains(token, now) || credentialTokens.isOverflowed(now))) {
+            revokedTokens.add(token, now + timeToLive, now);
+        }
+    }
+
+    /**
+     * Refuses the credentials of the token from now on, whether or not this node has seen 
+     * one. Only for tokens a trusted party invalidated, such as a peer.
+     * 
+     * @param token
+     * @return void
+     */
+    public void revoke(String token) {
+        long now = System.currentTimeMillis();
+
+        if (token != null) {
+            revokedTokens.add(token, now + timeToLive, now);
+        }
+    }
+
+    /**
+     * Adds a key and signs new credentials with it. Credentials signed with the previous
+     * keys are still accepted.
+     * 
+     * @param keyId
+     * @param secret of at least 16 characters
+     * @return void
+     */
+    public synchronized void rotate(String keyId, String secret) {
+        Map<String, SecretKeySpec> keySpecs = new HashMap<String, SecretKeySpec>(keys);
+
+        keySpecs.put(checkKeyId(keyId), createKey(secret));
+        keys = Collections.unmodifiableMap(keySpecs);
+        currentKeyId = keyId;
+    }
+
+    /**
+     * Stops accepting the credentials signed with a key. The current key cannot be retired.
+     * 
+     * @param keyId
+     * @return void
+     */
+    public synchronized void retire(String keyId) {
+        if (keyId.equals(currentKeyId)) {
+            throw new IllegalArgumentException("The current key cannot be retired");
+        }
+        Map<String, SecretKeySpec> keySpecs = new HashMap<String, SecretKeySpec>(keys);
+
+        keySpecs.remove(keyId);
+        keys = Collections.unmodifiableMap(keySpecs);
+    }
+
+    /**
+     * @return seconds a credential is trusted for
+     */
+    public int getTimeToLive() {
+        return (int) (timeToLive / 1000);
+    }
+
+    private SignedCredential checkRevocation(SignedCredential credential, long now) {
+        SignedCredential checked = credential;
+
+        if (revokedTokens.contains(credential.getToken(), now)) {
+            checked = null;
+        } else if (!credential.isExpired(now)) {
+            credentialTokens.add(credential.getToken(), credential.getExpiresAt(), now);
+
+            if (revokedTokens.isOverflowed(now)) {
+                checked = new SignedCredential(credential.getToken(), credential.getIdentifier(), credential.getRoles(), now);
+            }
+        }
+
+        return checked;
+    }
+
+    private String sign(SignedCredential credential) {
+        String keyId;
+        SecretKeySpec key;
+
+        synchronized (this) {
+            keyId = currentKeyId;
+            key = keys.get(keyId);
+        }
+        StringBuilder sb = new StringBuilder(PREFIX).append(keyId).append('.').append(encode(write(credential)));
+        byte[] mac = createMac(key).doFinal(sb.toString().getBytes(US_ASCII));
+
+        credentialTokens.add(credential.getToken(), credential.getExpiresAt(), System.currentTimeMillis());
+
+        return sb.append('.').append(encode(mac)).toString();
+    }
+
+    private byte[] write(SignedCredential credential) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeLong(credential.getExpiresAt());
+            out.writeUTF(credential.getToken());
+            out.writeUTF((credential.getIdentifier() != null) ? credential.getIdentifier() : "");
+            out.writeShort(credential.getRoles().size());
+            for (String role : credential.getRoles()) {
+                out.writeUTF(role);
+            }
+        } catch (IOException e) {
+            // Cannot happen with a ByteArrayOutputStream, only strings over 64K would fail
+            throw new IllegalArgumentException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private SignedCredential read(byte[] payload) {
+        SignedCredential credential = null;
+
+        if (payload != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+            try {
+                long expiresAt = in.readLong();
+                String token = in.readUTF();
+                String identifier = in.readUTF();
+                int roleCount = in.readUnsignedShort();
+                List<String> roles = new ArrayList<String>(roleCount);
+
+                for (int i = 0; i < roleCount; i++) {
+                    roles.add(in.readUTF());
+                }
+                credential = new SignedCredential(token, identifier.isEmpty() ? null : identifier, roles, expiresAt);
+            } catch (IOException e) {
+                // Signed by us but unreadable: only possible after a change of layout
+            }
+        }
+
+        return credential;
+    }
+
+    private static String encode(byte[] bytes) {
+        String encoded = Base64.encode(bytes, false);
+        int end = encoded.length();
+
+        while (end > 0 && encoded.charAt(end - 1) == '=') {
+            end--;
+        }
+
+        return encoded.substring(0, end).replace('+', '-').replace('/', '_');
+    }
+
+    private static byte[] decode(String encoded) {
+        byte[] decoded = null;
+        StringBuilder sb = new StringBuilder(encoded.length() + 2);
+
+        sb.append(encoded.replace('-', '+').replace('_', '/'));
+        while (sb.length() % 4 != 0) {
+            sb.append('=');
+        }
+        try {
+            decoded = Base64.decode(sb.toString());
+        } catch (RuntimeException e) {
+            // Not Base64, not one of ours
+        }
+
+        return decoded;
+    }
+
+    private static String checkKeyId(String keyId) {
+        if (keyId == null || keyId.isEmpty() || keyId.indexOf('.') >= 0) {
+            throw new IllegalArgumentException("Key ids must be non-empty and may not contain '.'");
+        }
+
+        return keyId;
+    }
+
+    private static SecretKeySpec createKey(String secret) {
+        if (secret == null || secret.length() < MIN_SECRET_LENGTH) {
+            throw new IllegalArgumentException("Secrets must be at least " + MIN_SECRET_LENGTH + " characters long");
+        }
+
+        return new SecretKeySpec(secret.getBytes(UTF_8), MAC_ALGORITHM);
+    }
+
+    private static Mac createMac(SecretKeySpec key) {
+        Mac mac;
+
+        try {
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return mac;
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.credential;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Tokens, each held until its own deadline, at most <code>maxSize</code> of them. Unlike
+ * an <code>ExpiringCache</code>, nothing is ever dropped before its deadline: an <code>add
+ * </code> that finds no room, even after the expired tokens have been purged, fails and
+ * the set reports itself overflowed until the deadline of the token it could not hold, 
+ * so that the caller can fail closed instead of silently forgetting.
+ * </p>
+ * <p>
+ * Expired tokens are purged when the set is full, at most once a second.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class TokenDeadlines {
+
+    private static final long PURGE_INTERVAL = 1000;
+
+    private final ConcurrentHashMap<String, Long> deadlines;
+    private final int maxSize;
+    private final AtomicLong overflowedUntil;
+    private final AtomicLong lastPurge;
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     */
+    TokenDeadlines(int maxSize) {
+        this.deadlines = new ConcurrentHashMap<String, Long>();
+        this.maxSize = maxSize;
+        this.overflowedUntil = new AtomicLong();
+        this.lastPurge = new AtomicLong();
+    }
+
+    /**
+     * Holds the token until the deadline, or until its current deadline if that is later.
+     * 
+     * @param token
+     * @param deadline milliseconds since the epoch
+     * @param now
+     * @return <code>false</code> if there was no room for the token
+     */
+    boolean add(String token, long deadline, long now) {
+        Long current = deadlines.get(token);
+        boolean added = true;
+
+        if (current == null || current.longValue() < deadline) {
+            if (current == null && deadlines.size() >= maxSize) {
+                purge(now);
+            }
+            if (current == null && deadlines.size() >= maxSize) {
+                added = false;
+                overflow(deadline);
+            } else {
+                deadlines.put(token, Long.valueOf(deadline));
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * @param token
+     * @param now
+     * @return <code>true</code> if the token is held and its deadline has not passed
+     */
+    boolean contains(String token, long now) {
+        Long deadline = deadlines.get(token);
+
+        return deadline != null && deadline.longValue() > now;
+    }
+
+    /**
+     * @param now
+     * @return <code>true</code> while a token that found no room would still be held
+     */
+    boolean isOverflowed(long now) {
+        return now < overflowedUntil.get();
+    }
+
+    int size() {
+        return deadlines.size();
+    }
+
+    private void overflow(long deadline) {
+        long until = overflowedUntil.get();
+
+        while (until < deadline && !overflowedUntil.compareAndSet(until, deadline)) {
+            until = overflowedUntil.get();
+        }
+    }
+
+    private void purge(long now) {
+        long last = lastPurge.get();
+
+        if (now - last >= PURGE_INTERVAL && lastPurge.compareAndSet(last, now)) {
+            for (Iterator<Map.Entry<String, Long>> i = deadlines.entrySet().iterator(); i.hasNext();) {
+                if (i.next().getValue().longValue() <= now) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.embedded;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * A user the <code>EmbeddedSessionProvisioner</code> can create sessions for: a username,
+ * a password, the roles the <code>EmbeddedPolicy</code> grants access by and the attributes
+ * returned with the session, each of which may have several values.
+ * </p>
+ * <p>
+ * Only a salted SHA-256 digest of the password is kept. The attribute "uid" is always 
+ * present and always holds the username, as it does in <a href="forgerock.com/openam.html">
+ * OpenAM</a>. The "givenname", "sn" and "mail" attributes, if present, fill in the <code>
+ * User</code> of each validated session. Immutable once constructed.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class EmbeddedAccount {
+
+    private static final SecureRandom saltGenerator = new SecureRandom();
+    private static final String UID = "uid";
+
+    private final String username;
+    private final byte[] salt;
+    private final byte[] passwordDigest;
+    private final List<String> roles;
+    private final Map<String, List<String>> attributes;
+
+    /**
+     * Constructor
+     * 
+     * @param username
+     * @param password
+     * @param roles
+     */
+    public EmbeddedAccount(String username, String password, List<String> roles) {
+        this(username, password, roles, Collections.<String, List<String>>emptyMap());
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param username
+     * @param password
+     * @param roles
+     * @param attributes names mapped to their values
+     */
+    public EmbeddedAccount(String username, String password, List<String> roles, Map<String, List<String>> attributes) {
+        if (username == null || username.length() == 0 || password == null) {
+            throw new IllegalArgumentException("username and password are required");
+        }
+        Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+        copy.put(UID, Collections.singletonList(username));
+        
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            if (!UID.equals(attribute.getKey())) {
+                copy.put(attribute.getKey(), Collections.unmodifiableList(new ArrayList<String>(attribute.getValue())));
+            }
+        }
+        this.username = username;
+        this.salt = new byte[16];
+        saltGenerator.nextBytes(salt);
+        this.passwordDigest = digest(salt, password);
+        this.roles = Collections.unmodifiableList(new ArrayList<String>(roles));
+        this.attributes = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Compares digests in constant time so that the comparison does not reveal how
+     * much of the password was right.
+     * 
+     * @param password
+     * @return boolean indicating whether the password is the account's
+     */
+    public boolean isPassword(String password) {
+        return password != null && MessageDigest.isEqual(passwordDigest, digest(salt, password));
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return attribute names mapped to their values, "uid" first
+     */
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return a new <code>User</code> for the account, since <code>User</code> is mutable
+     */
+    public User createUser() {
+        return new User(username, (char[]) null, getFirstValue("givenname"), getFirstValue("sn"), getFirstValue("mail"));
+    }
+
+    private String getFirstValue(String name) {
+        List<String> values = attributes.get(name);
+
+        return (values != null && !values.isEmpty()) ? values.get(0) : null;
+    }
+
+    private static byte[] digest(byte[] salt, String password) {
+        byte[] digest;
+        
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(salt);
+            digest = messageDigest.digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        return digest;
+    }
+
+}
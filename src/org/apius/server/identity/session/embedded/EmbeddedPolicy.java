@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.embedded;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Role based access rules for the <code>EmbeddedSessionProvisioner</code>. Each role maps 
+ * to a list of rules of the form "METHOD uriPrefix", for instance "GET http://api.apius.org/orders/".
+ * A session is authorized to perform a method on a URI when any of its roles has a rule for
+ * that method, or for "*", whose prefix the URI starts with. A prefix of "*" matches every URI.
+ * </p>
+ * <p>
+ * Rules are parsed once, at construction. A decision is a hash lookup per role of the session 
+ * followed by a <code>startsWith</code> per rule of that role, with no locking and no allocation,
+ * so the policy can be shared by every thread.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class EmbeddedPolicy {
+
+    private static final String ANY = "*";
+
+    private final Map<String, Rule[]> rules;
+
+    /**
+     * Constructor
+     * 
+     * @param rules role names mapped to "METHOD uriPrefix" rules
+     */
+    public EmbeddedPolicy(Map<String, List<String>> rules) {
+        this.rules = new HashMap<String, Rule[]>();
+        
+        for (Map.Entry<String, List<String>> role : rules.entrySet()) {
+            List<Rule> parsed = new ArrayList<Rule>();
+            
+            for (String rule : role.getValue()) {
+                parsed.add(parse(rule.trim()));
+            }
+            this.rules.put(role.getKey(), parsed.toArray(new Rule[parsed.size()]));
+        }
+    }
+
+    /**
+     * @param roles of the session
+     * @param uri
+     * @param method
+     * @return boolean indicating whether any of the roles allows the method on the uri
+     */
+    public boolean isAuthorized(List<String> roles, String uri, String method) {
+        boolean isAuthorized = false;
+        
+        for (int i = 0; i < roles.size() && !isAuthorized; i++) {
+            Rule[] roleRules = rules.get(roles.get(i));
+            
+            for (int j = 0; roleRules != null && j < roleRules.length && !isAuthorized; j++) {
+                isAuthorized = roleRules[j].matches(uri, method);
+            }
+        }
+        
+        return isAuthorized;
+    }
+
+    private Rule parse(String rule) {
+        int space = rule.indexOf(' ');
+        
+        if (space < 1 || space == rule.length() - 1) {
+            throw new IllegalArgumentException("Rule must be of the form \"METHOD uriPrefix\": " + rule);
+        }
+        
+        return new Rule(rule.substring(0, space), rule.substring(space + 1).trim());
+    }
+
+    private static final class Rule {
+
+        private final String method;
+        private final String uriPrefix;
+
+        private Rule(String method, String uriPrefix) {
+            this.method = ANY.equals(method) ? null : method;
+            this.uriPrefix = ANY.equals(uriPrefix) ? "" : uriPrefix;
+        }
+
+        private boolean matches(String uri, String method) {
+            return (this.method == null || this.method.equalsIgnoreCase(method)) && uri.startsWith(uriPrefix);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.embedded;
+
+/**
+ * <p>
+ * A session held by the <code>EmbeddedSessionProvisioner</code>. Everything but the
+ * time the session was last used is fixed at creation.
+ * </p>
+ * <p>
+ * <code>touch</code> only writes the last access time once it is at least <code>resolution
+ * </code> old. Validating a token hundreds of thousands of times a second from every core 
+ * therefore reads the session far more often than it writes it, which keeps the field from 
+ * bouncing between processor caches.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class EmbeddedSession {
+
+    private final String token;
+    private final EmbeddedAccount account;
+    private final long expiresAt;
+    private volatile long lastAccessedAt;
+
+    /**
+     * Constructor
+     * 
+     * @param token
+     * @param account
+     * @param createdAt
+     * @param expiresAt time past which the session expires however recently it was used
+     */
+    EmbeddedSession(String token, EmbeddedAccount account, long createdAt, long expiresAt) {
+        this.token = token;
+        this.account = account;
+        this.expiresAt = expiresAt;
+        this.lastAccessedAt = createdAt;
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    EmbeddedAccount getAccount() {
+        return account;
+    }
+
+    /**
+     * @param idleTimeout in milliseconds
+     * @return time at which the session expires unless it is used again
+     */
+    long getDeadline(long idleTimeout) {
+        return Math.min(lastAccessedAt + idleTimeout, expiresAt);
+    }
+
+    /**
+     * @param now
+     * @param idleTimeout in milliseconds
+     * @return boolean
+     */
+    boolean isExpired(long now, long idleTimeout) {
+        return now >= getDeadline(idleTimeout);
+    }
+
+    /**
+     * @param now
+     * @param resolution in milliseconds
+     * @return void
+     */
+    void touch(long now, long resolution) {
+        if (now - lastAccessedAt >= resolution) {
+            lastAccessedAt = now;
+        }
+    }
+
+}
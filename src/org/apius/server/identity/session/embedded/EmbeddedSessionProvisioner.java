@@ -0,0 +1,348 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.embedded;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apius.server.identity.session.SessionMediaTypes;
+import org.apius.server.identity.session.SessionProvisioner;
+import org.apius.server.identity.session.credential.ClaimsResolver;
+import org.apius.server.identity.session.openam.client.ResponseHelper;
+import org.apius.server.identity.session.openam.client.SessionAttributes;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * A session provisioner that runs inside the identity server itself instead of delegating
+ * to <a href="forgerock.com/openam.html">OpenAM</a>. Users, their roles and attributes are 
+ * <code>EmbeddedAccount</code>s given at construction and access is decided by an <code>
+ * EmbeddedPolicy</code>. Sessions live in memory only and are lost on restart.
+ * </p>
+ * <p>
+ * It implements <code>SessionProvisioner</code> like the <code>SessionProvisionerProxy</code>, 
+ * so the <code>Session</code> resource, the <code>SessionVerifier</code> and the <code>
+ * SessionAuthorizer</code> are wired to it in the Spring configuration exactly as they are 
+ * wired to OpenAM. It answers with the same statuses: 401 for bad credentials and for 
+ * unknown or expired tokens.
+ * </p>
+ * <p>
+ * Sessions are held in a <code>ConcurrentHashMap</code> striped across <code>concurrencyLevel
+ * </code> segments, so lookups never lock and creations only lock one segment. Validating a 
+ * token is a single hash lookup and a comparison of two deadlines: idle timeout since last
+ * use and maximum lifetime since creation. Tokens are 32 bytes from a <code>SecureRandom</code>, 
+ * written in URL-safe base 64 without padding so that they can be sent as cookies.
+ * </p>
+ * <p>
+ * Expired sessions are removed by a background thread driving a <code>TimingWheel</code> 
+ * with one second ticks. Every session is on the wheel exactly once, at its last known 
+ * deadline; sessions used in the meantime are moved on when their slot comes round. The 
+ * number of sessions is bounded by <code>maxSessions</code>; once it is reached new 
+ * sessions are refused with 503 until older ones expire or are logged out.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class EmbeddedSessionProvisioner implements SessionProvisioner, ClaimsResolver {
+
+    private static final int TOKEN_BYTES = 32;
+    private static final long TICK_DURATION = 1000;
+    private static final int WHEEL_SIZE = 512;
+    private static final char[] BASE64_URL = 
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final Map<String, EmbeddedAccount> accounts;
+    private final EmbeddedPolicy policy;
+    private final ConcurrentHashMap<String, EmbeddedSession> sessions;
+    private final AtomicInteger sessionCount;
+    private final TimingWheel timingWheel;
+    private final ResponseHelper responseHelper;
+    private final SecureRandom tokenGenerator;
+    private final ScheduledExecutorService executor;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final int maxSessions;
+
+    /**
+     * Constructor
+     * 
+     * @param accounts
+     * @param policy
+     * @param idleTimeout number of seconds a session may sit unused
+     * @param maxLifetime number of seconds a session may last however often it is used
+     * @param maxSessions maximum number of sessions held
+     */
+    public EmbeddedSessionProvisioner(List<EmbeddedAccount> accounts, 
+                                      EmbeddedPolicy policy, 
+                                      int idleTimeout, 
+                                      int maxLifetime, 
+                                      int maxSessions) {
+        this(accounts, policy, idleTimeout, maxLifetime, maxSessions, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param accounts
+     * @param policy
+     * @param idleTimeout number of seconds a session may sit unused
+     * @param maxLifetime number of seconds a session may last however often it is used
+     * @param maxSessions maximum number of sessions held
+     * @param concurrencyLevel number of segments the session table is striped across
+     */
+    public EmbeddedSessionProvisioner(List<EmbeddedAccount> accounts, 
+                                      EmbeddedPolicy policy, 
+                                      int idleTimeout, 
+                                      int maxLifetime, 
+                                      int maxSessions, 
+                                      int concurrencyLevel) {
+        if (idleTimeout < 1 || maxLifetime < 1 || maxSessions < 1) {
+            throw new IllegalArgumentException("idleTimeout, maxLifetime and maxSessions must be greater than zero");
+        }
+        this.accounts = new HashMap<String, EmbeddedAccount>();
+        for (EmbeddedAccount account : accounts) {
+            this.accounts.put(account.getUsername(), account);
+        }
+        this.policy = policy;
+        this.sessions = new ConcurrentHashMap<String, EmbeddedSession>(Math.min(maxSessions, 1 << 16), 0.75f, concurrencyLevel);
+        this.sessionCount = new AtomicInteger();
+        this.timingWheel = new TimingWheel(WHEEL_SIZE, TICK_DURATION, System.currentTimeMillis());
+        this.responseHelper = new ResponseHelper();
+        this.tokenGenerator = new SecureRandom();
+        this.idleTimeout = idleTimeout * 1000L;
+        this.maxLifetime = maxLifetime * 1000L;
+        this.maxSessions = maxSessions;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "apius-embedded-session-expiry");
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expire();
+            }
+        }, TICK_DURATION, TICK_DURATION, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param form with username and password parameters
+     * @return token
+     */
+    public String createSession(Form form) {
+        EmbeddedAccount account = accounts.get(form.getFirstValue("username"));
+        
+        if (account == null || !account.isPassword(form.getFirstValue("password"))) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
+        if (sessionCount.incrementAndGet() > maxSessions) {
+            sessionCount.decrementAndGet();
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "Too many sessions");
+        }
+        
+        long now = System.currentTimeMillis();
+        EmbeddedSession session;
+        
+        do {
+            session = new EmbeddedSession(generateToken(), account, now, now + maxLifetime);
+        } while (sessions.putIfAbsent(session.getToken(), session) != null);
+        timingWheel.schedule(session, session.getDeadline(idleTimeout));
+        
+        return session.getToken();
+    }
+
+    /**
+     * @param token
+     * @return Atom representation of the session attributes
+     */
+    public Representation getAttributes(String token) {
+        return getAttributes(token, SessionMediaTypes.ATOM);
+    }
+
+    /**
+     * Serialized by the same <code>ResponseHelper</code> as OpenAM's attributes, so 
+     * clients cannot tell the two provisioners apart.
+     * 
+     * @param token
+     * @param mediaType one of the <code>SessionMediaTypes</code>
+     * @return Representation of the session attributes
+     */
+    public Representation getAttributes(String token, MediaType mediaType) {
+        return responseHelper.createRepresentation(responseHelper.writeSessionAttributes(getSessionAttributes(token), 
+                                                                                         mediaType), 
+                                                   mediaType);
+    }
+
+    /**
+     * @param token
+     * @return the roles and attributes of the account the session belongs to
+     */
+    public SessionAttributes getSessionAttributes(String token) {
+        EmbeddedAccount account = getSession(token).getAccount();
+        
+        return new SessionAttributes(token, 
+                                     new ArrayList<String>(account.getRoles()), 
+                                     new LinkedHashMap<String, List<String>>(account.getAttributes()));
+    }
+
+    /**
+     * Validates the token and restarts its idle timeout.
+     * 
+     * @param token
+     * @return the authenticated <code>User</code>
+     */
+    public User authenticateToken(String token) {
+        EmbeddedSession session = getSession(token);
+        session.touch(System.currentTimeMillis(), TICK_DURATION);
+        
+        return session.getAccount().createUser();
+    }
+
+    /**
+     * The same as <code>authenticateToken</code>, which already restarts the idle timeout.
+     * 
+     * @param token
+     * @return the authenticated <code>User</code>
+     */
+    public User refreshToken(String token) {
+        return authenticateToken(token);
+    }
+
+    /**
+     * @param token
+     * @return void
+     */
+    public void logout(String token) {
+        EmbeddedSession session = (token != null) ? sessions.get(token) : null;
+        
+        if (session != null) {
+            remove(session);
+        }
+    }
+
+    /**
+     * @param token
+     * @param uri
+     * @param method
+     * @return boolean indicating whether a role of the session allows the method on the uri
+     */
+    public boolean isAuthorized(String token, String uri, String method) {
+        return policy.isAuthorized(getSession(token).getAccount().getRoles(), uri, method);
+    }
+
+    /**
+     * @return number of sessions currently held, including expired ones not yet removed
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Stops the expiry thread and forgets every session.
+     * 
+     * @return void
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        sessions.clear();
+        sessionCount.set(0);
+    }
+
+    private EmbeddedSession getSession(String token) {
+        EmbeddedSession session = (token != null) ? sessions.get(token) : null;
+        
+        if (session != null && session.isExpired(System.currentTimeMillis(), idleTimeout)) {
+            remove(session);
+            session = null;
+        }
+        if (session == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
+        
+        return session;
+    }
+
+    private void remove(EmbeddedSession session) {
+        if (sessions.remove(session.getToken(), session)) {
+            sessionCount.decrementAndGet();
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        
+        for (EmbeddedSession session : timingWheel.advance(now)) {
+            if (sessions.get(session.getToken()) == session) {
+                if (session.isExpired(now, idleTimeout)) {
+                    remove(session);
+                } else {
+                    timingWheel.schedule(session, session.getDeadline(idleTimeout));
+                }
+            }
+        }
+    }
+
+    private String generateToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        tokenGenerator.nextBytes(bytes);
+        
+        char[] chars = new char[(TOKEN_BYTES * 8 + 5) / 6];
+        int bits = 0;
+        int bitCount = 0;
+        int c = 0;
+        
+        for (byte b : bytes) {
+            bits = (bits << 8) | (b & 0xff);
+            bitCount += 8;
+            
+            while (bitCount >= 6) {
+                bitCount -= 6;
+                chars[c++] = BASE64_URL[(bits >> bitCount) & 0x3f];
+            }
+        }
+        if (bitCount > 0) {
+            chars[c] = BASE64_URL[(bits << (6 - bitCount)) & 0x3f];
+        }
+        
+        return new String(chars);
+    }
+
+}
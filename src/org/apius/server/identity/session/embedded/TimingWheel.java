@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.embedded;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>
+ * A hashed timing wheel: a ring of slots, one per tick, each holding the sessions whose 
+ * deadline falls in that tick (or in that tick one or more revolutions later). Scheduling 
+ * a session is a lock-free append to one slot, whatever the number of sessions, and each 
+ * tick only looks at the sessions of its own slot.
+ * </p>
+ * <p>
+ * The wheel never cancels or moves an entry. A session that is used after it has been 
+ * scheduled is found in its slot, still alive, when the tick comes round, and is simply
+ * scheduled again for its new deadline. Validations therefore never touch the wheel. A 
+ * session scheduled while its slot is being drained may wait one more revolution; the 
+ * <code>EmbeddedSessionProvisioner</code> checks the deadline of every session it hands 
+ * out, so this only delays when the memory is reclaimed.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class TimingWheel {
+
+    private final List<ConcurrentLinkedQueue<EmbeddedSession>> slots;
+    private final int mask;
+    private final long tickDuration;
+    private volatile long lastTick;
+
+    /**
+     * Constructor
+     * 
+     * @param size number of slots, rounded up to a power of two
+     * @param tickDuration in milliseconds
+     * @param now
+     */
+    TimingWheel(int size, long tickDuration, long now) {
+        int slotCount = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        
+        this.slots = new ArrayList<ConcurrentLinkedQueue<EmbeddedSession>>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ConcurrentLinkedQueue<EmbeddedSession>());
+        }
+        this.mask = slotCount - 1;
+        this.tickDuration = tickDuration;
+        this.lastTick = now / tickDuration;
+    }
+
+    /**
+     * @param session
+     * @param deadline
+     * @return void
+     */
+    void schedule(EmbeddedSession session, long deadline) {
+        long tick = Math.max((deadline + tickDuration - 1) / tickDuration, lastTick + 1);
+        
+        slots.get((int) (tick & mask)).offer(session);
+    }
+
+    /**
+     * Drains the slots of every tick that has passed since the last call, at most one 
+     * revolution's worth.
+     * 
+     * @param now
+     * @return the sessions that were in those slots, due or not
+     */
+    List<EmbeddedSession> advance(long now) {
+        List<EmbeddedSession> drained = new ArrayList<EmbeddedSession>();
+        long currentTick = now / tickDuration;
+        
+        for (long tick = lastTick + 1; tick <= currentTick && tick <= lastTick + slots.size(); tick++) {
+            ConcurrentLinkedQueue<EmbeddedSession> slot = slots.get((int) (tick & mask));
+            EmbeddedSession session;
+            
+            while ((session = slot.poll()) != null) {
+                drained.add(session);
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+        
+        return drained;
+    }
+
+    long getTickDuration() {
+        return tickDuration;
+    }
+
+}
@@ -17,12 +17,19 @@
 
 package org.apius.server.identity.session.filter;
 
+import org.apius.server.identity.session.AsyncSessionProvisioner;
 import org.apius.server.identity.session.SessionAuthenticatorHelper;
+import org.apius.server.identity.session.SessionFutureListener;
 import org.apius.server.identity.session.SessionVerifier;
+import org.apius.server.identity.session.metrics.SessionMetrics;
 import org.restlet.Context;
 import org.restlet.Request;
 import org.restlet.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
 import org.restlet.security.ChallengeAuthenticator;
+import org.restlet.security.User;
+import org.restlet.security.Verifier;
 
 /**
  * <p>
@@ -45,27 +52,127 @@ import org.restlet.security.ChallengeAuthenticator;
  * challenge response with a WWW-Authenticate header must be sent to the client 
  * and the request status code must be set to 401 (Unauthorized).
  * </p>
+ * <p>
+ * When constructed with an <code>AsyncSessionProvisioner</code>, tokens that are not
+ * in the verifier's cache are validated asynchronously: the request is suspended, 
+ * the calling thread is released and the request is passed on (or challenged) from 
+ * the thread the provisioner answers on. This needs a server connector that supports
+ * committing responses later, such as the internal connector of the JSE component.
+ * </p>
+ * <p>
+ * With <code>SessionMetrics</code>, every 401 challenge and 403 refusal is counted.
+ * </p>
  * 
  * @author Paul Morris
  *  
  */
 public class SessionAuthenticator extends ChallengeAuthenticator {
     
+    private AsyncSessionProvisioner asyncSessionProvisioner;
+    private SessionMetrics sessionMetrics;
+    
     /**
      * Constructor
      * 
      * @param context
      * @param realm
      * @param verifier
-     * @param sessionProxy
+     * @param asyncSessionProvisioner validates tokens the verifier has not cached, may be <code>null</code>
+     * @param sessionMetrics counts challenges and refusals, may be <code>null</code>
      */
-    public SessionAuthenticator(Context context, String realm, SessionVerifier verifier) {
+    public SessionAuthenticator(Context context, 
+                                String realm, 
+                                SessionVerifier verifier, 
+                                AsyncSessionProvisioner asyncSessionProvisioner,
+                                SessionMetrics sessionMetrics) {
         super(context, false, SessionAuthenticatorHelper.APIUS, realm, verifier);
+        this.asyncSessionProvisioner = asyncSessionProvisioner;
+        this.sessionMetrics = sessionMetrics;
     }
     
     @Override
-    protected int authenticated(Request request, Response response) {
-        return super.authenticated(request, response);
+    protected int beforeHandle(Request request, Response response) {
+        int result;
+        
+        if (isAuthenticatedAsynchronously(request)) {
+            result = authenticateAsynchronously(request, response);
+        } else {
+            result = super.beforeHandle(request, response);
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public void challenge(Response response, boolean stale) {
+        if (sessionMetrics != null) {
+            sessionMetrics.recordChallenge(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
+        super.challenge(response, stale);
+    }
+    
+    @Override
+    public void forbid(Response response) {
+        if (sessionMetrics != null) {
+            sessionMetrics.recordChallenge(Status.CLIENT_ERROR_FORBIDDEN);
+        }
+        super.forbid(response);
+    }
+    
+    private boolean isAuthenticatedAsynchronously(Request request) {
+        return asyncSessionProvisioner != null 
+            && request.getChallengeResponse() != null
+            && SessionAuthenticatorHelper.APIUS.equals(request.getChallengeResponse().getScheme())
+            && ((SessionVerifier) getVerifier()).verifyFromCache(request) == Verifier.RESULT_UNKNOWN;
+    }
+    
+    private int authenticateAsynchronously(final Request request, final Response response) {
+        final String token = request.getChallengeResponse().getRawValue();
+        final SuspendedRequest suspendedRequest = new SuspendedRequest(response);
+        
+        asyncSessionProvisioner.authenticateToken(token).addListener(new SessionFutureListener<User>() {
+            public void completed(User user) {
+                suspendedRequest.resume();
+                ((SessionVerifier) getVerifier()).accept(request, token, user);
+                resume(suspendedRequest, request, response, authenticated(request, response));
+            }
+            
+            public void failed(RuntimeException e) {
+                suspendedRequest.resume();
+                
+                Status status = (e instanceof ResourceException) 
+                    ? ((ResourceException) e).getStatus() : Status.SERVER_ERROR_INTERNAL;
+                
+                if (((SessionVerifier) getVerifier()).acceptStale(request, token, status)) {
+                    resume(suspendedRequest, request, response, authenticated(request, response));
+                } else {
+                    if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+                        ((SessionVerifier) getVerifier()).reject(request, token);
+                    }
+                    if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED) && !isRechallenging()) {
+                        forbid(response);
+                    } else {
+                        challenge(response, false);
+                    }
+                    resume(suspendedRequest, request, response, unauthenticated(request, response));
+                }
+            }
+        });
+        
+        return suspendedRequest.suspend() ? STOP : suspendedRequest.getResult();
+    }
+    
+    private void resume(SuspendedRequest suspendedRequest, Request request, Response response, int result) {
+        if (!suspendedRequest.completeInline(result)) {
+            try {
+                if (result == CONTINUE && doHandle(request, response) == CONTINUE) {
+                    afterHandle(request, response);
+                }
+                suspendedRequest.commit();
+            } catch (RuntimeException e) {
+                suspendedRequest.abort(e);
+            }
+        }
     }
 	
 }
\ No newline at end of file
@@ -17,7 +17,12 @@
 
 package org.apius.server.identity.session.filter;
 
-import org.apius.server.identity.session.Session;
+import org.apius.server.identity.session.AsyncSessionProvisioner;
+import org.apius.server.identity.session.SessionFutureListener;
+import org.apius.server.identity.session.SessionProvisioner;
+import org.apius.server.identity.session.UriCanonicalizer;
+import org.apius.server.identity.session.cache.AuthorizationCache;
+import org.apius.server.identity.session.metrics.SessionMetrics;
 import org.restlet.Request;
 import org.restlet.Response;
 import org.restlet.resource.ResourceException;
@@ -42,21 +47,72 @@ import org.restlet.security.Authorizer;
  * If authorized, the request may be passed to the next Restlet. If not, the
  * request status code must be set to 403 (Forbidden).
  * </p>
+ * <p>
+ * When constructed with an <code>AuthorizationCache</code>, decisions already made
+ * for the same token, URI and method are answered from the cache instead of asking
+ * the session provisioner again.
+ * </p>
+ * <p>
+ * When constructed with an <code>AsyncSessionProvisioner</code>, decisions that are
+ * not cached are requested asynchronously, the same way the <code>SessionAuthenticator
+ * </code> validates tokens.
+ * </p>
+ * <p>
+ * With <code>SessionMetrics</code>, every decision is counted as granted or denied.
+ * </p>
+ * <p>
+ * With a <code>UriCanonicalizer</code>, decisions are requested and cached for the 
+ * canonical form of the request's URI rather than for the URI as sent. As shipped, that 
+ * only drops the query and fragment; route templates and ID wildcarding apply only when 
+ * the canonicalizer is constructed with them (see <code>UriCanonicalizer</code>).
+ * </p>
  * 
  * @author Paul Morris
  * 
  */
 public class SessionAuthorizer extends Authorizer {
 	
-    private Session sessionProvisionerProxy;
+    private SessionProvisioner sessionProvisionerProxy;
+    private AuthorizationCache authorizationCache;
+    private AsyncSessionProvisioner asyncSessionProvisioner;
+    private SessionMetrics sessionMetrics;
+    private UriCanonicalizer uriCanonicalizer;
     
     /**
      * Constructor
      * 
      * @param sessionProxy
+     * @param authorizationCache may be <code>null</code>
+     * @param asyncSessionProvisioner requests the decisions that are not cached, may be <code>null</code>
+     * @param sessionMetrics counts the decisions, may be <code>null</code>
+     * @param uriCanonicalizer reduces request URIs to the form decisions are made on, may be 
+     *        <code>null</code>
      */
-    public SessionAuthorizer(Session sessionProvisionerProxy) {
+    public SessionAuthorizer(SessionProvisioner sessionProvisionerProxy, 
+                             AuthorizationCache authorizationCache,
+                             AsyncSessionProvisioner asyncSessionProvisioner,
+                             SessionMetrics sessionMetrics,
+                             UriCanonicalizer uriCanonicalizer) {
         this.sessionProvisionerProxy = sessionProvisionerProxy;
+        this.authorizationCache = authorizationCache;
+        this.asyncSessionProvisioner = asyncSessionProvisioner;
+        this.sessionMetrics = sessionMetrics;
+        this.uriCanonicalizer = uriCanonicalizer;
+    }
+    
+    @Override
+    protected int beforeHandle(Request request, Response response) {
+        int result;
+        
+        if (asyncSessionProvisioner != null 
+                && request.getChallengeResponse() != null 
+                && getCachedDecision(request) == null) {
+            result = authorizeAsynchronously(request, response);
+        } else {
+            result = super.beforeHandle(request, response);
+        }
+        
+        return result;
     }
     
     @Override
@@ -65,10 +121,9 @@ public class SessionAuthorizer extends Authorizer {
         
         try {
             if (request.getChallengeResponse() != null) {
-                isAuthorized = 
-                    sessionProvisionerProxy.isAuthorized(request.getOriginalRef().toString(), 
-                                                         request.getMethod().getName(), 
-                                                         request.getChallengeResponse().getRawValue());
+                isAuthorized = handleAuthorize(request.getChallengeResponse().getRawValue(), 
+                                               getUri(request), 
+                                               request.getMethod().getName());
             }
         } catch (ResourceException e) {
             response.setStatus(e.getStatus(), e.getMessage());
@@ -76,5 +131,93 @@ public class SessionAuthorizer extends Authorizer {
         
         return isAuthorized;
     }
+    
+    @Override
+    protected int authorized(Request request, Response response) {
+        if (sessionMetrics != null) {
+            sessionMetrics.recordAuthorization(true);
+        }
+        
+        return super.authorized(request, response);
+    }
+    
+    @Override
+    protected int unauthorized(Request request, Response response) {
+        if (sessionMetrics != null) {
+            sessionMetrics.recordAuthorization(false);
+        }
+        
+        return super.unauthorized(request, response);
+    }
+    
+    private Boolean getCachedDecision(Request request) {
+        return (authorizationCache != null) ? authorizationCache.get(request.getChallengeResponse().getRawValue(), 
+                                                                     getUri(request), 
+                                                                     request.getMethod().getName()) : null;
+    }
+    
+    private String getUri(Request request) {
+        return (uriCanonicalizer != null) 
+            ? uriCanonicalizer.canonicalize(request.getOriginalRef()) : request.getOriginalRef().toString();
+    }
+    
+    private int authorizeAsynchronously(final Request request, final Response response) {
+        final String token = request.getChallengeResponse().getRawValue();
+        final String uri = getUri(request);
+        final String method = request.getMethod().getName();
+        final SuspendedRequest suspendedRequest = new SuspendedRequest(response);
+        
+        asyncSessionProvisioner.isAuthorized(token, uri, method).addListener(new SessionFutureListener<Boolean>() {
+            public void completed(Boolean isAuthorized) {
+                suspendedRequest.resume();
+                
+                if (authorizationCache != null) {
+                    authorizationCache.put(token, uri, method, isAuthorized);
+                }
+                resume(suspendedRequest, request, response, 
+                       isAuthorized ? authorized(request, response) : unauthorized(request, response));
+            }
+            
+            public void failed(RuntimeException e) {
+                suspendedRequest.resume();
+                
+                int result = unauthorized(request, response);
+                
+                if (e instanceof ResourceException) {
+                    response.setStatus(((ResourceException) e).getStatus(), e.getMessage());
+                }
+                resume(suspendedRequest, request, response, result);
+            }
+        });
+        
+        return suspendedRequest.suspend() ? STOP : suspendedRequest.getResult();
+    }
+    
+    private void resume(SuspendedRequest suspendedRequest, Request request, Response response, int result) {
+        if (!suspendedRequest.completeInline(result)) {
+            try {
+                if (result == CONTINUE && doHandle(request, response) == CONTINUE) {
+                    afterHandle(request, response);
+                }
+                suspendedRequest.commit();
+            } catch (RuntimeException e) {
+                suspendedRequest.abort(e);
+            }
+        }
+    }
+    
+    private boolean handleAuthorize(String token, String uri, String method) {
+        Boolean isAuthorized = (authorizationCache != null) ? authorizationCache.get(token, uri, method) : null;
+        
+        if (isAuthorized == null) {
+            isAuthorized = sessionProvisionerProxy.isAuthorized(token, uri, method);
+            
+            if (authorizationCache != null) {
+                authorizationCache.put(token, uri, method, isAuthorized);
+            }
+        }
+        
+        return isAuthorized;
+    }
 
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.filter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.restlet.Application;
+import org.restlet.Context;
+import org.restlet.Response;
+import org.restlet.data.Status;
+
+/**
+ * <p>
+ * A request whose filter is waiting on an <code>AsyncSessionProvisioner</code>. The 
+ * response is taken out of auto-commit mode so that the server connector does not
+ * send it when the filter returns, and the thread-local Restlet state of the calling
+ * thread is captured so it can be restored on the thread that finishes the request.
+ * </p>
+ * <p>
+ * The result may come in before the filter has returned, on the filter's own thread 
+ * when the future had already completed or on another one. Whichever of <code>suspend
+ * </code> and <code>completeInline</code> comes first decides: if the result won, the 
+ * filter returns it as a synchronous filter would and nothing is resumed or committed
+ * by the listener.
+ * </p>
+ * <p>
+ * Suspending only works with connectors that support committing a response later
+ * (i.e. the internal connector used by the JSE component), not inside a servlet 
+ * container.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class SuspendedRequest {
+
+    private static final int PENDING = 0;
+    private static final int SUSPENDED = 1;
+    private static final int COMPLETED = 2;
+
+    private final Response response;
+    private final Application application;
+    private final Context context;
+    private final AtomicInteger state;
+    private volatile int result;
+
+    SuspendedRequest(Response response) {
+        this.response = response;
+        this.application = Application.getCurrent();
+        this.context = Context.getCurrent();
+        this.state = new AtomicInteger(PENDING);
+        response.setAutoCommitting(false);
+    }
+
+    /**
+     * Called by the filter once its listener has been added.
+     * 
+     * @return <code>true</code> if the request is now suspended, <code>false</code> if
+     *         the result came in first, the filter must then return <code>getResult()</code>
+     */
+    boolean suspend() {
+        return state.compareAndSet(PENDING, SUSPENDED);
+    }
+
+    /**
+     * Called by the listener, after <code>resume()</code>, with the result the filter 
+     * would have returned.
+     * 
+     * @param result
+     * @return <code>true</code> if the filter has not suspended the request and will 
+     *         return the result itself, <code>false</code> if the listener must finish
+     *         the request
+     */
+    boolean completeInline(int result) {
+        this.result = result;
+        
+        return state.compareAndSet(PENDING, COMPLETED);
+    }
+
+    /**
+     * @return the result given to <code>completeInline</code>
+     */
+    int getResult() {
+        return result;
+    }
+
+    /**
+     * Restores the captured thread-local state on the current thread and puts the
+     * response back in auto-commit mode so that a filter further down the chain 
+     * can suspend it again.
+     * 
+     * @return void
+     */
+    void resume() {
+        Application.setCurrent(application);
+        Context.setCurrent(context);
+        Response.setCurrent(response);
+        response.setAutoCommitting(true);
+    }
+
+    /**
+     * Sends the response unless somebody further down the chain suspended it again.
+     * 
+     * @return void
+     */
+    void commit() {
+        if (response.isAutoCommitting()) {
+            response.commit();
+        }
+    }
+
+    /**
+     * Sends a 500 (Internal Server Error) response. Used when finishing the request
+     * failed; without it the client would never get an answer.
+     * 
+     * @param e
+     * @return void
+     */
+    void abort(RuntimeException e) {
+        response.setStatus(Status.SERVER_ERROR_INTERNAL, e);
+        response.setAutoCommitting(true);
+        response.commit();
+    }
+
+}
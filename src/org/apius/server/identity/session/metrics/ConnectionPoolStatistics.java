@@ -0,0 +1,87 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.metrics;
+
+/**
+ * <p>
+ * Occupancy and wait times of a pool of connections to the session provisioner, as 
+ * published by <code>SessionMetrics</code>.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public interface ConnectionPoolStatistics {
+
+    /**
+     * @return maximum number of connections
+     */
+    public abstract int getMaxConnections();
+
+    /**
+     * @return number of requests holding a connection
+     */
+    public abstract int getActiveRequests();
+
+    /**
+     * @return number of callers waiting for a connection
+     */
+    public abstract int getWaitingRequests();
+
+    /**
+     * @return number of connections currently open
+     */
+    public abstract int getOpenConnections();
+
+    /**
+     * @return number of open connections with no request in progress
+     */
+    public abstract int getIdleConnections();
+
+    /**
+     * @return number of requests sent
+     */
+    public abstract long getRequests();
+
+    /**
+     * @return number of requests that had to wait for a connection
+     */
+    public abstract long getWaits();
+
+    /**
+     * @return total number of milliseconds requests have waited for a connection
+     */
+    public abstract long getTotalWaitTime();
+
+    /**
+     * @return longest number of milliseconds a request has waited for a connection
+     */
+    public abstract long getMaxWaitTime();
+
+    /**
+     * @return number of requests failed because no connection became available in time
+     */
+    public abstract long getRejections();
+
+    /**
+     * @return number of connections closed for being idle
+     */
+    public abstract long getIdleConnectionsClosed();
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A latency histogram with fixed bucket bounds from 1 millisecond to 10 seconds, 
+ * the same bounds for every operation so that they can be aggregated across nodes. 
+ * Recording is a scan of the bounds and two atomic increments; nothing is locked 
+ * or allocated.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets in seconds, the last bucket has no bound.
+     */
+    static final double[] BOUNDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * @param nanos
+     * @return void
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sum.addAndGet(nanos);
+    }
+
+    /**
+     * @param bucket index into <code>BOUNDS</code>, or its length for the unbounded bucket
+     * @return number of values recorded in the bucket or any bucket below it
+     */
+    public long getCumulativeCount(int bucket) {
+        long count = 0;
+        
+        for (int i = 0; i <= bucket; i++) {
+            count += counts.get(i);
+        }
+        
+        return count;
+    }
+
+    public long getCount() {
+        return getCumulativeCount(BOUNDS.length);
+    }
+
+    /**
+     * @return sum of the values recorded in seconds
+     */
+    public double getSum() {
+        return sum.get() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.metrics;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.data.ChallengeScheme;
+import org.restlet.security.ChallengeAuthenticator;
+import org.restlet.security.MapVerifier;
+
+/**
+ * <p>
+ * Puts the metrics resource behind HTTP Basic authentication with a single management 
+ * account, so that it can be served on the same port as the session API (the only one 
+ * there is inside a servlet container) without exposing it to every client. Prometheus
+ * and most other scrapers can send Basic credentials.
+ * </p>
+ * <p>
+ * Fails closed: without a password every request is refused with a 401 (Unauthorized), 
+ * so the metrics are only served once an operator has chosen the credentials.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class MetricsAuthenticator extends ChallengeAuthenticator {
+
+    public static final String REALM = "apius-metrics";
+
+    /**
+     * Constructor
+     * 
+     * @param context
+     * @param username of the management account
+     * @param password of the management account, <code>null</code> or empty to refuse everybody
+     * @param next the <code>Finder</code> of the metrics resource
+     */
+    public MetricsAuthenticator(Context context, String username, String password, Restlet next) {
+        super(context, false, ChallengeScheme.HTTP_BASIC, REALM, createVerifier(username, password));
+        setNext(next);
+    }
+
+    private static MapVerifier createVerifier(String username, String password) {
+        MapVerifier verifier = new MapVerifier();
+        
+        if (username != null && password != null && password.length() > 0) {
+            verifier.getLocalSecrets().put(username, password.toCharArray());
+        }
+        
+        return verifier;
+    }
+
+}
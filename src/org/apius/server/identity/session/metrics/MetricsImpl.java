@@ -0,0 +1,73 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.metrics;
+
+import org.apius.server.identity.session.Metrics;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.ServerResource;
+
+/**
+ * <p>
+ * Implementation of the <code>Metrics</code> interface.
+ * </p>
+ * <p>
+ * <b><em>Public API Contract</em></b>
+ * </p>
+ * <p>
+ * <b>GET</b>
+ * </p>
+ * <p>
+ * Returns the <code>SessionMetrics</code> in the Prometheus text exposition format 
+ * (<code>text/plain; version=0.0.4</code>), one sample per line:
+ * </p>
+ * <p>
+ * <code>apius_provisioner_request_seconds_bucket{operation="isTokenValid",le="0.01"} 1204</code><br/>
+ * <code>apius_session_verifications_total{result="valid",source="cache"} 98211</code>
+ * </p>
+ * <p>
+ * The resource is not behind the session filters; it is meant to be attached behind
+ * a <code>MetricsAuthenticator</code>, which only lets the management account in.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class MetricsImpl extends ServerResource implements Metrics {
+
+    private static final MediaType TEXT_FORMAT = new MediaType("text/plain; version=0.0.4");
+
+    private SessionMetrics sessionMetrics;
+
+    /**
+     * Constructor
+     * 
+     * @param sessionMetrics
+     */
+    public MetricsImpl(SessionMetrics sessionMetrics) {
+        this.sessionMetrics = sessionMetrics;
+    }
+
+    public Representation getMetrics() {
+        return new StringRepresentation(sessionMetrics.write(), TEXT_FORMAT, null, CharacterSet.UTF_8);
+    }
+
+}
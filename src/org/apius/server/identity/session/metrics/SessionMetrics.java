@@ -0,0 +1,296 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.restlet.data.Status;
+import org.restlet.security.Verifier;
+
+/**
+ * <p>
+ * Counters and latency histograms of the identity service, shared by the components 
+ * that record them and written out by the <code>Metrics</code> resource:
+ * </p>
+ * <p>
+ * <code>apius_provisioner_request_seconds</code> latency of every call to the session
+ * provisioner, by operation (the OpenAM endpoint)<br/>
+ * <code>apius_provisioner_requests_total</code> the same calls by operation and status<br/>
+ * <code>apius_session_verifications_total</code> <code>SessionVerifier</code> results, by 
+ * result and by where a valid token was found (cache, provisioner, stale cache entry or 
+ * signed credential)<br/>
+ * <code>apius_session_challenges_total</code> 401 challenges and 403 refusals of the 
+ * <code>SessionAuthenticator</code><br/>
+ * <code>apius_session_authorizations_total</code> <code>SessionAuthorizer</code> decisions, 
+ * a decision the provisioner failed to make counts as denied<br/>
+ * <code>apius_provisioner_connections</code> and the other <code>apius_provisioner_connection
+ * </code> series: occupancy of the connection pool to the session provisioner and how long 
+ * requests have waited for a connection, once a pool has been set
+ * </p>
+ * <p>
+ * Every series is created the first time it is recorded and is then a single atomic 
+ * increment away, so recording is lock-free and costs no more than a map lookup. Series 
+ * names are constants, or for provisioner calls a per operation array indexed by status 
+ * code, so recording allocates nothing; the names with an operation and status in them 
+ * are only built when the text is written. The text is in the Prometheus exposition 
+ * format, which most scrapers ingest.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class SessionMetrics {
+
+    public static final String SOURCE_CACHE = "cache";
+    public static final String SOURCE_PROVISIONER = "provisioner";
+    public static final String SOURCE_STALE = "stale";
+    public static final String SOURCE_CREDENTIAL = "credential";
+
+    private static final String REQUEST_SECONDS = "apius_provisioner_request_seconds";
+    private static final String REQUESTS = "apius_provisioner_requests_total";
+    private static final String VERIFICATIONS = "apius_session_verifications_total";
+    private static final String CHALLENGES = "apius_session_challenges_total";
+    private static final String AUTHORIZATIONS = "apius_session_authorizations_total";
+    private static final String CONNECTIONS = "apius_provisioner_connections";
+    private static final String CONNECTION = "apius_provisioner_connection";
+
+    // Series recorded on every request, built once 
+    private static final String VALID_CACHE = VERIFICATIONS + "{result=\"valid\",source=\"cache\"}";
+    private static final String VALID_PROVISIONER = VERIFICATIONS + "{result=\"valid\",source=\"provisioner\"}";
+    private static final String VALID_STALE = VERIFICATIONS + "{result=\"valid\",source=\"stale\"}";
+    private static final String VALID_CREDENTIAL = VERIFICATIONS + "{result=\"valid\",source=\"credential\"}";
+    private static final String INVALID = VERIFICATIONS + "{result=\"invalid\"}";
+    private static final String MISSING = VERIFICATIONS + "{result=\"missing\"}";
+    private static final String UNKNOWN = VERIFICATIONS + "{result=\"unknown\"}";
+    private static final String UNAUTHORIZED = CHALLENGES + "{status=\"401\"}";
+    private static final String FORBIDDEN = CHALLENGES + "{status=\"403\"}";
+    private static final String GRANTED = AUTHORIZATIONS + "{decision=\"granted\"}";
+    private static final String DENIED = AUTHORIZATIONS + "{decision=\"denied\"}";
+
+    private static final Map<String, String> HELP = new TreeMap<String, String>();
+
+    static {
+        HELP.put(REQUESTS, "Calls to the session provisioner by operation and status.");
+        HELP.put(VERIFICATIONS, "Session token verifications by result and source.");
+        HELP.put(CHALLENGES, "Requests challenged (401) or refused (403) by the session authenticator.");
+        HELP.put(AUTHORIZATIONS, "Session authorizer decisions.");
+    }
+
+    // Covers the HTTP status codes and Restlet's connector error codes (1000 to 1002)
+    private static final int MAX_STATUS_CODE = 1023;
+
+    private final ConcurrentHashMap<String, OperationMetrics> operations = 
+        new ConcurrentHashMap<String, OperationMetrics>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile ConnectionPoolStatistics connectionPool;
+
+    /**
+     * @param connectionPool whose occupancy and wait times are written out with the rest
+     * @return void
+     */
+    public void setConnectionPool(ConnectionPoolStatistics connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * @param operation
+     * @param startNanos <code>System.nanoTime()</code> when the call was sent
+     * @param status of the response, 504 for a call that was never answered
+     * @return void
+     */
+    public void recordProvisionerCall(String operation, long startNanos, Status status) {
+        OperationMetrics operationMetrics = operations.get(operation);
+        int code = status.getCode();
+        
+        if (operationMetrics == null) {
+            OperationMetrics newOperationMetrics = new OperationMetrics();
+            operationMetrics = operations.putIfAbsent(operation, newOperationMetrics);
+            operationMetrics = (operationMetrics != null) ? operationMetrics : newOperationMetrics;
+        }
+        operationMetrics.histogram.record(System.nanoTime() - startNanos);
+        
+        if (code >= 0 && code <= MAX_STATUS_CODE) {
+            operationMetrics.statuses.incrementAndGet(code);
+        } else {
+            increment(requestsSeries(operation, code));
+        }
+    }
+
+    /**
+     * @param result one of the <code>Verifier</code> results
+     * @param source <code>SOURCE_CACHE</code>, <code>SOURCE_PROVISIONER</code>, <code>
+     *        SOURCE_STALE</code> or <code>SOURCE_CREDENTIAL</code> for a valid token, ignored 
+     *        otherwise
+     * @return void
+     */
+    public void recordVerification(int result, String source) {
+        String series;
+        
+        switch (result) {
+            case Verifier.RESULT_VALID:
+                series = SOURCE_CACHE.equals(source) ? VALID_CACHE 
+                    : SOURCE_STALE.equals(source) ? VALID_STALE 
+                    : SOURCE_CREDENTIAL.equals(source) ? VALID_CREDENTIAL : VALID_PROVISIONER;
+                break;
+            case Verifier.RESULT_INVALID:
+                series = INVALID;
+                break;
+            case Verifier.RESULT_MISSING:
+                series = MISSING;
+                break;
+            default:
+                series = UNKNOWN;
+                break;
+        }
+        increment(series);
+    }
+
+    /**
+     * @param status 403 for a refusal, anything else for a 401 challenge
+     * @return void
+     */
+    public void recordChallenge(Status status) {
+        increment(Status.CLIENT_ERROR_FORBIDDEN.equals(status) ? FORBIDDEN : UNAUTHORIZED);
+    }
+
+    /**
+     * @param isAuthorized
+     * @return void
+     */
+    public void recordAuthorization(boolean isAuthorized) {
+        increment(isAuthorized ? GRANTED : DENIED);
+    }
+
+    /**
+     * @return every series in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String write() {
+        StringBuilder sb = new StringBuilder(4096);
+        Map<String, Long> sortedCounters = new TreeMap<String, Long>();
+        Map<String, OperationMetrics> sortedOperations = new TreeMap<String, OperationMetrics>(operations);
+        
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            sortedCounters.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, OperationMetrics> operation : sortedOperations.entrySet()) {
+            AtomicLongArray statuses = operation.getValue().statuses;
+            
+            for (int code = 0; code <= MAX_STATUS_CODE; code++) {
+                long count = statuses.get(code);
+                
+                if (count > 0) {
+                    sortedCounters.put(requestsSeries(operation.getKey(), code), count);
+                }
+            }
+        }
+        
+        sb.append("# HELP ").append(REQUEST_SECONDS).append(" Latency of the calls to the session provisioner.\n");
+        sb.append("# TYPE ").append(REQUEST_SECONDS).append(" histogram\n");
+        
+        for (Map.Entry<String, OperationMetrics> operation : sortedOperations.entrySet()) {
+            writeHistogram(sb, operation.getKey(), operation.getValue().histogram);
+        }
+        for (Map.Entry<String, String> help : HELP.entrySet()) {
+            sb.append("# HELP ").append(help.getKey()).append(' ').append(help.getValue()).append('\n');
+            sb.append("# TYPE ").append(help.getKey()).append(" counter\n");
+            
+            for (Map.Entry<String, Long> counter : sortedCounters.entrySet()) {
+                if (counter.getKey().startsWith(help.getKey() + "{")) {
+                    sb.append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+                }
+            }
+        }
+        if (connectionPool != null) {
+            writeConnectionPool(sb, connectionPool);
+        }
+        
+        return sb.toString();
+    }
+
+    private void writeConnectionPool(StringBuilder sb, ConnectionPoolStatistics pool) {
+        sb.append("# HELP ").append(CONNECTIONS).append(" Connections to the session provisioner by state.\n");
+        sb.append("# TYPE ").append(CONNECTIONS).append(" gauge\n");
+        sb.append(CONNECTIONS).append("{state=\"max\"} ").append(pool.getMaxConnections()).append('\n');
+        sb.append(CONNECTIONS).append("{state=\"open\"} ").append(pool.getOpenConnections()).append('\n');
+        sb.append(CONNECTIONS).append("{state=\"idle\"} ").append(pool.getIdleConnections()).append('\n');
+        sb.append(CONNECTIONS).append("{state=\"in_use\"} ").append(pool.getActiveRequests()).append('\n');
+        writeSample(sb, CONNECTION + "_waiting", "gauge", 
+                    "Requests waiting for a connection to the session provisioner.", pool.getWaitingRequests());
+        writeSample(sb, CONNECTION + "_requests_total", "counter", 
+                    "Requests that got a connection to the session provisioner.", pool.getRequests());
+        writeSample(sb, CONNECTION + "_waits_total", "counter", 
+                    "Requests that had to wait for a connection.", pool.getWaits());
+        writeSample(sb, CONNECTION + "_wait_seconds_total", "counter", 
+                    "Time requests have waited for a connection.", pool.getTotalWaitTime() / 1000.0);
+        writeSample(sb, CONNECTION + "_wait_seconds_max", "gauge", 
+                    "Longest time a request has waited for a connection.", pool.getMaxWaitTime() / 1000.0);
+        writeSample(sb, CONNECTION + "_rejections_total", "counter", 
+                    "Requests failed with 503 because no connection became available in time.", pool.getRejections());
+        writeSample(sb, CONNECTIONS + "_closed_idle_total", "counter", 
+                    "Connections closed for being idle.", pool.getIdleConnectionsClosed());
+    }
+
+    private void writeSample(StringBuilder sb, String name, String type, String help, Number value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void writeHistogram(StringBuilder sb, String operation, LatencyHistogram histogram) {
+        String labels = "operation=\"" + operation + "\"";
+        
+        for (int i = 0; i <= LatencyHistogram.BOUNDS.length; i++) {
+            sb.append(REQUEST_SECONDS).append("_bucket{").append(labels).append(",le=\"")
+              .append((i < LatencyHistogram.BOUNDS.length) ? String.valueOf(LatencyHistogram.BOUNDS[i]) : "+Inf")
+              .append("\"} ").append(histogram.getCumulativeCount(i)).append('\n');
+        }
+        sb.append(REQUEST_SECONDS).append("_sum{").append(labels).append("} ").append(histogram.getSum()).append('\n');
+        sb.append(REQUEST_SECONDS).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private String requestsSeries(String operation, int code) {
+        return REQUESTS + "{operation=\"" + operation + "\",status=\"" + code + "\"}";
+    }
+
+    private void increment(String series) {
+        AtomicLong counter = counters.get(series);
+        
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(series, newCounter);
+            counter = (counter != null) ? counter : newCounter;
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Latency and calls by status code of one operation.
+     */
+    private static final class OperationMetrics {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS_CODE + 1);
+
+    }
+
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.openam.client;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apius.server.identity.session.AsyncSessionProvisioner;
+import org.apius.server.identity.session.SessionFuture;
+import org.apius.server.identity.session.SessionFutureListener;
+import org.apius.server.identity.session.metrics.SessionMetrics;
+import org.restlet.Client;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Uniform;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Protocol;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * Asynchronous proxy to the <a href="forgerock.com/openam.html">OpenAM</a> session 
+ * provisioner, authenticator and authorizer application.
+ * </p>
+ * <p>
+ * Requests are handed to the Restlet <code>Client</code> connector together with a 
+ * callback (<code>Request.setOnResponse</code>), so the connector sends them and reads
+ * the responses on its own small pool of threads while the caller moves on. The 
+ * futures are completed from that callback.
+ * </p>
+ * <p>
+ * The connector does not always call back when it fails to connect, so every call
+ * is given a deadline. Calls still outstanding when it passes fail with a 504 
+ * (Gateway Timeout).
+ * </p>
+ * <p>
+ * Like the synchronous <code>SessionProvisionerProxy</code>, the proxy is stateless and
+ * concurrent lookups for the same token (and resource) share a single call to OpenAM,
+ * and with <code>SessionMetrics</code> the latency and status of every answered call 
+ * is recorded.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class AsyncSessionProvisionerProxy implements AsyncSessionProvisioner, IdentifierResolver {
+
+    private final String baseUri;
+    private final ResponseHelper responseHelper;
+    private final Client client;
+    private final RepresentationCache representationCache;
+    private final long timeout;
+    private final SessionMetrics sessionMetrics;
+    private final ConcurrentHashMap<String, SessionFuture<?>> inFlight = 
+        new ConcurrentHashMap<String, SessionFuture<?>>();
+    private final ConcurrentHashMap<SessionFuture<?>, Long> deadlines = 
+        new ConcurrentHashMap<SessionFuture<?>, Long>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Constructor
+     * 
+     * @param baseUri
+     * @param responseHelper
+     * @param client connector the requests are sent with, a new HTTP connector when <code>null</code>
+     * @param representationCache serialized session attributes per session and media type, 
+     *        nothing is kept when <code>null</code>
+     * @param timeout number of milliseconds after which an unanswered call fails
+     * @param sessionMetrics records the latency of every call to OpenAM, may be <code>null</code>
+     */
+    public AsyncSessionProvisionerProxy(String baseUri, 
+                                        ResponseHelper responseHelper, 
+                                        Client client,
+                                        RepresentationCache representationCache,
+                                        int timeout,
+                                        SessionMetrics sessionMetrics) {
+        this.baseUri = baseUri;
+        this.responseHelper = responseHelper;
+        this.client = (client != null) ? client : new Client(Protocol.HTTP);
+        this.representationCache = (representationCache != null) ? representationCache : new RepresentationCache(1, 0);
+        this.timeout = timeout;
+        this.sessionMetrics = sessionMetrics;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "apius-openam-async-timeout");
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expireOverdueCalls();
+            }
+        }, 250, 250, TimeUnit.MILLISECONDS);
+    }
+
+    public SessionFuture<String> createSession(Form form) {
+        // Always a POST so that OpenAM does not log the username and password, see 
+        // SessionProvisionerProxy.createSession.
+        return send(null, Method.POST, createReference("authenticate"), form.getWebRepresentation(), 
+                    new ResponseParser<String>() {
+                        public String parse(String responseString) {
+                            return responseString.replace("token.id=", "").trim();
+                        }
+                    });
+    }
+
+    public SessionFuture<Representation> getAttributes(final String token, final MediaType mediaType) {
+        final SessionFuture<Representation> future = new SessionFuture<Representation>();
+        byte[] bytes = representationCache.get(token, mediaType);
+        
+        if (bytes != null) {
+            future.complete(responseHelper.createRepresentation(bytes, mediaType));
+        } else {
+            getSessionAttributes(token).addListener(new SessionFutureListener<SessionAttributes>() {
+                public void completed(SessionAttributes sessionAttributes) {
+                    try {
+                        byte[] bytes = responseHelper.writeSessionAttributes(sessionAttributes, mediaType);
+                        representationCache.put(token, mediaType, bytes);
+                        future.complete(responseHelper.createRepresentation(bytes, mediaType));
+                    } catch (RuntimeException e) {
+                        future.fail(e);
+                    }
+                }
+
+                public void failed(RuntimeException e) {
+                    future.fail(e);
+                }
+            });
+        }
+        
+        return future;
+    }
+
+    public SessionFuture<User> authenticateToken(final String token) {
+        return send("isTokenValid\n" + token, Method.GET, 
+                    createReference("isTokenValid").addQueryParameter("tokenid", token), null, 
+                    new ResponseParser<User>() {
+                        public User parse(String responseString) {
+                            if (!responseHelper.extractBooleanFromResponseString(responseString)) {
+                                throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+                            }
+                            return new LazyUser(AsyncSessionProvisionerProxy.this, token);
+                        }
+                    });
+    }
+
+    public SessionFuture<Void> logout(String token) {
+        return send(null, Method.GET, createReference("logout").addQueryParameter("subjectid", token), null, 
+                    new ResponseParser<Void>() {
+                        public Void parse(String responseString) {
+                            return null;
+                        }
+                    });
+    }
+
+    public SessionFuture<Boolean> isAuthorized(String token, String uri, String method) {
+        return send("authorize\n" + token + "\n" + method + "\n" + uri, Method.GET,
+                    createReference("authorize").
+                            addQueryParameter("uri", uri).
+                            addQueryParameter("action", method).
+                            addQueryParameter("subjectid", token), null,
+                    new ResponseParser<Boolean>() {
+                        public Boolean parse(String responseString) {
+                            return responseHelper.extractBooleanFromResponseString(responseString);
+                        }
+                    });
+    }
+
+    /**
+     * Blocks, only used by a <code>LazyUser</code> when its identifier is first read.
+     * 
+     * @param token
+     * @return identifier string (i.e. username)
+     */
+    public String getIdentifier(String token) {
+        return getSessionAttributes(token).getResult().getUsername();
+    }
+
+    /**
+     * Stops the client connector. Meant to be used as the bean's destroy method.
+     * 
+     * @return void
+     * @throws Exception
+     */
+    public void stop() throws Exception {
+        timer.shutdownNow();
+        client.stop();
+    }
+
+    private SessionFuture<SessionAttributes> getSessionAttributes(String token) {
+        return send("attributes\n" + token, Method.GET, 
+                    createReference("attributes").addQueryParameter("subjectid", token), null,
+                    new ResponseParser<SessionAttributes>() {
+                        public SessionAttributes parse(String responseString) {
+                            return responseHelper.parseSessionAttributes(responseString);
+                        }
+                    });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> SessionFuture<V> send(final String key, 
+                                      Method method, 
+                                      Reference reference, 
+                                      Representation entity,
+                                      final ResponseParser<V> parser) {
+        final SessionFuture<V> future = new SessionFuture<V>();
+        
+        if (key != null) {
+            SessionFuture<V> outstanding = (SessionFuture<V>) inFlight.putIfAbsent(key, future);
+            
+            if (outstanding != null) {
+                return outstanding;
+            }
+        }
+        
+        final long start = System.nanoTime();
+        Request request = new Request(method, reference, entity);
+        deadlines.put(future, System.currentTimeMillis() + timeout);
+        request.setOnResponse(new Uniform() {
+            public void handle(Request request, Response response) {
+                deadlines.remove(future);
+                
+                if (key != null) {
+                    inFlight.remove(key, future);
+                }
+                
+                V value = null;
+                RuntimeException failure = null;
+                
+                try {
+                    value = parser.parse(getResponseString(response));
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                
+                if (sessionMetrics != null) {
+                    sessionMetrics.recordProvisionerCall(request.getResourceRef().getLastSegment(), start, 
+                                                         (failure instanceof ResourceException) 
+                                                             ? ((ResourceException) failure).getStatus() 
+                                                             : response.getStatus());
+                }
+                if (failure != null) {
+                    future.fail(failure);
+                } else {
+                    future.complete(value);
+                }
+            }
+        });
+        
+        try {
+            client.handle(request, new Response(request));
+        } catch (RuntimeException e) {
+            deadlines.remove(future);
+            
+            if (key != null) {
+                inFlight.remove(key, future);
+            }
+            future.fail(e);
+        }
+        
+        return future;
+    }
+    
+    private void expireOverdueCalls() {
+        long now = System.currentTimeMillis();
+        
+        for (Iterator<Map.Entry<SessionFuture<?>, Long>> i = deadlines.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<SessionFuture<?>, Long> deadline = i.next();
+            
+            if (deadline.getValue() <= now) {
+                i.remove();
+                inFlight.values().remove(deadline.getKey());
+                deadline.getKey().fail(new ResourceException(Status.SERVER_ERROR_GATEWAY_TIMEOUT));
+            }
+        }
+    }
+
+    private String getResponseString(Response response) {
+        String responseString = null;
+        
+        try {
+            responseString = (response.getEntity() != null) ? response.getEntity().getText() : "";
+        } catch (IOException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+        }
+        
+        if (response.getStatus().isError()) {
+            // Same as SessionProvisionerProxy: OpenAM answers an invalid session token
+            // with a 500, APIUS answers it with a 401.
+            if (responseString != null && responseString.contains("Invalid session ID")) {
+                throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+            }
+            throw new ResourceException(response.getStatus());
+        }
+        
+        return responseString;
+    }
+
+    private Reference createReference(String operation) {
+        return new Reference(baseUri).addSegment("identity").addSegment(operation);
+    }
+
+    private interface ResponseParser<V> {
+
+        abstract V parse(String responseString);
+    }
+
+}
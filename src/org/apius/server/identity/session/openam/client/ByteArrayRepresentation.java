@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * <p>
+ * Representation of already serialized bytes. The bytes are shared, never copied,
+ * and the representation can be written any number of times.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class ByteArrayRepresentation extends OutputRepresentation {
+
+    private final byte[] bytes;
+
+    ByteArrayRepresentation(byte[] bytes, MediaType mediaType, CharacterSet characterSet) {
+        super(mediaType, bytes.length);
+        this.bytes = bytes;
+        setCharacterSet(characterSet);
+        setTransient(false);
+    }
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.openam.client;
+
+/**
+ * <p>
+ * Looks up the identifier (or username) of the user a session belongs to. Used by
+ * <code>LazyUser</code> to defer that lookup until somebody actually asks for it.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+interface IdentifierResolver {
+
+    /**
+     * @param token
+     * @return identifier string (i.e. username)
+     */
+    abstract String getIdentifier(String token);
+
+}
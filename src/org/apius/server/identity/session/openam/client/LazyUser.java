@@ -0,0 +1,71 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.client;
+
+import org.restlet.security.User;
+
+/**
+ * <p>
+ * A <code>User</code> whose identifier is only looked up in the <a href="forgerock.com/openam.html">
+ * OpenAM</a> session attributes the first time something asks for it. Most protected
+ * resources never look at the user, so validating a token does not need to download 
+ * and parse the whole attribute dump.
+ * </p>
+ * <p>
+ * If the session has become invalid by the time the identifier is first asked for,
+ * the lookup fails with the same <code>ResourceException</code> the proxy would 
+ * have thrown.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+final class LazyUser extends User {
+
+    private final IdentifierResolver identifierResolver;
+    private final String token;
+    private volatile boolean resolved;
+
+    LazyUser(IdentifierResolver identifierResolver, String token) {
+        this.identifierResolver = identifierResolver;
+        this.token = token;
+    }
+
+    @Override
+    public String getIdentifier() {
+        if (!resolved) {
+            setIdentifier(identifierResolver.getIdentifier(token));
+        }
+
+        return super.getIdentifier();
+    }
+
+    /**
+     * @return the identifier if it has already been looked up, <code>null</code> otherwise
+     */
+    String getResolvedIdentifier() {
+        return resolved ? super.getIdentifier() : null;
+    }
+
+    @Override
+    public void setIdentifier(String identifier) {
+        super.setIdentifier(identifier);
+        resolved = true;
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.client;
+
+import org.apius.server.identity.session.TokenFormat;
+
+/**
+ * <p>
+ * The structure of an <a href="forgerock.com/openam.html">OpenAM</a> session token, checked
+ * in a single pass over its characters without allocating anything.
+ * </p>
+ * <p>
+ * A token is an encoded session id followed by the encoded session information, for instance:
+ * </p>
+ * <p>
+ * <code>AQIC5wM2LY4SfcwGgIvSF9oEp5y7rZl[...].*AAJTSQACMDE.*</code>
+ * </p>
+ * <p>
+ * It is accepted if its length is within bounds, every character is one of the Base64 
+ * alphabet (either flavour), <code>=</code>, <code>.</code> or the delimiters, and it ends 
+ * with a non-empty suffix between two delimiters: <code>*...*</code> when OpenAM encodes 
+ * its cookies (<code>com.iplanet.am.cookie.c66Encode</code>) and <code>@...#</code> when 
+ * it does not.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class OpenAmTokenFormat implements TokenFormat {
+
+    private static final boolean[] ALLOWED = new boolean[128];
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c : "+/-_=.*@#".toCharArray()) {
+            ALLOWED[c] = true;
+        }
+    }
+
+    private final int minLength;
+    private final int maxLength;
+
+    /**
+     * Constructor
+     * 
+     * @param minLength
+     * @param maxLength
+     */
+    public OpenAmTokenFormat(int minLength, int maxLength) {
+        if (minLength < 3 || maxLength < minLength) {
+            throw new IllegalArgumentException("minLength must be at least 3 and no greater than maxLength");
+        }
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @param token
+     * @return <code>true</code> if OpenAM could have issued the token
+     */
+    public boolean isWellFormed(String token) {
+        boolean isWellFormed = token != null && token.length() >= minLength && token.length() <= maxLength;
+        int length = isWellFormed ? token.length() : 0;
+        char last = isWellFormed ? token.charAt(length - 1) : 0;
+        char opening = (last == '*') ? '*' : (last == '#') ? '@' : 0;
+        int suffixStart = -1;
+
+        isWellFormed = isWellFormed && opening != 0;
+        for (int i = 0; isWellFormed && i < length - 1; i++) {
+            char c = token.charAt(i);
+
+            isWellFormed = c < 128 && ALLOWED[c];
+            if (c == opening) {
+                suffixStart = i;
+            }
+        }
+
+        // The last opening delimiter before the end must leave both a session id and a suffix
+        return isWellFormed && suffixStart > 0 && suffixStart < length - 2;
+    }
+
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.openam.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apius.server.identity.session.metrics.ConnectionPoolStatistics;
+import org.apius.server.identity.session.metrics.SessionMetrics;
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Uniform;
+import org.restlet.data.Protocol;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+
+/**
+ * <p>
+ * HTTP client connector for the calls to OpenAM. It keeps a bounded pool of 
+ * persistent connections and reuses them, so that the proxies do not open (and 
+ * leave in TIME_WAIT) a connection per call.
+ * </p>
+ * <p>
+ * At most <code>maxConnections</code> requests are in progress at any time, each on 
+ * its own connection, though up to twice as many connections may be open while the
+ * connector catches up with the ones it has just finished with. A caller that finds all of them busy waits up to <code>
+ * acquireTimeout</code> milliseconds for one to be released and then fails with 503 
+ * (Service Unavailable). Connections are opened with a <code>connectTimeout</code>, 
+ * reads on them time out after <code>readTimeout</code> milliseconds and connections 
+ * with nothing to do for <code>idleTimeout</code> seconds are closed.
+ * </p>
+ * <p>
+ * A request holds its connection until the connector has answered it, through the 
+ * <code>onResponse</code> callback, or has failed with a connector error, which it does
+ * without calling back. A synchronous caller that stops waiting after <code>readTimeout
+ * </code> gets a 504 (Gateway Timeout) in its own response while the connector keeps 
+ * the connection, and the answer that comes later is thrown away. The connector does not
+ * call back after a read has timed out either, so a request still unanswered once the 
+ * read timeout has passed a second time gives its connection up, the socket having been
+ * closed by then.
+ * </p>
+ * <p>
+ * Asynchronous requests (those with an <code>onResponse</code> callback) wait for a 
+ * connection like the others. Their callback is always called: with the answer, with 
+ * 503 if no connection became available, with the connector error or with 504 once
+ * the read timeout has passed a second time.
+ * </p>
+ * <p>
+ * The getters report occupancy and how long callers have waited for a connection, and
+ * so does <code>SessionMetrics</code>, if given.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class PooledClient extends Client implements ConnectionPoolStatistics {
+
+    private static final long RESPONSE_POLL_INTERVAL = 50L;
+
+    // States of an Exchange
+    private static final int WAITING = 0;
+    private static final int ANSWERED = 1;
+    private static final int ABANDONED = 2;
+    private static final int RELEASED = 3;
+
+    private final int maxConnections;
+    private final long acquireTimeout;
+    private final long idleTimeout;
+    private final long readTimeout;
+    private final Semaphore permits;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong idleConnectionsClosed = new AtomicLong();
+    private final Set<Exchange> exchanges = Collections.newSetFromMap(new ConcurrentHashMap<Exchange, Boolean>());
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor
+     * 
+     * @param maxConnections maximum number of connections to OpenAM
+     * @param acquireTimeout number of milliseconds a caller may wait for a connection
+     * @param connectTimeout number of milliseconds a connection may take to open
+     * @param readTimeout number of milliseconds a read may block, 0 for no limit
+     * @param idleTimeout number of seconds an idle connection is kept open
+     * @param sessionMetrics publishes the occupancy and wait times, may be <code>null</code>
+     */
+    public PooledClient(int maxConnections, 
+                        int acquireTimeout, 
+                        int connectTimeout, 
+                        int readTimeout, 
+                        int idleTimeout,
+                        SessionMetrics sessionMetrics) {
+        super(createContext(maxConnections, readTimeout), Arrays.asList(Protocol.HTTP), PooledClientHelper.class.getName());
+        this.maxConnections = maxConnections;
+        this.acquireTimeout = acquireTimeout;
+        this.idleTimeout = idleTimeout * 1000L;
+        this.readTimeout = readTimeout;
+        this.permits = new Semaphore(maxConnections, true);
+        setConnectTimeout(connectTimeout);
+        
+        if (sessionMetrics != null) {
+            sessionMetrics.setConnectionPool(this);
+        }
+    }
+
+    private static Context createContext(int maxConnections, int readTimeout) {
+        Context context = new Context();
+        
+        PooledClientHelper.register();
+        
+        // The permits bound the requests in progress. The connector only marks a connection free
+        // a moment after calling back, so it is allowed more, lest the next request find none.
+        context.getParameters().add("maxConnectionsPerHost", String.valueOf(2 * maxConnections));
+        context.getParameters().add("maxTotalConnections", String.valueOf(2 * maxConnections));
+        context.getParameters().add("persistingConnections", "true");
+        context.getParameters().add("pipeliningConnections", "false");
+        // The connector hands responses back on its controller's schedule, every 100 ms by default.
+        context.getParameters().add("controllerSleepTimeMs", "10");
+        context.getParameters().add("readTimeoutMs", String.valueOf(readTimeout));
+        
+        return context;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        if (!acquire()) {
+            response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, 
+                               "No connection to OpenAM became available within " + acquireTimeout + " ms");
+            
+            if (request.getOnResponse() != null) {
+                request.getOnResponse().handle(request, response);
+            }
+        } else if (request.getOnResponse() != null) {
+            send(new Exchange(request));
+        } else {
+            handleWithTimeout(request, response);
+        }
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+        if (isStopped()) {
+            super.start();
+            
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "apius-openam-connections");
+                    thread.setDaemon(true);
+                    
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    expireExchanges();
+                }
+            }, RESPONSE_POLL_INTERVAL, RESPONSE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            
+            if (idleTimeout > 0) {
+                executor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        closeIdleConnections();
+                    }
+                }, idleTimeout, Math.max(idleTimeout / 2, 1000L), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        super.stop();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return number of requests holding a connection, including those whose caller has 
+     *         stopped waiting for the answer
+     */
+    public int getActiveRequests() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * @return number of callers waiting for a connection
+     */
+    public int getWaitingRequests() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return number of connections currently open to OpenAM
+     */
+    public int getOpenConnections() {
+        PooledClientHelper helper = getPooledClientHelper();
+        
+        return (helper != null) ? helper.getOpenConnections() : 0;
+    }
+
+    /**
+     * @return number of open connections with no request in progress
+     */
+    public int getIdleConnections() {
+        PooledClientHelper helper = getPooledClientHelper();
+        
+        return (helper != null) ? helper.getIdleConnections() : 0;
+    }
+
+    /**
+     * @return number of requests sent since the client was created
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of requests that had to wait for a connection
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * @return total number of milliseconds requests have waited for a connection
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    /**
+     * @return longest number of milliseconds a request has waited for a connection
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * @return number of requests failed because no connection became available in time
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @return number of connections closed for being idle
+     */
+    public long getIdleConnectionsClosed() {
+        return idleConnectionsClosed.get();
+    }
+
+    private boolean acquire() {
+        boolean acquired = permits.tryAcquire();
+        
+        if (!acquired) {
+            long start = System.currentTimeMillis();
+            
+            try {
+                acquired = permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            recordWait(System.currentTimeMillis() - start);
+        }
+        
+        if (acquired) {
+            requests.incrementAndGet();
+        } else {
+            rejections.incrementAndGet();
+        }
+        
+        return acquired;
+    }
+
+    /**
+     * The connector makes synchronous callers wait up to a minute whatever happens to 
+     * the connection, so the request is sent asynchronously and the caller waits for the 
+     * callback itself. The connector does not call back when it fails to connect, hence 
+     * the polling for a connector error. The connector writes into a response of its own, 
+     * copied into the caller's once the caller has it, so that an answer coming after the
+     * 504 cannot change what the caller is reading.
+     */
+    private void handleWithTimeout(Request request, Response response) {
+        Exchange exchange = new Exchange(request);
+        long deadline = System.currentTimeMillis() + getConnectTimeout() + readTimeout;
+        
+        try {
+            send(exchange);
+            
+            while (!exchange.latch.await(RESPONSE_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (exchange.response.getStatus().isConnectorError() && exchange.answer()) {
+                    break;
+                } else if (readTimeout > 0 && System.currentTimeMillis() >= deadline && exchange.abandon()) {
+                    response.setStatus(Status.SERVER_ERROR_GATEWAY_TIMEOUT, 
+                                       "OpenAM did not respond within " + readTimeout + " ms");
+                    break;
+                }
+            }
+            if (exchange.isAnswered()) {
+                if (exchange.response.isEntityAvailable()) {
+                    bufferEntity(exchange.response);
+                }
+                copy(exchange.response, response);
+            }
+        } catch (IOException e) {
+            response.setStatus(Status.CONNECTOR_ERROR_COMMUNICATION, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.abandon();
+            response.setStatus(Status.CONNECTOR_ERROR_INTERNAL, e);
+        } finally {
+            if (exchange.isAnswered()) {
+                exchange.release();
+            }
+        }
+    }
+
+    /**
+     * Sends the exchange's copy of the request, with the exchange as its callback.
+     */
+    private void send(Exchange exchange) {
+        exchange.response.getRequest().setOnResponse(exchange);
+        exchanges.add(exchange);
+        
+        try {
+            super.handle(exchange.response.getRequest(), exchange.response);
+        } catch (RuntimeException e) {
+            exchange.abandon();
+            exchange.release();
+            throw e;
+        }
+    }
+
+    private static void copy(Response from, Response to) {
+        to.setStatus(from.getStatus());
+        to.setEntity(from.getEntity());
+        to.getAttributes().putAll(from.getAttributes());
+        to.setAge(from.getAge());
+        to.setAllowedMethods(from.getAllowedMethods());
+        to.setAuthenticationInfo(from.getAuthenticationInfo());
+        to.setCacheDirectives(from.getCacheDirectives());
+        to.setChallengeRequests(from.getChallengeRequests());
+        to.setCookieSettings(from.getCookieSettings());
+        to.setDate(from.getDate());
+        to.setDimensions(from.getDimensions());
+        to.setLocationRef(from.getLocationRef());
+        to.setProxyChallengeRequests(from.getProxyChallengeRequests());
+        to.setRetryAfter(from.getRetryAfter());
+        to.setServerInfo(from.getServerInfo());
+        to.setWarnings(from.getWarnings());
+    }
+
+    /**
+     * Reads the entity while the caller still holds the connection, so that the 
+     * connection is free for the next caller as soon as the permit is released.
+     * OpenAM responses are small.
+     */
+    private void bufferEntity(Response response) throws IOException {
+        Representation entity = response.getEntity();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+        InputStream inputStream = entity.getStream();
+        
+        try {
+            byte[] buffer = new byte[1024];
+            for (int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        response.setEntity(new ByteArrayRepresentation(outputStream.toByteArray(), 
+                                                       entity.getMediaType(), 
+                                                       entity.getCharacterSet()));
+    }
+
+    private void recordWait(long waitTime) {
+        waits.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        
+        long max = maxWaitTime.get();
+        while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    private void expireExchanges() {
+        long now = System.currentTimeMillis();
+        
+        for (Exchange exchange : exchanges) {
+            exchange.expire(now);
+        }
+    }
+
+    private void closeIdleConnections() {
+        PooledClientHelper helper = getPooledClientHelper();
+        
+        if (helper != null) {
+            idleConnectionsClosed.addAndGet(helper.closeIdleConnections(idleTimeout));
+        }
+    }
+
+    private PooledClientHelper getPooledClientHelper() {
+        return (PooledClientHelper) getContext().getAttributes().get(PooledClientHelper.class.getName());
+    }
+
+    /**
+     * One request from the time it got a permit to the time the permit is released, 
+     * which happens once, whoever gets there first: the connector calling back, the 
+     * synchronous caller once it has read the answer, or the check for the exchanges 
+     * nobody waits for any more. The connector is given a copy of the request and a 
+     * response of its own, so that the caller's are left as they were.
+     */
+    private final class Exchange implements Uniform {
+
+        private final Request request;
+        private final Response response;
+        private final Uniform onResponse;
+        private final long expiresAt;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private Exchange(Request request) {
+            this.request = request;
+            this.response = new Response(new Request(request));
+            this.onResponse = request.getOnResponse();
+            // By then the read timeout of the socket has closed the connection
+            this.expiresAt = (readTimeout > 0) 
+                ? System.currentTimeMillis() + getConnectTimeout() + 2 * readTimeout : Long.MAX_VALUE;
+        }
+
+        public void handle(Request request, Response response) {
+            if (answer()) {
+                if (onResponse != null) {
+                    respond();
+                } else {
+                    latch.countDown();
+                }
+            } else if (state.get() == ABANDONED) {
+                // The caller has given up on this answer
+                response.release();
+                release();
+            }
+        }
+
+        /**
+         * The connector calls back neither when it fails nor when a read times out, so
+         * an asynchronous caller is answered here instead and the connection of a 
+         * synchronous caller that has given up is released.
+         * 
+         * @param now
+         * @return void
+         */
+        private void expire(long now) {
+            boolean isOver = response.getStatus().isConnectorError() || now >= expiresAt;
+            
+            if (isOver && onResponse != null && answer()) {
+                if (!response.getStatus().isConnectorError()) {
+                    response.setStatus(Status.SERVER_ERROR_GATEWAY_TIMEOUT, 
+                                       "OpenAM did not respond within " + readTimeout + " ms");
+                }
+                respond();
+            } else if (isOver && state.get() == ABANDONED) {
+                release();
+            }
+        }
+
+        private void respond() {
+            try {
+                onResponse.handle(request, response);
+            } finally {
+                release();
+            }
+        }
+
+        private boolean answer() {
+            return state.compareAndSet(WAITING, ANSWERED);
+        }
+
+        private boolean abandon() {
+            return state.compareAndSet(WAITING, ABANDONED);
+        }
+
+        private boolean isAnswered() {
+            return state.get() == ANSWERED;
+        }
+
+        private void release() {
+            if (state.getAndSet(RELEASED) != RELEASED) {
+                exchanges.remove(this);
+                permits.release();
+            }
+        }
+    }
+
+}
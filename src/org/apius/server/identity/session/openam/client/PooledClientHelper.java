@@ -0,0 +1,181 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.openam.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.restlet.Client;
+import org.restlet.Request;
+import org.restlet.engine.ConnectorHelper;
+import org.restlet.engine.Engine;
+import org.restlet.engine.http.connector.Connection;
+import org.restlet.engine.http.connector.ConnectionState;
+import org.restlet.engine.http.connector.HttpClientHelper;
+
+/**
+ * <p>
+ * The Restlet internal HTTP client connector with the additions the <code>PooledClient
+ * </code> needs: a read timeout on every socket, and the ability to count and close 
+ * the persistent connections that have been idle for too long.
+ * </p>
+ * <p>
+ * Instantiated by the Restlet engine, which is why it is public and has to be 
+ * registered with the engine first. Each instance registers itself in the attributes 
+ * of its client's context so that the <code>PooledClient</code> can reach it.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class PooledClientHelper extends HttpClientHelper {
+
+    private final Map<Connection<Client>, Long> lastUsed = new ConcurrentHashMap<Connection<Client>, Long>();
+
+    /**
+     * Constructor
+     * 
+     * @param client
+     */
+    public PooledClientHelper(Client client) {
+        super(client);
+        
+        if (client != null && client.getContext() != null) {
+            client.getContext().getAttributes().put(PooledClientHelper.class.getName(), this);
+        }
+    }
+
+    /**
+     * Adds this helper to the client connectors known to the Restlet engine, after 
+     * the ones already there so that it is only used when asked for by name.
+     * 
+     * @return void
+     */
+    public static synchronized void register() {
+        boolean registered = false;
+        
+        for (ConnectorHelper<Client> helper : Engine.getInstance().getRegisteredClients()) {
+            registered |= (helper instanceof PooledClientHelper);
+        }
+        if (!registered) {
+            Engine.getInstance().getRegisteredClients().add(new PooledClientHelper(null));
+        }
+    }
+
+    /**
+     * @return number of milliseconds a read on an OpenAM socket may block, 0 for no limit
+     */
+    public int getReadTimeout() {
+        return Integer.parseInt(getHelpedParameters().getFirstValue("readTimeoutMs", "0"));
+    }
+
+    /**
+     * @return number of open connections, busy or idle
+     */
+    public int getOpenConnections() {
+        int openConnections = 0;
+        
+        for (Connection<Client> connection : getConnections()) {
+            if (ConnectionState.OPEN.equals(connection.getState())) {
+                openConnections++;
+            }
+        }
+        
+        return openConnections;
+    }
+
+    /**
+     * @return number of open connections with no request in progress
+     */
+    public int getIdleConnections() {
+        int idleConnections = 0;
+        
+        for (Connection<Client> connection : getConnections()) {
+            if (isIdle(connection)) {
+                idleConnections++;
+            }
+        }
+        
+        return idleConnections;
+    }
+
+    /**
+     * Closes the connections that have had no request in progress for at least <code>
+     * idleTimeout</code> milliseconds.
+     * 
+     * @param idleTimeout
+     * @return number of connections closed
+     */
+    public int closeIdleConnections(long idleTimeout) {
+        int closed = 0;
+        long idleSince = System.currentTimeMillis() - idleTimeout;
+        
+        for (Connection<Client> connection : getConnections()) {
+            Long used = lastUsed.get(connection);
+            
+            if (isIdle(connection) && (used == null || used.longValue() <= idleSince)) {
+                connection.close();
+                closed++;
+            }
+        }
+        for (Iterator<Connection<Client>> i = lastUsed.keySet().iterator(); i.hasNext();) {
+            if (!getConnections().contains(i.next())) {
+                i.remove();
+            }
+        }
+        
+        return closed;
+    }
+
+    @Override
+    protected Connection<Client> getBestConnection(Request request) throws UnknownHostException, IOException {
+        Connection<Client> connection = super.getBestConnection(request);
+        
+        if (connection != null) {
+            lastUsed.put(connection, System.currentTimeMillis());
+        }
+        
+        return connection;
+    }
+
+    @Override
+    protected Socket createSocket(boolean secure, InetSocketAddress socketAddress) 
+            throws UnknownHostException, IOException {
+        Socket socket = super.createSocket(secure, socketAddress);
+        
+        if (socket != null) {
+            socket.setSoTimeout(getReadTimeout());
+        }
+        
+        return socket;
+    }
+
+    private boolean isIdle(Connection<Client> connection) {
+        return ConnectionState.OPEN.equals(connection.getState()) 
+            && !connection.isBusy()
+            && connection.getInboundMessages().isEmpty() 
+            && connection.getOutboundMessages().isEmpty();
+    }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.client;
+
+import org.apius.server.identity.session.SessionMediaTypes;
+import org.apius.server.identity.session.cache.ExpiringCache;
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+import org.restlet.data.MediaType;
+
+/**
+ * <p>
+ * Holds the serialized session attributes per session and media type so that
+ * repeated requests for the attributes of the same session are answered without
+ * calling <a href="forgerock.com/openam.html">OpenAM</a> or serializing anything.
+ * </p>
+ * <p>
+ * A time to live of zero disables the cache.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class RepresentationCache implements TokenInvalidationListener {
+
+    private final ExpiringCache<String, byte[]> cache;
+    private final long timeToLive;
+
+    /**
+     * Constructor
+     * 
+     * @param maxSize maximum number of serialized representations held
+     * @param timeToLive number of seconds a representation is served for
+     */
+    public RepresentationCache(int maxSize, int timeToLive) {
+        this.cache = new ExpiringCache<String, byte[]>(maxSize);
+        this.timeToLive = timeToLive * 1000L;
+    }
+
+    byte[] get(String token, MediaType mediaType) {
+        return cache.get(createKey(token, mediaType));
+    }
+
+    void put(String token, MediaType mediaType, byte[] bytes) {
+        cache.put(createKey(token, mediaType), bytes, timeToLive);
+    }
+
+    public void invalidate(String token) {
+        for (MediaType mediaType : SessionMediaTypes.supported) {
+            cache.remove(createKey(token, mediaType));
+        }
+    }
+
+    private String createKey(String token, MediaType mediaType) {
+        return mediaType.getName() + ' ' + token;
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * <p>
+ * Makes sure that only one call for a given key is outstanding against the
+ * <a href="forgerock.com/openam.html">OpenAM</a> session provisioner at any time.
+ * </p>
+ * <p>
+ * A browser application typically fires a burst of parallel API calls carrying
+ * the same session token. The first caller for a key makes the call, every
+ * caller arriving while it is in flight waits for it and shares its result or
+ * the <code>ResourceException</code> it failed with. Nothing is remembered once
+ * the call completes; that is the job of the caches sitting in front of the proxy.
+ * </p>
+ * <p>
+ * Keys must be unique per kind of call as well as per token since callers with
+ * the same key share a result of the same type.
+ * </p>
+ * <p>
+ * A single instance should be shared by every proxy so that calls made on behalf
+ * of the <code>SessionVerifier</code> and the <code>SessionAuthorizer</code> are
+ * coalesced together.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class RequestCoalescer {
+
+    private final ConcurrentHashMap<String, FutureTask<?>> inFlight = 
+        new ConcurrentHashMap<String, FutureTask<?>>();
+
+    /**
+     * Runs the call unless one for the same key is already in flight, in which
+     * case waits for that one instead.
+     * 
+     * @param key
+     * @param call
+     * @return result shared by every caller for the key
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, Callable<V> call) {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> outstanding = (FutureTask<V>) inFlight.putIfAbsent(key, task);
+
+        if (outstanding == null) {
+            outstanding = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+
+        return getResult(outstanding);
+    }
+
+    private <V> V getResult(FutureTask<V> task) {
+        V result = null;
+
+        try {
+            result = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, cause);
+        }
+
+        return result;
+    }
+
+}
@@ -17,16 +17,27 @@
 
 package org.apius.server.identity.session.openam.client;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apius.server.identity.session.SessionMediaTypes;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
 import org.restlet.ext.atom.Content;
 import org.restlet.ext.atom.Entry;
 import org.restlet.ext.atom.Feed;
 import org.restlet.ext.atom.Text;
+import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.ResourceException;
 
 /**
  * 
@@ -35,28 +46,46 @@ import org.restlet.representation.StringRepresentation;
  * OpenAM</a> session provisioner, authenticator and authorizer application.
  * </p>
  * <p>
- * Methods are not publicized outside of the package since this class is designed solely to
- * help the <code>SessionProvisionerProxy</code> class to consume and transform responses
- * from the <a href="forgerock.com/openam.html">OpenAM</a> session provisioner.
+ * Parsing methods are not publicized outside of the package since they are designed solely
+ * to help the <code>SessionProvisionerProxy</code> class to consume and transform responses
+ * from the <a href="forgerock.com/openam.html">OpenAM</a> session provisioner. Only <code>
+ * writeSessionAttributes</code> and <code>createRepresentation</code> are public, so that
+ * other session provisioners serialize attributes in exactly the same forms.
+ * </p>
+ * <p>
+ * Responses are parsed in a single pass by walking the string with <code>indexOf</code>
+ * and <code>regionMatches</code>. No regular expressions are compiled and no arrays of
+ * lines are allocated. The only objects created are the values that end up in the
+ * <code>SessionAttributes</code> model.
  * </p>
  * 
  * @author Paul Morris
  * 
  */
-final class ResponseHelper {
+public final class ResponseHelper {
+    
+    private static final String BOOLEAN = "boolean=";
+    private static final String TOKEN_ID = "userdetails.token.id";
+    private static final String ROLE = "userdetails.role";
+    private static final String ATTRIBUTE_NAME = "userdetails.attribute.name";
+    private static final String ATTRIBUTE_VALUE = "userdetails.attribute.value";
+    private static final String ROLE_ID = "id=";
+    private static final String ROLES = "roles";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 		
     /**
      * Here's what the string that OpenAM sends back looks like:
      * 
      * "boolean=true" || "boolean=false"
-     *
+     * 
      * @param responseString
      * @return boolean
      */
     boolean extractBooleanFromResponseString(String responseString) {
-        responseString = responseString.replaceFirst("boolean=", "").replaceFirst("\n", "");
+        int start = responseString.startsWith(BOOLEAN) ? BOOLEAN.length() : 0;
+        int end = trimEnd(responseString, start, responseString.length());
     	
-        return Boolean.parseBoolean(responseString);
+        return (end - start == 4) && responseString.regionMatches(true, start, "true", 0, 4);
     }
     
     /** 
@@ -87,115 +116,272 @@ final class ResponseHelper {
      * userdetails.attribute.value=top
      * </code>
      * </p>
+     * <p>
+     * Lines are classified by their key (everything before the first '='), so an 
+     * attribute value that happens to contain "role" or "name=" is still a value.
+     * Attributes without any value are left out.
+     * </p>
      * 
      * @param responseString
+     * @return the session attributes
+     */
+    SessionAttributes parseSessionAttributes(String responseString) {
+        String token = "";
+        List<String> roles = new ArrayList<String>();
+        Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        List<String> currentValues = null;
+        int length = responseString.length();
+        int lineStart = 0;
+        
+        while (lineStart < length) {
+            int lineEnd = responseString.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int separator = responseString.indexOf('=', lineStart);
+            
+            if (separator > 0 && separator < lineEnd) {
+                int keyLength = separator - lineStart;
+                int valueStart = separator + 1;
+                int valueEnd = (responseString.charAt(lineEnd - 1) == '\r') ? lineEnd - 1 : lineEnd;
+                
+                if (isKey(responseString, lineStart, keyLength, ATTRIBUTE_VALUE)) {
+                    if (currentValues != null) {
+                        currentValues.add(responseString.substring(valueStart, valueEnd));
+                    }
+                } else if (isKey(responseString, lineStart, keyLength, ATTRIBUTE_NAME)) {
+                    String name = responseString.substring(valueStart, valueEnd);
+                    currentValues = attributes.get(name);
+                    
+                    if (currentValues == null) {
+                        currentValues = new ArrayList<String>(1);
+                        attributes.put(name, currentValues);
+                    }
+                } else if (isKey(responseString, lineStart, keyLength, ROLE)) {
+                    if (responseString.startsWith(ROLE_ID, valueStart)) {
+                        valueStart += ROLE_ID.length();
+                    }
+                    roles.add(responseString.substring(valueStart, valueEnd));
+                } else if (isKey(responseString, lineStart, keyLength, TOKEN_ID)) {
+                    token = responseString.substring(valueStart, valueEnd);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        removeAttributesWithoutValues(attributes);
+        
+        return new SessionAttributes(token, roles, attributes);
+    }
+    
+    /**
+     * Writes the attributes and roles as an Atom Feed, one entry per attribute and 
+     * an entry named "roles" for the roles. Multiple values are separated by ';'.
+     * 
+     * @param sessionAttributes
      * @return attributes and roles as an Atom Feed
      */
-    Feed writeSessionAttributesFeed(String responseString) {
+    Feed writeSessionAttributesFeed(SessionAttributes sessionAttributes) {
         Feed feed = new Feed();
-        feed.setId(extractTokenFromResponseString(responseString));
+        feed.setId(sessionAttributes.getToken());
         feed.setTitle(new Text("OpenAM Session Attributes"));
     	
-        HashMap<String, List<String>> attributes = populateAttributesMap(responseString);
-    	
-    	for (Map.Entry<String,List<String>> attribute : attributes.entrySet()) {
-    	    Entry entry = new Entry();
-    	    Content content = new Content();
-    		
-    	    entry.setTitle(new Text(attribute.getKey()));			
-    	    content.setInlineContent(buildMultipleValuesContent(attribute.getValue()));
-    	    entry.setContent(content);
-    	    feed.getEntries().add(entry);
+    	for (Map.Entry<String, List<String>> attribute : sessionAttributes.getAttributes().entrySet()) {
+    	    feed.getEntries().add(buildEntry(attribute.getKey(), attribute.getValue()));
     	}
+    	feed.getEntries().add(buildEntry(ROLES, sessionAttributes.getRoles()));
         
         return feed;
     }
     
-    
-    private String extractTokenFromResponseString(String responseString) {
-        String[] lines = responseString.split("\n");
-        String token = "";
+    /**
+     * Serializes the attributes and roles in one of the <code>SessionMediaTypes</code>,
+     * Atom being the default.
+     * 
+     * @param sessionAttributes
+     * @param mediaType
+     * @return serialized bytes
+     */
+    public byte[] writeSessionAttributes(SessionAttributes sessionAttributes, MediaType mediaType) {
+        byte[] bytes = null;
         
-        for (String line : lines) {
-            if (line.contains("token.id")) {
-                token = extractTokenFromLine(line);
-                break;
+        try {
+            if (SessionMediaTypes.JSON.equals(mediaType)) {
+                bytes = writeSessionAttributesJson(sessionAttributes).getBytes(UTF_8.name());
+            } else if (SessionMediaTypes.BINARY.equals(mediaType)) {
+                bytes = writeSessionAttributesBinary(sessionAttributes);
+            } else {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(2048);
+                writeSessionAttributesFeed(sessionAttributes).write(outputStream);
+                bytes = outputStream.toByteArray();
             }
+        } catch (IOException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
         }
         
-        return token;
+        return bytes;
     }
     
-    private HashMap<String, List<String>> populateAttributesMap(String responseString) {
-        HashMap<String, List<String>> attributes = new HashMap<String, List<String>>();
-        List<String> roles = new ArrayList<String>();
-        List<String> attributeValues = new ArrayList<String>();
-    	
-        String[] lines = responseString.split("\n");
-        String currentKey = "";
-    	
-        for (String line : lines) {
-            if (line.contains("role")) {
-                roles.add(extractRoleValueFromLine(line));
-            } else if (line.contains("attribute.name")) {
-                if (!attributeValues.isEmpty()) {
-                    attributes.put(currentKey, attributeValues);
-                    attributeValues = new ArrayList<String>();
-                }
-                currentKey = extractAttributeNameFromLine(line);
-            } else if (line.contains("attribute.value")) {
-                attributeValues.add(extractAttributeValueFromLine(line));
+    /**
+     * @param bytes written by <code>writeSessionAttributes</code>
+     * @param mediaType
+     * @return a representation that can be written any number of times
+     */
+    public Representation createRepresentation(byte[] bytes, MediaType mediaType) {
+        return new ByteArrayRepresentation(bytes, 
+                                           mediaType, 
+                                           SessionMediaTypes.BINARY.equals(mediaType) ? null : CharacterSet.UTF_8);
+    }
+    
+    /**
+     * Writes the attributes and roles as a compact JSON object, see <code>SessionMediaTypes</code>.
+     * 
+     * @param sessionAttributes
+     * @return JSON text
+     */
+    String writeSessionAttributesJson(SessionAttributes sessionAttributes) {
+        StringBuilder sb = new StringBuilder(256);
+        
+        sb.append("{\"token\":");
+        appendJsonString(sb, sessionAttributes.getToken());
+        sb.append(",\"roles\":");
+        appendJsonArray(sb, sessionAttributes.getRoles());
+        sb.append(",\"attributes\":{");
+        
+        boolean first = true;
+        for (Map.Entry<String, List<String>> attribute : sessionAttributes.getAttributes().entrySet()) {
+            if (!first) {
+                sb.append(',');
             }
+            appendJsonString(sb, attribute.getKey());
+            sb.append(':');
+            appendJsonArray(sb, attribute.getValue());
+            first = false;
         }
-        attributes.put(currentKey, attributeValues);
-        attributes.put("roles", roles);
-    	
-        return attributes;
+        sb.append("}}");
+        
+        return sb.toString();
     }
     
-    private String extractTokenFromLine(String line) {
-        String[] s = line.split("=");
-    	
-        return s[1];
+    /**
+     * Writes the attributes and roles in the length-prefixed binary form, see 
+     * <code>SessionMediaTypes</code>.
+     * 
+     * @param sessionAttributes
+     * @return serialized bytes
+     * @throws IOException
+     */
+    byte[] writeSessionAttributesBinary(SessionAttributes sessionAttributes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeByte(SessionMediaTypes.BINARY_VERSION);
+        writeBinaryString(out, sessionAttributes.getToken());
+        writeBinaryStrings(out, sessionAttributes.getRoles());
+        out.writeInt(sessionAttributes.getAttributes().size());
+        
+        for (Map.Entry<String, List<String>> attribute : sessionAttributes.getAttributes().entrySet()) {
+            writeBinaryString(out, attribute.getKey());
+            writeBinaryStrings(out, attribute.getValue());
+        }
+        out.flush();
+        
+        return bytes.toByteArray();
     }
     
-    private String extractAttributeNameFromLine(String line) {
-        String[] s = line.split("name=");
+    private void appendJsonArray(StringBuilder sb, List<String> values) {
+        sb.append('[');
+        
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendJsonString(sb, values.get(i));
+        }
+        sb.append(']');
+    }
     
-        return s[1];
+    /**
+     * Appends the value as a quoted JSON string, escaping quotes, backslashes and control 
+     * characters. Shared by every resource that writes JSON.
+     * 
+     * @param sb
+     * @param value
+     * @return void
+     */
+    public static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
     }
     
-    private String extractAttributeValueFromLine(String line) {
-        String[] s = line.split("value=");
-     
-            return s[1];
+    private void writeBinaryStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        
+        for (String value : values) {
+            writeBinaryString(out, value);
         }
+    }
+    
+    private void writeBinaryString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
         
-        private String extractRoleValueFromLine(String line) {
-            String[] s = line.split("id=");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private Entry buildEntry(String title, List<String> values) {
+        Entry entry = new Entry();
+        Content content = new Content();
+        
+        entry.setTitle(new Text(title));
+        content.setInlineContent(buildMultipleValuesContent(values));
+        entry.setContent(content);
         
-        return s[1];
+        return entry;
     }
     
     private StringRepresentation buildMultipleValuesContent(List<String> values) {
         StringBuilder sb = new StringBuilder();
     	
         for (String value : values) {
-            sb.append(value + ";");
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(value);
         }
     	
-    	return new StringRepresentation(sb.toString().substring(0, sb.length()-1));
+    	return new StringRepresentation(sb.toString());
     }
     
-    /**
-     * @param responseString
-     * @return username
-     */
-    String extractUsernameFromSessionAttributes(String responseString) {
-        String[] splitBeforeUsername = responseString.split("uid\nuserdetails.attribute.value=");
-        String[] splitAfterUsername = splitBeforeUsername[1].split("\n");
+    private boolean isKey(String responseString, int keyStart, int keyLength, String key) {
+        return keyLength == key.length() && responseString.regionMatches(keyStart, key, 0, keyLength);
+    }
+    
+    private int trimEnd(String responseString, int start, int end) {
+        while (end > start && Character.isWhitespace(responseString.charAt(end - 1))) {
+            end--;
+        }
         
-        return splitAfterUsername[0];
+        return end;
+    }
+    
+    private void removeAttributesWithoutValues(Map<String, List<String>> attributes) {
+        for (Iterator<List<String>> i = attributes.values().iterator(); i.hasNext();) {
+            if (i.next().isEmpty()) {
+                i.remove();
+            }
+        }
     }
 	
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Immutable model of the attributes <a href="forgerock.com/openam.html">OpenAM</a> holds 
+ * for a session: the token, the roles (groups) of the user and the user's attributes,
+ * each of which may have several values.
+ * </p>
+ * <p>
+ * Built once per attributes response by <code>ResponseHelper.parseSessionAttributes
+ * </code> and shared by everything that needs to look at the response. Public so that
+ * provisioners other than OpenAM can build one and have <code>ResponseHelper</code> 
+ * serialize it exactly as it serializes OpenAM's.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SessionAttributes {
+
+    private final String token;
+    private final List<String> roles;
+    private final Map<String, List<String>> attributes;
+
+    /**
+     * Takes ownership of the roles, the map and the value lists, none of which may be
+     * modified by the caller afterwards.
+     * 
+     * @param token
+     * @param roles
+     * @param attributes
+     */
+    public SessionAttributes(String token, List<String> roles, Map<String, List<String>> attributes) {
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            attribute.setValue(Collections.unmodifiableList(attribute.getValue()));
+        }
+        this.token = token;
+        this.roles = Collections.unmodifiableList(roles);
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return the token the attributes belong to, empty if OpenAM did not send it
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the roles in the order OpenAM sent them
+     */
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return attribute names mapped to their values, in the order OpenAM sent them
+     */
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @param name
+     * @return first value of the attribute or <code>null</code> if the user has no such attribute
+     */
+    public String getFirstValue(String name) {
+        List<String> values = attributes.get(name);
+
+        return (values != null && !values.isEmpty()) ? values.get(0) : null;
+    }
+
+    /**
+     * @return the identifier (or username) of the user
+     */
+    public String getUsername() {
+        return getFirstValue("uid");
+    }
+
+}
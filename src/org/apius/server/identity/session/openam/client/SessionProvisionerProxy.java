@@ -18,131 +18,236 @@
 package org.apius.server.identity.session.openam.client;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
 
-import org.apius.server.identity.session.Session;
-import org.restlet.data.ClientInfo;
+import org.apius.server.identity.session.CircuitBreaker;
+import org.apius.server.identity.session.SessionMediaTypes;
+import org.apius.server.identity.session.SessionProvisioner;
+import org.apius.server.identity.session.cache.UserRestorer;
+import org.apius.server.identity.session.credential.ClaimsResolver;
+import org.apius.server.identity.session.metrics.SessionMetrics;
+import org.restlet.Client;
 import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Reference;
 import org.restlet.data.Status;
 import org.restlet.representation.Representation;
-import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.ClientResource;
 import org.restlet.resource.ResourceException;
 import org.restlet.security.User;
 
 /**
  * <p>
- * This <code>ClientResource</code> implements the <code>Session</code> interface and 
- * acts as a proxy to the <a href="forgerock.com/openam.html">OpenAM</a> session 
- * provisioner, authenticator and authorizer application.
+ * Proxy to the <a href="forgerock.com/openam.html">OpenAM</a> session provisioner, 
+ * authenticator and authorizer application.
+ * </p>
+ * <p>
+ * The proxy is stateless. The token is passed into every call and every call builds 
+ * its own <code>ClientResource</code> from the base URI, which is never modified. A 
+ * single instance can therefore be shared by all filters and resources across all 
+ * worker threads.
+ * </p>
+ * <p>
+ * Attribute and authorization lookups go through a <code>RequestCoalescer</code> so
+ * that concurrent lookups for the same token (and resource) result in a single call
+ * to OpenAM.
+ * </p>
+ * <p>
+ * With a <code>CircuitBreaker</code>, calls fail fast with a 503 (Service Unavailable) 
+ * while OpenAM keeps failing, instead of each one waiting for a timeout.
+ * </p>
+ * <p>
+ * As a <code>UserRestorer</code> it lets a <code>TokenCacheSnapshot</code> rebuild the 
+ * <code>LazyUser</code>s it hands out, without looking up identifiers that were never 
+ * asked for.
+ * </p>
+ * <p>
+ * With <code>SessionMetrics</code>, the latency and status of every call to OpenAM is 
+ * recorded under the name of the OpenAM operation.
  * </p>
  * 
  * @author Paul Morris
  * 
  */
-public final class SessionProvisionerProxy extends ClientResource implements Session {
+public final class SessionProvisionerProxy implements SessionProvisioner, IdentifierResolver, UserRestorer, ClaimsResolver {
 	
-    private ResponseHelper responseHelper;
-    private String token;
+    private final String baseUri;
+    private final ResponseHelper responseHelper;
+    private final RequestCoalescer requestCoalescer;
+    private final RepresentationCache representationCache;
+    private final Client client;
+    private final CircuitBreaker circuitBreaker;
+    private final SessionMetrics sessionMetrics;
     
     /**
      * Constructor
      * 
      * @param baseUri
      * @param responseHelper
+     * @param requestCoalescer shared by all proxies talking to the same OpenAM, a private one 
+     *        when <code>null</code>
+     * @param representationCache serialized session attributes per session and media type, 
+     *        nothing is kept when <code>null</code>
+     * @param client connector the requests are sent with, typically a <code>PooledClient</code>.
+     *        When <code>null</code>, requests go through the current application's client 
+     *        connectors, or a new connector per request outside of an application.
+     * @param circuitBreaker makes calls fail fast while OpenAM is failing, may be <code>null</code>
+     * @param sessionMetrics records the latency of every call to OpenAM, may be <code>null</code>
      */
-    public SessionProvisionerProxy(String baseUri, ResponseHelper responseHelper) {
-        super(baseUri);
+    public SessionProvisionerProxy(String baseUri, 
+                                   ResponseHelper responseHelper, 
+                                   RequestCoalescer requestCoalescer,
+                                   RepresentationCache representationCache,
+                                   Client client,
+                                   CircuitBreaker circuitBreaker,
+                                   SessionMetrics sessionMetrics) {
+        this.baseUri = baseUri;
         this.responseHelper = responseHelper;
+        this.requestCoalescer = (requestCoalescer != null) ? requestCoalescer : new RequestCoalescer();
+        this.representationCache = (representationCache != null) ? representationCache : new RepresentationCache(1, 0);
+        this.client = client;
+        this.circuitBreaker = circuitBreaker;
+        this.sessionMetrics = sessionMetrics;
     }
     
     /**
      * Request OpenAM to create session and return token representing that session.
      * 
-     * @param username
-     * @param password
-     * @return StringRepresentation containing the token
+     * @param form with username and password parameters
+     * @return token
      */
-    public Representation createSession(Form form) {
-        Representation representation = null;
-    	
-        setReference(getReference().
-                addSegment("identity").
-                addSegment("authenticate"));
+    public String createSession(Form form) {
+        String token;
+        ClientResource resource = createClientResource(createReference("authenticate"));
     
         // DO NOT call this service with a GET and query parameters. Elevating this to a POST
         // and sending the parameters in the entity body will prevent OpenAM from logging 
         // the sensitive username and password parameters.
         //
         // http://blogs.sun.com/docteger/entry/opensso_entitlements_service_rest_interfaces
-        try {
-            token = this.post(form).getText().replace("token.id=", "").trim(); //Yes, there is a white space.
-            representation = new StringRepresentation(token);
-        } catch (ResourceException e) {
-    	    handleResourceException(e);
-    	} catch (IOException e) {
-    	    handleException(e.getMessage());
-    	}
+        token = getResponseString(resource, form.getWebRepresentation()).replace("token.id=", "").trim(); //Yes, there is a white space.
     	
-    	return representation;
+    	return token;
+    }
+    
+    /**
+     * Requests OpenAM to respond with all known attributes associated with the session
+     * token. Uses the <code>ResponseHelper</code> object to parse the response string
+     * and convert it to XML.
+     * 
+     * @param token
+     * @return Representation of the session attributes 
+     */
+    public Representation getAttributes(String token) {  
+        return getAttributes(token, SessionMediaTypes.ATOM);
     }
     
     /**
      * Requests OpenAM to respond with all known attributes associated with the session
-     * token. Uses the <code>ResponseHelper</code> object to convert the response string
-     * to XML.
+     * token and serializes them in the given media type. The serialized bytes are kept 
+     * in the <code>RepresentationCache</code> and reused until they expire.
      * 
      * @param token
+     * @param mediaType one of the <code>SessionMediaTypes</code>
      * @return Representation of the session attributes 
      */
-    public Representation getAttributes() {  
-        Representation representation = null;
+    public Representation getAttributes(String token, MediaType mediaType) {
+        byte[] bytes = representationCache.get(token, mediaType);
         
-        try {
-            representation = responseHelper.writeSessionAttributesFeed(getSessionAttributesResponseString());
-        } catch (ResourceException e) {
-            handleResourceException(e);
+        if (bytes == null) {
+            bytes = responseHelper.writeSessionAttributes(getSessionAttributes(token), mediaType);
+            representationCache.put(token, mediaType, bytes);
         }
+        
+        return responseHelper.createRepresentation(bytes, mediaType);
+    }
+    
+    /**
+     * Requests OpenAM to respond with all known attributes associated with the session
+     * token and parses them. Concurrent requests for the same token share one call.
+     * 
+     * @param token
+     * @return the session attributes
+     */
+    public SessionAttributes getSessionAttributes(final String token) {
+        return requestCoalescer.execute("attributes\n" + token, new Callable<SessionAttributes>() {
+            public SessionAttributes call() {
+                return responseHelper.parseSessionAttributes(requestSessionAttributesResponseString(token));
+            }
+        });
+    }
+    
+    private String requestSessionAttributesResponseString(String token) {
+        ClientResource resource = 
+            createClientResource(createReference("attributes").addQueryParameter("subjectid", token));
+        String responseString = getResponseString(resource, null);
     	
-        return representation;
+        return responseString;
     }
     
-    private String getSessionAttributesResponseString() {
-        String responseString = "";
+    /**
+     * Authenticates the OpenAM session represented by the token by only asking OpenAM 
+     * whether the token is valid, which leaves the session's idle timer alone. The 
+     * identifier of the returned <code>User</code> is looked up the first time it is read.
+     * 
+     * @param token
+     * @return the authenticated <code>User</code>
+     */
+    public User authenticateToken(String token) {
+        if (!isTokenValid(token, false)) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
         
-        setReference(getReference().
-                addSegment("identity").
-                addSegment("attributes").
-                addQueryParameter("subjectid", token));      
-        try {
-            responseString = this.get().getText();
-        } catch (ResourceException e) {
-            handleResourceException(e);
-        } catch (IOException e) {
-            handleException(e.getMessage());
+        return new LazyUser(this, token);
+    }
+    
+    /**
+     * Authenticates the OpenAM session represented by the token and refreshes the time 
+     * left before an inactive timeout, with the <code>refresh</code> flag of <code>
+     * isTokenValid</code>. The identifier of the returned <code>User</code> is looked up 
+     * the first time it is read.
+     * 
+     * @param token
+     * @return the authenticated <code>User</code>
+     */
+    public User refreshToken(String token) {
+        if (!isTokenValid(token, true)) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
         }
-    	
-        return responseString;
+        
+        return new LazyUser(this, token);
     }
     
     /**
-     * Can be used to authenticate the OpenAM session represented by the token
-     * as well as to refresh the time left before an inactive timeout. Updates
-     * the <code>ClientInfo</code> and its <code>User</code> on successful 
-     * authentication.
+     * Requests OpenAM to check whether the token represents a valid session. This is 
+     * much cheaper than retrieving the session attributes.
      * 
-     * @return void
+     * @param token
+     * @param refresh whether OpenAM should also restart the session's idle timer
+     * @return boolean indicating whether the session represented by the token is valid
      */
-    public void authenticateToken() {
-        ClientInfo clientInfo = getRequest().getClientInfo();
-    	 
-        try {
-            String identifier = this.getIdentifier();
-            clientInfo.setUser(new User(identifier));
-            clientInfo.setAuthenticated(true);
-            getRequest().getChallengeResponse().setIdentifier(identifier);
-        } catch (ResourceException e) {
-            handleResourceException(e);
-        }	
+    private boolean isTokenValid(final String token, final boolean refresh) {
+        String responseString = 
+            requestCoalescer.execute((refresh ? "refresh\n" : "isTokenValid\n") + token, new Callable<String>() {
+                public String call() {
+                    return requestTokenValidResponseString(token, refresh);
+                }
+            });
+        
+        return responseHelper.extractBooleanFromResponseString(responseString);
+    }
+    
+    private String requestTokenValidResponseString(String token, boolean refresh) {
+        Reference reference = createReference("isTokenValid").addQueryParameter("tokenid", token);
+        
+        if (refresh) {
+            reference.addQueryParameter("refresh", "true");
+        }
+        
+        ClientResource resource = createClientResource(reference);
+        String responseString = getResponseString(resource, null);
+        
+        return responseString;
     }
     
     /**
@@ -151,19 +256,11 @@ public final class SessionProvisionerProxy extends ClientResource implements Ses
      * @param token
      * @return void
      */
-    public void logout() {
-        setReference(getReference().
-                addSegment("identity").
-                addSegment("logout").
-                addQueryParameter("subjectid", token));
+    public void logout(String token) {
+        ClientResource resource = 
+            createClientResource(createReference("logout").addQueryParameter("subjectid", token));
         
-        try {
-            this.get().getText();
-        } catch (ResourceException e) {
-            handleResourceException(e);
-        } catch (IOException e) {
-            handleException(e.getMessage());
-        }
+        getResponseString(resource, null);
     }
     
     /**
@@ -171,78 +268,153 @@ public final class SessionProvisionerProxy extends ClientResource implements Ses
      * by the session token to perform the HTTP operation against the resource addressed
      * by the URI.
      * 
-     * @param uri
-     * @param methodName
      * @param token
+     * @param uri
+     * @param method
      * @return boolean indicating whether the session represented by the token is
      * 		   authorized to perform the given method on the resource at the uri 
      */
-    public boolean isAuthorized(String token, String uri, String method) {
-        boolean isAuthorized  = false;
+    public boolean isAuthorized(final String token, final String uri, final String method) {
+        String responseString = 
+            requestCoalescer.execute("authorize\n" + token + "\n" + method + "\n" + uri, new Callable<String>() {
+                public String call() {
+                    return requestAuthorizationResponseString(token, uri, method);
+                }
+            });
     	
-        setReference(getReference().
-                addSegment("identity").
-                addSegment("authorize").
-                addQueryParameter("uri", uri).
-                addQueryParameter("action", method).
-                addQueryParameter("subjectid", token));
-        try {
-            isAuthorized = responseHelper.extractBooleanFromResponseString(this.get().getText());
-        } catch (ResourceException e) {
-            handleResourceException(e);
-        } catch (IOException e) {
-            handleException(e.getMessage());
-        }
+        return responseHelper.extractBooleanFromResponseString(responseString);
+    }
+    
+    private String requestAuthorizationResponseString(String token, String uri, String method) {
+        ClientResource resource = 
+            createClientResource(createReference("authorize").
+                    addQueryParameter("uri", uri).
+                    addQueryParameter("action", method).
+                    addQueryParameter("subjectid", token));
+        String responseString = getResponseString(resource, null);
     	
-        return isAuthorized;
+        return responseString;
     }
     
     /**
-     * Extracts the identifier (or username) from the response of the 
-     * <code>getSessionAttributesResponseString</code> method.
+     * Extracts the identifier (or username) from the session attributes
+     * OpenAM holds for the token.
      * 
      * @param token
      * @return identifier string (i.e. username)
      */
-    public String getIdentifier() {
-        String identifier = "";
-    	
-        try {
-            identifier = responseHelper.extractUsernameFromSessionAttributes(getSessionAttributesResponseString());
-        } catch (ResourceException e) {
-            handleResourceException(e);
-        }
-    	
-        return identifier;
+    public String getIdentifier(String token) {
+        return getSessionAttributes(token).getUsername();
+    }
+    
+    /**
+     * @param user
+     * @return the identifier of the user, <code>null</code> if it has not been looked up yet
+     */
+    public String getKnownIdentifier(User user) {
+        return (user instanceof LazyUser) ? ((LazyUser) user).getResolvedIdentifier() : user.getIdentifier();
     }
     
     /**
-     * The <code>ServerResource</code> extracts this value from the 
-     * Authorization header and sets it here so that it will be available 
-     * for the <code>ClientResource</code> calls to OpenAM.
-     * 
      * @param token
+     * @param identifier known when the user was written, or <code>null</code> to look it up lazily
+     * @return the same kind of <code>User</code> <code>authenticateToken</code> returns
+     */
+    public User restoreUser(String token, String identifier) {
+        LazyUser user = new LazyUser(this, token);
+        
+        if (identifier != null) {
+            user.setIdentifier(identifier);
+        }
+        
+        return user;
+    }
+    
+    private Reference createReference(String operation) {
+        return new Reference(baseUri).addSegment("identity").addSegment(operation);
+    }
+    
+    private ClientResource createClientResource(Reference reference) {
+        ClientResource resource = new ClientResource(reference);
+        
+        if (client != null) {
+            resource.setNext(client);
+        }
+        if (circuitBreaker != null) {
+            // Retrying a failed call would hold the caller for several seconds, which is
+            // what the breaker is there to avoid.
+            resource.setRetryOnError(false);
+        }
+        
+        return resource;
+    }
+    
+    /**
+     * Sends the request, as a POST of the entity if there is one and as a GET otherwise,
+     * unless the circuit breaker is open, in which case it fails straight away with a 
+     * 503 (Service Unavailable).
      */
-    public void setToken(String token) {
-        this.token = token;
+    private String getResponseString(ClientResource resource, Representation entity) {
+        String responseString = "";
+        
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "OpenAM circuit breaker is open");
+        }
+        
+        long start = System.nanoTime();
+        
+        try {
+            responseString = ((entity != null) ? resource.post(entity) : resource.get()).getText();
+            
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess();
+            }
+            recordCall(resource, start, resource.getStatus());
+        } catch (ResourceException e) {
+            handleResourceException(resource, start, e);
+        } catch (IOException e) {
+            handleException(resource, start, e.getMessage());
+        }
+        
+        return responseString;
     }
     
-    private void handleResourceException(ResourceException e) {
+    private void recordOutcome(Status status) {
+        if (circuitBreaker != null) {
+            if (CircuitBreaker.isFailure(status)) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+    }
+    
+    private void recordCall(ClientResource resource, long start, Status status) {
+        if (sessionMetrics != null) {
+            sessionMetrics.recordProvisionerCall(resource.getReference().getLastSegment(), start, status);
+        }
+    }
+    
+    private void handleResourceException(ClientResource resource, long start, ResourceException e) {
         // If the user passes in an invalid session token to the logout service, 
         // OpenAM returns a 500. The APIUS framework prefers to send back a 401 
         // since the reality is that the user is trying to access a resource with 
         // an unauthorized credential. So we check the entity for "Invalid session 
         // ID" and if we find it we change the status code to 401 before throwing 
         // the exception back to our Session resource.
-        if (getResponse().getEntityAsText().contains("Invalid session ID")) {
+        String entity = resource.getResponse().isEntityAvailable() ? resource.getResponse().getEntityAsText() : null;
+        
+        if (entity != null && entity.contains("Invalid session ID")) {
             e = new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
         }
+        recordOutcome(e.getStatus());
+        recordCall(resource, start, e.getStatus());
         
         throw e;
     }
     
-    private void handleException(String message) {
-        handleResourceException(new ResourceException(Status.SERVER_ERROR_INTERNAL, message));
+    private void handleException(ClientResource resource, long start, String message) {
+        handleResourceException(resource, start, new ResourceException(Status.SERVER_ERROR_INTERNAL, message));
     }
 
-}
\ No newline at end of file
+}
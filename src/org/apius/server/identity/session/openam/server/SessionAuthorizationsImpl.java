@@ -0,0 +1,180 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apius.server.identity.session.openam.server;
+
+import java.util.List;
+
+import org.apius.server.identity.session.AuthorizationDecision;
+import org.apius.server.identity.session.BatchAuthorizer;
+import org.apius.server.identity.session.SessionAuthorizations;
+import org.apius.server.identity.session.TokenFormat;
+import org.apius.server.identity.session.filter.SessionAuthenticator;
+import org.apius.server.identity.session.openam.client.ResponseHelper;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+/**
+ * <p>
+ * Implementation of the <code>SessionAuthorizations</code> interface for the OpenAM
+ * session provisioner.
+ * </p>
+ * <p>
+ * <b><em>Public API Contract</em></b>
+ * </p>
+ * <p>
+ * <b>POST</b>
+ * </p>
+ * <p>
+ * The token value must be included in the Authorization header of the request and the 
+ * pairs to decide are sent as a form, one parameter per pair with the method as the name
+ * and the URI as the value:
+ * </p>
+ * <p>
+ * <code>Authorization: APIUS token=AQIC5wM2LY4SfcwGgIvSF9oEp5y7rZl[...]</code>
+ * </p>
+ * <p>
+ * <code>GET=http%3A%2F%2Fapi.apius.org%2Forders&DELETE=http%3A%2F%2Fapi.apius.org%2Forders%2F1</code>
+ * </p>
+ * <p>
+ * The response is a JSON object holding one decision per pair, in the order they were 
+ * sent. A pair OpenAM failed to decide has <code>authorized</code> set to <code>false
+ * </code> and the error in <code>status</code>; the other pairs are still decided:
+ * </p>
+ * <p>
+ * <code>{"decisions":[{"method":"GET","uri":"http://api.apius.org/orders","authorized":true},
+ * {"method":"DELETE","uri":"http://api.apius.org/orders/1","authorized":false,"status":504}]}</code>
+ * </p>
+ * <p>
+ * If OpenAM does not recognize the token the whole request is challenged with 401 
+ * (Unauthorized), as for the other session operations. A token OpenAM could never have 
+ * issued is challenged the same way without calling OpenAM.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public final class SessionAuthorizationsImpl extends ServerResource implements SessionAuthorizations {
+
+    private BatchAuthorizer batchAuthorizer;
+    private SessionAuthenticator sessionAuthenticator;
+    private TokenFormat tokenFormat;
+
+    /**
+     * Constructor
+     * 
+     * @param batchAuthorizer
+     * @param sessionAuthenticator
+     * @param tokenFormat may be <code>null</code>
+     */
+    public SessionAuthorizationsImpl(BatchAuthorizer batchAuthorizer, 
+                                     SessionAuthenticator sessionAuthenticator,
+                                     TokenFormat tokenFormat) {
+        this.batchAuthorizer = batchAuthorizer;
+        this.sessionAuthenticator = sessionAuthenticator;
+        this.tokenFormat = tokenFormat;
+    }
+
+    /**
+     * POST operation deciding every method=uri pair of the form for the session 
+     * represented by the token.
+     * 
+     * @param Form with one method=uri parameter per pair
+     * @return JSON decision for every pair
+     */
+    public Representation authorize(Form form) {
+        Representation representation = null;
+        
+        if (getChallengeResponse() != null) {
+            String token = getChallengeResponse().getRawValue();
+            
+            try {
+                if (tokenFormat != null && !tokenFormat.isWellFormed(token)) {
+                    sessionAuthenticator.challenge(getResponse(), false);
+                } else {
+                    representation = decide(token, form);
+                }
+            } catch (ResourceException e) {
+                setStatus(e.getStatus(), e.getMessage());
+            }
+        } else {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+        
+        return representation;
+    }
+    
+    private Representation decide(String token, Form form) {
+        Representation representation = null;
+        List<AuthorizationDecision> decisions = batchAuthorizer.authorize(token, form);
+        
+        if (isTokenRejected(decisions)) {
+            sessionAuthenticator.challenge(getResponse(), false);
+        } else {
+            representation = new StringRepresentation(writeDecisions(decisions), MediaType.APPLICATION_JSON);
+        }
+        
+        return representation;
+    }
+    
+    private boolean isTokenRejected(List<AuthorizationDecision> decisions) {
+        boolean isTokenRejected = false;
+        
+        for (AuthorizationDecision decision : decisions) {
+            if (Status.CLIENT_ERROR_UNAUTHORIZED.equals(decision.getStatus())) {
+                isTokenRejected = true;
+                break;
+            }
+        }
+        
+        return isTokenRejected;
+    }
+    
+    private String writeDecisions(List<AuthorizationDecision> decisions) {
+        StringBuilder sb = new StringBuilder(64 + decisions.size() * 96);
+        
+        sb.append("{\"decisions\":[");
+        
+        for (int i = 0; i < decisions.size(); i++) {
+            AuthorizationDecision decision = decisions.get(i);
+            
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"method\":");
+            ResponseHelper.appendJsonString(sb, decision.getMethod());
+            sb.append(",\"uri\":");
+            ResponseHelper.appendJsonString(sb, decision.getUri());
+            sb.append(",\"authorized\":").append(decision.isAuthorized());
+            
+            if (decision.isFailed()) {
+                sb.append(",\"status\":").append(decision.getStatus().getCode());
+            }
+            sb.append('}');
+        }
+        sb.append("]}");
+        
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010-2011 apius.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apius.server.identity.session.openam.server;
+
+import java.util.List;
+
+import org.apius.server.identity.session.BatchAuthorizer;
+import org.apius.server.identity.session.SessionCookieTemplate;
+import org.apius.server.identity.session.SessionProvisioner;
+import org.apius.server.identity.session.TokenFormat;
+import org.apius.server.identity.session.cache.RefreshDebouncer;
+import org.apius.server.identity.session.cache.SessionAttributesPrefetcher;
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+import org.apius.server.identity.session.credential.SignedCredentials;
+import org.apius.server.identity.session.filter.SessionAuthenticator;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.resource.Finder;
+import org.restlet.resource.ServerResource;
+
+/**
+ * <p>
+ * <code>Finder</code> creating a new <code>SessionImpl</code> per request by calling its 
+ * constructor with the collaborators it was itself constructed with, all of which are 
+ * shared and safe for concurrent use. It takes the place of a <code>SpringFinder</code> 
+ * looking up a prototype bean, which costs a CGLIB proxied method call, a bean factory 
+ * lookup and the resolution of every constructor argument on each request.
+ * </p>
+ * 
+ * @author Paul Morris
+ * 
+ */
+public class SessionFinder extends Finder {
+
+    private final SessionProvisioner sessionProvisionerProxy;
+    private final SessionAuthenticator sessionAuthenticator;
+    private final SessionCookieTemplate cookieTemplate;
+    private final List<TokenInvalidationListener> invalidationListeners;
+    private final SessionAttributesPrefetcher attributesPrefetcher;
+    private final BatchAuthorizer batchAuthorizer;
+    private final RefreshDebouncer refreshDebouncer;
+    private final SignedCredentials signedCredentials;
+    private final TokenFormat tokenFormat;
+
+    /**
+     * Constructor
+     * 
+     * @param sessionProvisionerProxy
+     * @param sessionAuthenticator
+     * @param cookieTemplate
+     * @param invalidationListeners may be <code>null</code>
+     * @param attributesPrefetcher may be <code>null</code>
+     * @param batchAuthorizer may be <code>null</code>
+     * @param refreshDebouncer may be <code>null</code>
+     * @param signedCredentials may be <code>null</code>
+     * @param tokenFormat may be <code>null</code>
+     */
+    public SessionFinder(SessionProvisioner sessionProvisionerProxy, 
+                         SessionAuthenticator sessionAuthenticator,
+                         SessionCookieTemplate cookieTemplate,
+                         List<TokenInvalidationListener> invalidationListeners,
+                         SessionAttributesPrefetcher attributesPrefetcher,
+                         BatchAuthorizer batchAuthorizer,
+                         RefreshDebouncer refreshDebouncer,
+                         SignedCredentials signedCredentials,
+                         TokenFormat tokenFormat) {
+        this.sessionProvisionerProxy = sessionProvisionerProxy;
+        this.sessionAuthenticator = sessionAuthenticator;
+        this.cookieTemplate = cookieTemplate;
+        this.invalidationListeners = invalidationListeners;
+        this.attributesPrefetcher = attributesPrefetcher;
+        this.batchAuthorizer = batchAuthorizer;
+        this.refreshDebouncer = refreshDebouncer;
+        this.signedCredentials = signedCredentials;
+        this.tokenFormat = tokenFormat;
+    }
+
+    @Override
+    public ServerResource create(Request request, Response response) {
+        return new SessionImpl(sessionProvisionerProxy, sessionAuthenticator, cookieTemplate, invalidationListeners, 
+                               attributesPrefetcher, batchAuthorizer, refreshDebouncer, signedCredentials, 
+                               tokenFormat);
+    }
+
+}
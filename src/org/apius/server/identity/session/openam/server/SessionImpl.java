@@ -17,13 +17,28 @@
 
 package org.apius.server.identity.session.openam.server;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apius.server.identity.session.AuthorizationDecision;
+import org.apius.server.identity.session.BatchAuthorizer;
 import org.apius.server.identity.session.Session;
-import org.apius.server.identity.session.SessionCookieSettings;
+import org.apius.server.identity.session.SessionCookieTemplate;
+import org.apius.server.identity.session.SessionMediaTypes;
+import org.apius.server.identity.session.SessionProvisioner;
+import org.apius.server.identity.session.TokenFormat;
+import org.apius.server.identity.session.cache.RefreshDebouncer;
+import org.apius.server.identity.session.cache.SessionAttributesPrefetcher;
+import org.apius.server.identity.session.cache.TokenInvalidationListener;
+import org.apius.server.identity.session.credential.SignedCredential;
+import org.apius.server.identity.session.credential.SignedCredentials;
 import org.apius.server.identity.session.filter.SessionAuthenticator;
-import org.apius.server.identity.session.openam.client.SessionProvisionerProxy;
 import org.restlet.data.ChallengeScheme;
 import org.restlet.data.CookieSetting;
 import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Parameter;
 import org.restlet.data.Status;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ResourceException;
@@ -73,7 +88,20 @@ import org.restlet.util.Series;
  * resources.
  * </p>
  * <p>
- * An Atom Feed representing the newly created session is also returned.
+ * An Atom Feed representing the newly created session is also returned. If the resource was 
+ * configured with a <code>SessionAttributesPrefetcher</code>, a client can instead ask for the 
+ * response to be sent as soon as the session is created, without a body, with:
+ * </p>
+ * <p>
+ * <code>POST /{service_url}?attributes=deferred</code>
+ * </p>
+ * <p>
+ * The attributes are then fetched in the background, to be picked up by the next GET.
+ * </p>
+ * <p>
+ * Session attributes are represented according to the <code>Accept</code> header, as an Atom 
+ * Feed by default or as compact JSON or length-prefixed binary (see <code>SessionMediaTypes
+ * </code>).
  * </p>
  * <p>
  * The <code>ClientResource</code> object implementing the <code>Session</code> interface is the 
@@ -112,6 +140,15 @@ import org.restlet.util.Series;
  * </code> object which is attached to the <code>ClientInfo</code>.
  * </p>
  * <p>
+ * <b>Signed credentials</b>
+ * </p>
+ * <p>
+ * If the resource was configured with <code>SignedCredentials</code>, the cookie set by POST 
+ * holds a short-lived signed credential instead of the token, and so does a cookie set by PUT.
+ * The credential is used exactly as the token would be, in the Authorization header, and lets 
+ * the filters trust the session without calling OpenAM until it expires. A PUT renews it.
+ * </p>
+ * <p>
  * <b>DELETE</b>
  * </p>
  * <p>
@@ -128,9 +165,15 @@ import org.restlet.util.Series;
  */
 public final class SessionImpl extends ServerResource implements Session {
 	
-    private SessionProvisionerProxy sessionProvisionerProxy;
+    private SessionProvisioner sessionProvisionerProxy;
     private SessionAuthenticator sessionAuthenticator;
-    private CookieSetting cookieSetting;
+    private SessionCookieTemplate cookieTemplate;
+    private List<TokenInvalidationListener> invalidationListeners;
+    private SessionAttributesPrefetcher attributesPrefetcher;
+    private BatchAuthorizer batchAuthorizer;
+    private RefreshDebouncer refreshDebouncer;
+    private SignedCredentials signedCredentials;
+    private TokenFormat tokenFormat;
     private String token;
     
     /**
@@ -138,20 +181,45 @@ public final class SessionImpl extends ServerResource implements Session {
      * 
      * @param sessionProvisionerProxy
      * @param sessionAuthenticator
-     * @param responseHelper
-     * @param cookieSetting
+     * @param cookieTemplate
+     * @param invalidationListeners caches (or anything else holding on to tokens) that 
+     *        must forget a token once its session is logged out, may be <code>null</code>
+     * @param attributesPrefetcher fetches the attributes of a new session in the background
+     *        instead of making the POST response wait for them, may be <code>null</code>
+     * @param batchAuthorizer decides the pairs of a batch authorization in parallel, may be 
+     *        <code>null</code>
+     * @param refreshDebouncer answers repeated refreshes of a session without calling OpenAM, 
+     *        may be <code>null</code>
+     * @param signedCredentials issues the credentials handed out in place of the token, may be 
+     *        <code>null</code>
+     * @param tokenFormat refuses tokens OpenAM could never have issued with 401 (Unauthorized) 
+     *        without asking OpenAM, may be <code>null</code>
      */
-    public SessionImpl(SessionProvisionerProxy sessionProvisionerProxy, 
+    public SessionImpl(SessionProvisioner sessionProvisionerProxy, 
                        SessionAuthenticator sessionAuthenticator,
-                       CookieSetting cookieSetting) {
+                       SessionCookieTemplate cookieTemplate,
+                       List<TokenInvalidationListener> invalidationListeners,
+                       SessionAttributesPrefetcher attributesPrefetcher,
+                       BatchAuthorizer batchAuthorizer,
+                       RefreshDebouncer refreshDebouncer,
+                       SignedCredentials signedCredentials,
+                       TokenFormat tokenFormat) {
         this.sessionProvisionerProxy = sessionProvisionerProxy;
         this.sessionAuthenticator = sessionAuthenticator;
-        this.cookieSetting = cookieSetting;
+        this.cookieTemplate = cookieTemplate;
+        this.invalidationListeners = (invalidationListeners != null) 
+            ? invalidationListeners : Collections.<TokenInvalidationListener>emptyList();
+        this.attributesPrefetcher = attributesPrefetcher;
+        this.batchAuthorizer = batchAuthorizer;
+        this.refreshDebouncer = refreshDebouncer;
+        this.signedCredentials = signedCredentials;
+        this.tokenFormat = tokenFormat;
     }
 
     /**
      * POST operation used to request the session provisioner to create a session
-     * and return an Atom Feed of the session attributes.
+     * and return an Atom Feed of the session attributes, or nothing if they were
+     * deferred with <code>?attributes=deferred</code>.
      * 
      * @param Form with identifier/secret parameters
      * @return Atom Feed representing the newly created session's attributes
@@ -193,13 +261,18 @@ public final class SessionImpl extends ServerResource implements Session {
         Representation representation = null;
     	
         try {
-            token = sessionProvisionerProxy.createSession(form).getText();
+            token = sessionProvisionerProxy.createSession(form);
             
-            if (!token.isEmpty()) {
+            if (token != null && !token.isEmpty()) {
                 setStatus(Status.SUCCESS_CREATED);
                 setLocationRef(getReference());
-                representation = sessionProvisionerProxy.getAttributes();
-                addCookieSetting(token);     
+                addCookieSetting(getCookieToken(token));
+                
+                if (attributesPrefetcher != null && attributesRequestedDeferred()) {
+                    attributesPrefetcher.prefetch(token);
+                } else {
+                    representation = sessionProvisionerProxy.getAttributes(token, getPreferredMediaType());
+                }
             }	
         } catch (ResourceException e) {
             handleResourceException(e);
@@ -210,20 +283,42 @@ public final class SessionImpl extends ServerResource implements Session {
         return representation;
     }
     
-    private void addCookieSetting(String token) {
-        cookieSetting.setVersion(SessionCookieSettings.version);
-        cookieSetting.setName(SessionCookieSettings.name);
-        cookieSetting.setValue("token=" + token);
-        cookieSetting.setPath(getOriginalRef().getPath());
-        cookieSetting.setComment(SessionCookieSettings.comment);
-        cookieSetting.setMaxAge(SessionCookieSettings.maxAge);
-        cookieSetting.setSecure(SessionCookieSettings.secure);
-        cookieSetting.setAccessRestricted(SessionCookieSettings.accessRestricted);
+    private MediaType getPreferredMediaType() {
+        MediaType mediaType = getClientInfo().getPreferredMediaType(SessionMediaTypes.supported);
+        
+        return (mediaType != null) ? mediaType : SessionMediaTypes.ATOM;
+    }
+    
+    private boolean attributesRequestedDeferred() {
+        return "deferred".equals(getQuery().getFirstValue("attributes"));
+    }
+    
+    /**
+     * The session has been validated by OpenAM: hand out a credential for it, renewing the 
+     * one the client sent if any. If its claims cannot be looked up the token itself is 
+     * handed out, which works just as well, only without the shortcut.
+     */
+    private String getCookieToken(String token) {
+        String cookieToken = token;
+        
+        if (signedCredentials != null) {
+            SignedCredential credential = SignedCredentials.getCredential(getRequest());
+            
+            try {
+                cookieToken = (credential != null && credential.getToken().equals(token)) 
+                    ? signedCredentials.renew(credential) : signedCredentials.issue(token);
+            } catch (ResourceException e) {
+                cookieToken = token;
+            }
+        }
         
+        return cookieToken;
+    }
+    
+    private void addCookieSetting(String token) {
         Series<CookieSetting> cookieSettings = this.getCookieSettings();
         cookieSettings.clear();
-        cookieSettings.add(cookieSetting);
-        this.setCookieSettings(cookieSettings);
+        cookieSettings.add(cookieTemplate.createCookieSetting(token, getOriginalRef().getPath()));
     }
     
     /**
@@ -236,7 +331,6 @@ public final class SessionImpl extends ServerResource implements Session {
         Representation representation = null;
 
         if (getChallengeResponse() != null) {
-            extractTokenAndSetValues();
             representation = getAttributesRepresentation();
         } else {
             setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
@@ -250,7 +344,14 @@ public final class SessionImpl extends ServerResource implements Session {
     	
         try {
             extractTokenAndSetValues();
-            representation = sessionProvisionerProxy.getAttributes();
+            MediaType mediaType = getPreferredMediaType();
+            
+            if (attributesPrefetcher != null && SessionMediaTypes.ATOM.equals(mediaType)) {
+                representation = attributesPrefetcher.take(token);
+            }
+            if (representation == null) {
+                representation = sessionProvisionerProxy.getAttributes(token, mediaType);
+            }
         } catch (ResourceException e) {
     	    handleResourceException(e);
     	} catch (Exception e) {
@@ -266,11 +367,19 @@ public final class SessionImpl extends ServerResource implements Session {
      * refreshes the time left before OpenAM imposes an inactive timeout. 
      * </p>
      * <p>
-     * If the session provisioner proxy authenticates the token it will set its own <code>
-     * ClientInfo authenticated</code> property to <code>true</code>. We need to set the 
-     * same property in the <code>ServerResource</code> (this object's) <code>ClientInfo
-     * </code> and copy the <code>User</code> object constructed in the session provisioner
-     * proxy to the <code>setUser</code> setter of this object's <code>ClientInfo</code>. 
+     * If the session provisioner proxy authenticates the token it returns the <code>User
+     * </code> the session belongs to. We set the <code>authenticated</code> property of the 
+     * <code>ServerResource</code> (this object's) <code>ClientInfo</code> to <code>true
+     * </code> and pass that <code>User</code> to the <code>setUser</code> setter of this 
+     * object's <code>ClientInfo</code>. 
+     * </p>
+     * <p>
+     * With a <code>RefreshDebouncer</code>, only one refresh per token and window reaches
+     * OpenAM; the others are answered with the <code>User</code> OpenAM last returned.
+     * </p>
+     * <p>
+     * With <code>SignedCredentials</code>, a renewed credential is sent back in the cookie.
+     * </p>
      * 
      * @return void
      */
@@ -278,10 +387,14 @@ public final class SessionImpl extends ServerResource implements Session {
         if (getChallengeResponse() != null) {
             try {
                 extractTokenAndSetValues();
-                sessionProvisionerProxy.authenticateToken();
-                User authenticatedUser = sessionProvisionerProxy.getClientInfo().getUser();
+                User authenticatedUser = (refreshDebouncer != null) 
+                    ? refreshDebouncer.refresh(token) : sessionProvisionerProxy.refreshToken(token);
                 getRequest().getClientInfo().setUser(authenticatedUser);
                 getRequest().getClientInfo().setAuthenticated(true);
+                
+                if (signedCredentials != null) {
+                    addCookieSetting(getCookieToken(token));
+                }
             } catch (ResourceException e) {
                 handleResourceException(e);
             } catch (Exception e) {
@@ -293,8 +406,15 @@ public final class SessionImpl extends ServerResource implements Session {
     }
     
     /**
+     * <p>
      * DELETE operation to invalidate the session and effectively log out the
      * user.
+     * </p>
+     * <p>
+     * The <code>invalidationListeners</code> are only told once OpenAM has accepted the 
+     * logout: OpenAM refuses a made-up token with 401 (Unauthorized), which must not make 
+     * the caches, the peers or the credential revocations do any work.
+     * </p>
      * 
      * @return void
      */
@@ -302,7 +422,8 @@ public final class SessionImpl extends ServerResource implements Session {
         if (getChallengeResponse() != null) {
             try {
                 extractTokenAndSetValues();
-                sessionProvisionerProxy.logout();
+                sessionProvisionerProxy.logout(token);
+                invalidate(token);
             } catch (ResourceException e) {
                 handleResourceException(e);
             } catch (Exception e) {
@@ -313,9 +434,18 @@ public final class SessionImpl extends ServerResource implements Session {
         }
     }
     
+    private void invalidate(String token) {
+        for (TokenInvalidationListener listener : invalidationListeners) {
+            listener.invalidate(token);
+        }
+    }
+    
     private void extractTokenAndSetValues() {
         token = getChallengeResponse().getRawValue();
-        sessionProvisionerProxy.setToken(token);
+        
+        if (tokenFormat != null && !tokenFormat.isWellFormed(token)) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
     }
 	
     /**
@@ -329,7 +459,38 @@ public final class SessionImpl extends ServerResource implements Session {
      * 		   authorized to perform the given method on the resource at the uri 
      */
     public boolean isAuthorized(String token, String uri, String method) {
-        return sessionProvisionerProxy.isAuthorized(uri, method, token);
+        return sessionProvisionerProxy.isAuthorized(token, uri, method);
+    }
+    
+    /**
+     * To determine, in one call, which of many HTTP methods the authenticated user 
+     * represented by the session token may perform on which resources. Without a <code>
+     * BatchAuthorizer</code> the pairs are decided one after the other.
+     * 
+     * @param token
+     * @param requests one parameter per pair, the name being the method and the value the URI
+     * @return a decision for every pair, in the order of the requests
+     */
+    public List<AuthorizationDecision> isAuthorized(String token, Form requests) {
+        List<AuthorizationDecision> decisions;
+        
+        if (batchAuthorizer != null) {
+            decisions = batchAuthorizer.authorize(token, requests);
+        } else {
+            decisions = new ArrayList<AuthorizationDecision>(requests.size());
+            
+            for (Parameter request : requests) {
+                try {
+                    decisions.add(new AuthorizationDecision(request.getName(), 
+                                                            request.getValue(), 
+                                                            isAuthorized(token, request.getValue(), request.getName())));
+                } catch (ResourceException e) {
+                    decisions.add(new AuthorizationDecision(request.getName(), request.getValue(), e.getStatus()));
+                }
+            }
+        }
+        
+        return decisions;
     }
 	
     private void handleResourceException(ResourceException e) {
@@ -343,7 +504,4 @@ public final class SessionImpl extends ServerResource implements Session {
     private void handleException(String message) {
         handleResourceException(new ResourceException(Status.SERVER_ERROR_INTERNAL, message));
     }
-    
-    public void setToken(String token) {
-    }
 }